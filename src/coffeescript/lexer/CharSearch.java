@@ -0,0 +1,168 @@
+package coffeescript.lexer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches the code for the delimiters ending long runs of string, comment,
+ * embedded JavaScript and whitespace characters. Runs are searched one
+ * character at a time for their first characters, which ends most of them;
+ * longer runs are searched eight characters at a time in a
+ * <code>long</code> word, testing all of its bytes at once with carry-free
+ * arithmetic. The words are read from a byte per character of the code,
+ * which the first long run fills in; characters beyond ISO-8859-1, both
+ * halves of a surrogate pair included, become <code>?</code>, so the searched
+ * delimiters must be ISO-8859-1 characters other than <code>?</code>.
+ * <p>
+ * A search may be shared by the lexers of the segments of one code.
+ *
+ * @author milos
+ */
+final class CharSearch {
+    // chars searched one at a time before switching to words
+    private static final int SCALAR_PREFIX = 16;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH = 0x8080808080808080L;
+    private static final long SPACES = ' ' * ONES;
+    // bytes of \n, \r, U+0085 and of the ? standing for the line and paragraph separators
+    private static final long NEW_LINES = '\n' * ONES;
+    private static final long RETURNS = '\r' * ONES;
+    private static final long NEXT_LINES = 0x85 * ONES;
+    private static final long REPLACED = '?' * ONES;
+
+    private final String code;
+    private volatile ByteBuffer words;
+
+    CharSearch(String code) {
+        this.code = code;
+    }
+
+    /**
+     * @return index of the first of <code>a</code>, <code>b</code> and
+     * <code>c</code> from <code>from</code> before <code>to</code> or -1
+     */
+    int indexOfAny(int from, int to, char a, char b, char c) {
+        int p = from;
+        int scalarEnd = Math.min(to, from + SCALAR_PREFIX);
+        for(; p < scalarEnd; p++) {
+            char ch = code.charAt(p);
+            if(ch == a || ch == b || ch == c) {
+                return p;
+            }
+        }
+        if(p + 8 <= to) {
+            ByteBuffer words = words();
+            long pa = a * ONES, pb = b * ONES, pc = c * ONES;
+            for(; p + 8 <= to; p += 8) {
+                long x = words.getLong(p);
+                long found = ~(nonZeros(x ^ pa) & nonZeros(x ^ pb) & nonZeros(x ^ pc)) & HIGH;
+                if(found != 0) {
+                    return p + (Long.numberOfTrailingZeros(found) >>> 3);
+                }
+            }
+        }
+        for(; p < to; p++) {
+            char ch = code.charAt(p);
+            if(ch == a || ch == b || ch == c) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the first line terminator not matched by <code>.</code>
+     * from <code>from</code> before <code>to</code> or -1
+     */
+    int indexOfLineTerminator(int from, int to) {
+        int p = from;
+        int scalarEnd = Math.min(to, from + SCALAR_PREFIX);
+        for(; p < scalarEnd; p++) {
+            if(Scanners.isLineTerminator(code.charAt(p))) {
+                return p;
+            }
+        }
+        if(p + 8 <= to) {
+            ByteBuffer words = words();
+            for(; p + 8 <= to; p += 8) {
+                long x = words.getLong(p);
+                long candidates = ~(nonZeros(x ^ NEW_LINES) & nonZeros(x ^ RETURNS) & nonZeros(x ^ NEXT_LINES) & nonZeros(x ^ REPLACED)) & HIGH;
+                while(candidates != 0) {
+                    int index = p + (Long.numberOfTrailingZeros(candidates) >>> 3);
+                    if(Scanners.isLineTerminator(code.charAt(index))) {
+                        return index;
+                    }
+                    candidates &= candidates - 1;
+                }
+            }
+        }
+        for(; p < to; p++) {
+            if(Scanners.isLineTerminator(code.charAt(p))) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the first char from <code>from</code> before
+     * <code>to</code> which is not whitespace other than <code>\n</code>, or
+     * <code>to</code>
+     */
+    int skipHorizontalWhitespace(int from, int to) {
+        int p = from;
+        int scalarEnd = Math.min(to, from + SCALAR_PREFIX);
+        for(; p < scalarEnd; p++) {
+            if(!isHorizontalWhitespace(code.charAt(p))) {
+                return p;
+            }
+        }
+        if(p + 8 <= to) {
+            ByteBuffer words = words();
+            for(; p + 8 <= to; p += 8) {
+                // chars other than spaces are candidates, mostly tabs or the end
+                long candidates = nonZeros(words.getLong(p) ^ SPACES);
+                while(candidates != 0) {
+                    int index = p + (Long.numberOfTrailingZeros(candidates) >>> 3);
+                    if(!isHorizontalWhitespace(code.charAt(index))) {
+                        return index;
+                    }
+                    candidates &= candidates - 1;
+                }
+            }
+        }
+        for(; p < to; p++) {
+            if(!isHorizontalWhitespace(code.charAt(p))) {
+                return p;
+            }
+        }
+        return to;
+    }
+
+    // high bit set in the bytes of x that are not zero
+    private static long nonZeros(long x) {
+        return (((x & LOW) + LOW) | x) & HIGH;
+    }
+
+    private static boolean isHorizontalWhitespace(char c) {
+        return c != '\n' && Scanners.isWhitespace(c);
+    }
+
+    // the first char in the lowest byte of a word
+    private ByteBuffer words() {
+        ByteBuffer result = words;
+        if(result == null) {
+            // not getBytes(), which encodes a surrogate pair as a single byte;
+            // segments racing here fill in the same bytes
+            byte[] bytes = new byte[code.length()];
+            for(int i = 0; i < bytes.length; i++) {
+                char c = code.charAt(i);
+                bytes[i] = (c <= 0xFF) ? (byte) c : (byte) '?';
+            }
+            result = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            words = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+package coffeescript.lexer;
+
+/**
+ * The rest of the code from the current position, seen without copying
+ * it; a substring would copy the rest of the file for every token.
+ *
+ * @author milos
+ */
+final class Chunk implements CharSequence {
+    private final String code;
+    private final int start;
+    private final int end;
+    private final CharSearch search;
+
+    Chunk(String code, int start, int end, CharSearch search) {
+        this.code = code;
+        this.start = start;
+        this.end = end;
+        this.search = search;
+    }
+
+    /**
+     * @return the whole of <code>code</code>
+     */
+    static Chunk of(String code) {
+        return new Chunk(code, 0, code.length(), new CharSearch(code));
+    }
+
+    // the code the chunk is a view of, its bounds in it and the search of it
+    String getCode() {
+        return code;
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    CharSearch getSearch() {
+        return search;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= end - start) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return code.charAt(start + index);
+    }
+
+    public boolean startsWith(String prefix) {
+        return prefix.length() <= end - start && code.startsWith(prefix, start);
+    }
+
+    public String substring(int begin, int end) {
+        if(begin < 0 || begin > end || end > this.end - start) {
+            throw new StringIndexOutOfBoundsException(begin);
+        }
+        return code.substring(start + begin, start + end);
+    }
+
+    /**
+     * @return index of the first of <code>a</code>, <code>b</code> and
+     * <code>c</code> at or after <code>from</code> or -1
+     */
+    int indexOfAny(int from, char a, char b, char c) {
+        int index = search.indexOfAny(start + from, end, a, b, c);
+        return (index == -1) ? -1 : index - start;
+    }
+
+    /**
+     * @return index of the first line terminator at or after
+     * <code>from</code> or -1
+     */
+    int indexOfLineTerminator(int from) {
+        int index = search.indexOfLineTerminator(start + from, end);
+        return (index == -1) ? -1 : index - start;
+    }
+
+    /**
+     * @return index of the first char at or after <code>from</code> which is
+     * not whitespace other than <code>\n</code>, or the length
+     */
+    int skipHorizontalWhitespace(int from) {
+        return search.skipHorizontalWhitespace(start + from, end) - start;
+    }
+
+    @Override
+    public CharSequence subSequence(int begin, int end) {
+        return substring(begin, end);
+    }
+
+    @Override
+    public String toString() {
+        return code.substring(start, end);
+    }
+}
@@ -0,0 +1,52 @@
+package coffeescript.lexer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative cancellation flag with an optional deadline. The lexer and the
+ * rewriter poll it at regular intervals and abort with
+ * {@link CoffeeScriptNativeCancelledException} once it is cancelled or the
+ * deadline has passed.
+ *
+ * @author milos
+ */
+public class CoffeeScriptNativeCancellation {
+    private volatile boolean cancelled;
+    private final long deadline;
+    private final boolean hasDeadline;
+
+    public CoffeeScriptNativeCancellation() {
+        this.deadline = 0;
+        this.hasDeadline = false;
+    }
+
+    private CoffeeScriptNativeCancellation(long deadline) {
+        this.deadline = deadline;
+        this.hasDeadline = true;
+    }
+
+    public static CoffeeScriptNativeCancellation withTimeout(long timeout, TimeUnit unit) {
+        return new CoffeeScriptNativeCancellation(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        if(cancelled) {
+            return true;
+        }
+        if(hasDeadline && System.nanoTime() - deadline >= 0) {
+            cancelled = true;
+            return true;
+        }
+        return false;
+    }
+
+    public void check() {
+        if(isCancelled()) {
+            throw CoffeeScriptNativeCancelledException.INSTANCE;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package coffeescript.lexer;
+
+/**
+ * Thrown when a {@link CoffeeScriptNativeCancellation} aborts tokenizing or
+ * rewriting. A single shared instance without stack trace is used, so
+ * throwing it does not allocate.
+ *
+ * @author milos
+ */
+public class CoffeeScriptNativeCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    static final CoffeeScriptNativeCancelledException INSTANCE = new CoffeeScriptNativeCancelledException();
+
+    private CoffeeScriptNativeCancelledException() {
+        super("lexing cancelled", null, false, false);
+    }
+}
@@ -0,0 +1,162 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block comments of a lexed source kept apart from its tokens, in source
+ * order. Every comment is anchored before a token of the list it was
+ * separated from, or at its end, and takes the TERMINATOR preceding it, or
+ * else the one following it, along. A lexer separating comments rewrites
+ * the tokens without them, so the rewriter and consumers ignoring comments
+ * never see them; {@link #merge(List)} puts them back for those that need
+ * them.
+ * <p>
+ * Merged rewritten tokens mostly equal the tokens of a rewrite with the
+ * comments, but the rewriter takes comments into account in a few places,
+ * like implicit calls and objects around them, where the tokens it
+ * generates may then differ.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeComments {
+    private final CoffeeScriptNativeToken[] comments;
+    // TERMINATOR going with each comment or null
+    private final CoffeeScriptNativeToken[] terminators;
+    // whether the TERMINATOR precedes the comment
+    private final boolean[] leading;
+    private final int[] anchors;
+
+    private CoffeeScriptNativeComments(CoffeeScriptNativeToken[] comments, CoffeeScriptNativeToken[] terminators, boolean[] leading, int[] anchors) {
+        this.comments = comments;
+        this.terminators = terminators;
+        this.leading = leading;
+        this.anchors = anchors;
+    }
+
+    /**
+     * Removes the HERECOMMENT tokens from <code>tokens</code> and the entries
+     * of <code>structure</code>, each with the TERMINATOR preceding it or
+     * else the one following it.
+     */
+    static CoffeeScriptNativeComments separate(List<CoffeeScriptNativeToken> tokens, CoffeeScriptNativeStructure structure) {
+        List<CoffeeScriptNativeToken> comments = new ArrayList<CoffeeScriptNativeToken>();
+        List<CoffeeScriptNativeToken> terminators = new ArrayList<CoffeeScriptNativeToken>();
+        boolean[] leading = new boolean[8];
+        int[] anchors = new int[8];
+        int[] removed = new int[8];
+        int removedCount = 0;
+        int kept = 0;
+        int size = tokens.size();
+        for(int index = 0; index < size; index++) {
+            CoffeeScriptNativeToken token = tokens.get(index);
+            if(!token.getTag().equals("HERECOMMENT")) {
+                tokens.set(kept++, token);
+                continue;
+            }
+            int count = comments.size();
+            if(count == anchors.length) {
+                anchors = Arrays.copyOf(anchors, count * 2);
+                leading = Arrays.copyOf(leading, count * 2);
+            }
+            if(removedCount + 2 > removed.length) {
+                removed = Arrays.copyOf(removed, removed.length * 2);
+            }
+            CoffeeScriptNativeToken next = (index + 1 < size) ? tokens.get(index + 1) : null;
+            boolean previousKept = removedCount == 0 || removed[removedCount - 1] < index - 1;
+            comments.add(token);
+            if(previousKept && kept > 0 && tokens.get(kept - 1).getTag().equals("TERMINATOR")) {
+                // the rewriter drops a TERMINATOR before an INDENT or OUTDENT, but not before a comment
+                terminators.add(tokens.get(--kept));
+                leading[count] = true;
+                anchors[count] = kept;
+                removed[removedCount++] = index - 1;
+                removed[removedCount++] = index;
+            } else if(next != null && next.getTag().equals("TERMINATOR")) {
+                terminators.add(next);
+                anchors[count] = kept;
+                removed[removedCount++] = index;
+                removed[removedCount++] = ++index;
+            } else {
+                terminators.add(null);
+                anchors[count] = kept;
+                removed[removedCount++] = index;
+            }
+        }
+        if(comments.isEmpty()) {
+            return new CoffeeScriptNativeComments(new CoffeeScriptNativeToken[0], new CoffeeScriptNativeToken[0], new boolean[0], new int[0]);
+        }
+        tokens.subList(kept, size).clear();
+        structure.removeTokens(removed, removedCount);
+        return new CoffeeScriptNativeComments(comments.toArray(new CoffeeScriptNativeToken[comments.size()]),
+                terminators.toArray(new CoffeeScriptNativeToken[terminators.size()]), Arrays.copyOf(leading, comments.size()),
+                Arrays.copyOf(anchors, comments.size()));
+    }
+
+    /**
+     * Anchors the comments in another token list of the same source, like the
+     * rewritten tokens, before the first token starting after each comment
+     * and its leading TERMINATOR. Tokens generated by the rewriter take the
+     * location of the token before them, so a comment follows the brackets
+     * closed before it; an implicit object opened after comments starts
+     * before them, as the rewriter walks back over comments to open it.
+     */
+    public CoffeeScriptNativeComments anchor(List<CoffeeScriptNativeToken> tokens) {
+        int[] result = new int[comments.length];
+        int index = 0;
+        for(int comment = 0; comment < comments.length; comment++) {
+            int start = (leading[comment] ? terminators[comment] : comments[comment]).getStartOffset();
+            while(index < tokens.size() && (tokens.get(index).getStartOffset() < start || isImplicitObject(tokens.get(index)))) {
+                index++;
+            }
+            result[comment] = index;
+        }
+        return new CoffeeScriptNativeComments(comments, terminators, leading, result);
+    }
+
+    private static boolean isImplicitObject(CoffeeScriptNativeToken token) {
+        return token.getTag().equals("{") && Boolean.TRUE.equals(token.getGenerated());
+    }
+
+    public int size() {
+        return comments.length;
+    }
+
+    /**
+     * @return the HERECOMMENT token of <code>comment</code>
+     */
+    public CoffeeScriptNativeToken getComment(int comment) {
+        return comments[comment];
+    }
+
+    /**
+     * @return index of the token <code>comment</code> precedes, the size of
+     * the token list for comments at its end
+     */
+    public int getAnchor(int comment) {
+        return anchors[comment];
+    }
+
+    /**
+     * @return new list of <code>tokens</code>, which the comments are
+     * anchored in, with the comments and their TERMINATOR tokens
+     */
+    public List<CoffeeScriptNativeToken> merge(List<CoffeeScriptNativeToken> tokens) {
+        List<CoffeeScriptNativeToken> result = new ArrayList<CoffeeScriptNativeToken>(tokens.size() + 2 * comments.length);
+        int next = 0;
+        for(int comment = 0; comment < comments.length; comment++) {
+            result.addAll(tokens.subList(next, anchors[comment]));
+            next = anchors[comment];
+            if(leading[comment]) {
+                result.add(terminators[comment]);
+            }
+            result.add(comments[comment]);
+            if(terminators[comment] != null && !leading[comment]) {
+                result.add(terminators[comment]);
+            }
+        }
+        result.addAll(tokens.subList(next, tokens.size()));
+        return result;
+    }
+}
@@ -7,29 +7,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import static coffeescript.lexer.Helpers.*;
+import static coffeescript.lexer.Scanners.*;
 
 public class CoffeeScriptNativeLexer {
     
     private static final String UTF8_BOM = "\uFEFF";
-    private static final Pattern TRAILING_SPACES = Pattern.compile("\\s+$");
-    private static final Pattern WHITESPACE = Pattern.compile("^[^\\n\\S]+");
     private static final Pattern IDENTIFIER = Pattern.compile("^([$A-Za-z_\\x7f-\\uffff][$\\w\\x7f-\\uffff]*)([^\\n\\S]*:(?!:))?");
     private static final Pattern NUMBER = Pattern.compile("^0b[01]+|^0o[0-7]+|^0x[\\da-f]+|^\\d*\\.?\\d+(?:e[+-]?\\d+)?",Pattern.CASE_INSENSITIVE);
-    private static final Pattern HEREDOC = Pattern.compile("^(\"\"\"|''')((?:\\\\[\\s\\S]|[^\\\\])*?)(?:\\n[^\\n\\S]*)?\\1");
     private static final Pattern OPERATOR = Pattern.compile("^(?:[-=]>|[-+*\\/%<>&|^!?=]=|>>>=?|([-+:])\\1|([&|<>*\\/%])\\2=?|\\?(\\.|::)|\\.{2,3})");
-    private static final Pattern COMMENT = Pattern.compile("^###([^#][\\s\\S]*?)(?:###[^\\n\\S]*|###$)|^(?:\\s*#(?!##[^#]).*)+");
-    private static final Pattern PRE_COMMENT = Pattern.compile("^\\s*#");
     private static final Pattern CODE = Pattern.compile("^[-=]>");
-    private static final Pattern MULTI_DENT = Pattern.compile("^(?:\\n[^\\n\\S]*)+");
-    private static final Pattern SIMPLESTR = Pattern.compile("^'[^\\\\']*(?:\\\\[\\s\\S][^\\\\']*)*'");
-    private static final Pattern QUOTED_STR = Pattern.compile("^\"[^\\\\\"]*(?:\\\\[\\s\\S][^\\\\\"]*)*\"");    
-    private static final Pattern JSTOKEN = Pattern.compile("^`[^\\\\`]*(?:\\\\.[^\\\\`]*)*`");
-    private static final Pattern REGEX = Pattern.compile("^(\\/(?![\\s=])[^"+ Pattern .quote("[") +"\\/\\n\\\\]*(?:(?:\\\\[\\s\\S]|\\[[^\\]\\n\\\\]*(?:\\\\[\\s\\S][^\\]\\n\\\\]*)*])[^"+ Pattern.quote("[") +"\\/\\n\\\\]*)*\\/)([imgy]{0,4})(?!\\w)");
-    private static final Pattern HEREGEX = Pattern.compile("^\\/{3}((?:\\\\?[\\s\\S])+?)\\/{3}([imgy]{0,4})(?!\\w)");
     private static final Pattern HEREDOC_ILLEGAL = Pattern.compile("\\*\\/");
     private static final Pattern LINE_CONTINUER = Pattern.compile("^\\s*(?:,|\\??\\.(?![.\\d])|::)");
     private static final Pattern RADIX_PREFIX = Pattern.compile("^0[BOX]");
@@ -54,7 +47,6 @@ public class CoffeeScriptNativeLexer {
     private static final Set<String> INDENTABLE_CLOSERS = new HashSet(Arrays.asList(")", "}", "]"));    
     private static final Set<String> JS_KEYWORDS = new HashSet(Arrays.asList("true", "false", "null", "this", "new", "delete", "typeof", "in", "instanceof", "return", "throw", "break", "continue", "debugger", "if", "else", "switch", "for", "while", "do", "try", "catch", "finally", "class", "extends", "super"));
     private static final Set<String> COFFEE_KEYWORDS = new HashSet(Arrays.asList("undefined", "then", "unless", "until", "loop", "of", "by", "when"));    
-    private static final Set<String> COFFEE_ALIASES = new HashSet(Arrays.asList("and", "or", "is", "isnt", "not", "yes", "no", "on", "off"));    
     private static final Set<String> RESERVED = new HashSet(Arrays.asList("case", "default", "function", "var", "void", "with", "const", "let", "enum", "export", "import", "native", "__hasProp", "__extends", "__slice", "__bind", "__indexOf", "implements", "interface", "package", "private", "protected", "public", "static", "yield"));
     private static final Set<String> STRICT_PROSCRIBED = new HashSet(Arrays.asList("arguments", "eval"));
     private static final Set<String> UNFINISHED = new HashSet(Arrays.asList("\\", ".", "?." ,"?::" ,"UNARY" ,"MATH" ,"UNARY_MATH" ,"+" ,"-" ,"**" ,"SHIFT" ,"RELATION" ,"COMPARE" ,"LOGIC" ,"THROW" ,"EXTENDS"));;
@@ -62,6 +54,14 @@ public class CoffeeScriptNativeLexer {
     private static final Set<String> NOT_SPACED_REGEX = new HashSet(Arrays.asList(")", "}", "THIS", "IDENTIFIER", "STRING", "]"));
     private static final Set<String> JS_FORBIDDEN = new HashSet(JS_KEYWORDS);
     private static final Map<String,String> COFFEE_ALIAS_MAP = new HashMap();    
+    // package private for tests
+    static final KeywordClassifier KEYWORDS;
+    // minimal length of a segment lexed on its own
+    private static final int SEGMENT_SIZE = 8 * 1024;
+    // entry of ends waiting for an OUTDENT rather than a closing bracket
+    private static final char OUTDENT_END = '\n';
+    // characters after a segment the lexer needs to see to tell how its last line ends
+    private static final int SEGMENT_LOOKAHEAD = 3;
 
     
     static {
@@ -77,6 +77,8 @@ public class CoffeeScriptNativeLexer {
         
         JS_FORBIDDEN.addAll(RESERVED);
         JS_FORBIDDEN.addAll(STRICT_PROSCRIBED);
+        
+        KEYWORDS = KeywordClassifier.create(JS_KEYWORDS, COFFEE_KEYWORDS, COFFEE_ALIAS_MAP, JS_FORBIDDEN, RESERVED, UNARY, RELATION);
     }
     
     private static void init() {
@@ -91,52 +93,361 @@ public class CoffeeScriptNativeLexer {
         COFFEE_ALIAS_MAP.put("off", "false");
     }
 
-    private final Stack<String> ends;
+    // closing brackets or OUTDENT_END the open blocks wait for, innermost last
+    private char[] ends;
+    private int endCount;
     private Map<String, Matcher> matchers;
     private List<CoffeeScriptNativeToken> tokens;
     private String code;
-    private String chunk;
-    private int chunkLine;
-    private int chunkColumn;
+    // range of code lexed, all of it but for an embedded expression lexed in place
+    private int codeStart;
+    private int codeEnd;
+    private boolean embedded;
+    private CharSearch search;
+    private Chunk chunk;
+    // index of the chunk in code and offset of the first character of code in the source
+    private int position;
+    private int offsetBase;
+    private CoffeeScriptNativeLineTable lines;
     private boolean seenFor;
     private int indent;
     private int indebt;
     private int baseIndent;
     private int outdebt;
-    private Stack<Integer> indents;
+    // sizes of the open indentation levels, innermost last
+    private int[] indents;
+    private int indentCount;
+    // indexes of the ( and CALL_START tokens not closed yet and of the one the last ) closed
+    private int[] parens;
+    private int parenCount;
+    private int closedParen = -1;
+    private CoffeeScriptNativeStructure structure;
+    private CoffeeScriptNativeCancellation cancellation;
+    private int ticks;
+    private boolean rewrite;
+    private String fileId;
+    private boolean separateComments;
+    private CoffeeScriptNativeComments comments;
     
     public CoffeeScriptNativeLexer(String code) {
+        this(code, null, 0);
+    }
+    
+    /**
+     * Creates a lexer for code embedded in a larger source at the given
+     * offset, whose tokens resolve their lines and columns through the table
+     * of that source.
+     */
+    CoffeeScriptNativeLexer(String code, CoffeeScriptNativeLineTable lines, int offset) {
         this.code = code;
-        this.ends = new Stack<String>();
+        this.codeEnd = code.length();
+        this.lines = lines;
+        this.offsetBase = offset;
+        this.ends = new char[16];
         this.tokens = new ArrayList<CoffeeScriptNativeToken>();
-        this.indents = new Stack<Integer>();  
+        this.indents = new int[16];
+        this.parens = new int[16];
         this.matchers = new HashMap<String, Matcher>();
+        this.structure = new CoffeeScriptNativeStructure();
+    }
+    
+    /**
+     * Creates a lexer for the expression in <code>range</code>, which lies in
+     * code cleaned already, like the value of a string token, and is lexed in
+     * place without copying it. <code>offset</code> is the offset of the
+     * first character of that code in the source.
+     */
+    CoffeeScriptNativeLexer(Chunk range, CoffeeScriptNativeLineTable lines, int offset) {
+        this(range.getCode(), lines, offset);
+        this.codeStart = range.getStart();
+        this.codeEnd = range.getEnd();
+        this.search = range.getSearch();
+        this.embedded = true;
     }
     
     public List<CoffeeScriptNativeToken> tokenize(boolean rewrite) throws CoffeeScriptNativeLexerException {
-        String tag;
-        this.chunkLine = 0;
-        this.chunkColumn = 0;
-        this.code = clean(code);
-        int consumed, i = 0;
-        this.chunk = slice(this.code,i);
-        while (!this.chunk.isEmpty()) {            
+        return tokenize(rewrite, null);
+    }
+    
+    /**
+     * Tokenizes the code, polling <code>cancellation</code> between tokens and
+     * during rewriting. When it fires, {@link CoffeeScriptNativeCancelledException}
+     * is thrown; the partially built token list is private to this lexer and
+     * is never returned, so the lexer should simply be discarded.
+     */
+    public List<CoffeeScriptNativeToken> tokenize(boolean rewrite, CoffeeScriptNativeCancellation cancellation) throws CoffeeScriptNativeLexerException {
+        return tokenize(rewrite, cancellation, null);
+    }
+    
+    /**
+     * Tokenizes the code like {@link #tokenize(boolean, CoffeeScriptNativeCancellation)},
+     * but lexes large files in segments on <code>pool</code>. The segments
+     * start at top-level lines found by a prescan and are lexed from a clean
+     * state; a segment is only used if the lexer state at its end really is
+     * clean, otherwise it is lexed again together with the following one. The
+     * tokens are the same as those of the sequential tokenize. Without a
+     * <code>pool</code> the code is lexed sequentially.
+     */
+    public List<CoffeeScriptNativeToken> tokenize(boolean rewrite, CoffeeScriptNativeCancellation cancellation, ForkJoinPool pool) throws CoffeeScriptNativeLexerException {
+        LexerEvents events = LexerEvents.INSTANCE;
+        if(events == null) {
+            return tokenizeAll(rewrite, cancellation, pool);
+        }
+        Object event = events.beginTokenize();
+        List<CoffeeScriptNativeToken> result = null;
+        String outcome = "error";
+        try {
+            result = tokenizeAll(rewrite, cancellation, pool);
+            outcome = "ok";
+            return result;
+        } catch (CoffeeScriptNativeCancelledException ex) {
+            outcome = "cancelled";
+            throw ex;
+        } finally {
+            events.endTokenize(event, fileId, this.codeEnd - this.codeStart, result, rewrite, outcome);
+        }
+    }
+    
+    /**
+     * Lexes the code once and rewrites a copy of the tokens, so that both the
+     * raw and the rewritten tokens are available without lexing twice; see
+     * {@link #tokenize(boolean, CoffeeScriptNativeCancellation, ForkJoinPool)}
+     * for the parameters, <code>pool</code> being used for both lexing and
+     * rewriting.
+     */
+    public CoffeeScriptNativeTokenViews tokenizeViews(CoffeeScriptNativeCancellation cancellation, ForkJoinPool pool) throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> raw = tokenize(false, cancellation, pool);
+        Rewriter rewriter = new Rewriter(raw, cancellation);
+        rewriter.setFileId(fileId);
+        return rewriter.rewriteViews(pool);
+    }
+    
+    /**
+     * Sets the identifier of the source reported to monitoring, usually its
+     * path.
+     */
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+    
+    /**
+     * @return the brackets, indentation and blocks recorded by the last
+     * tokenize, which must have completed
+     */
+    public CoffeeScriptNativeStructure getStructure() {
+        return structure;
+    }
+    
+    /**
+     * Makes tokenize return the tokens without block comments, which are
+     * kept in {@link #getComments()} instead and are left out of the
+     * rewriting.
+     */
+    public void setSeparateComments(boolean separateComments) {
+        this.separateComments = separateComments;
+    }
+    
+    /**
+     * @return the block comments separated by the last tokenize, anchored in
+     * the tokens it returned, or null if comments are not separated
+     */
+    public CoffeeScriptNativeComments getComments() {
+        return comments;
+    }
+    
+    private List<CoffeeScriptNativeToken> tokenizeAll(boolean rewrite, CoffeeScriptNativeCancellation cancellation, ForkJoinPool pool) throws CoffeeScriptNativeLexerException {
+        start(rewrite, cancellation);
+        int length = this.codeEnd;
+        int[] splits = (pool != null && !embedded && length >= 2 * SEGMENT_SIZE) ? scanSplitPoints(this.code, SEGMENT_SIZE, cancellation) : new int[0];
+        if(splits.length == 0) {
+            lex(this.codeStart, length, length);
+            return finish(pool);
+        }
+        int count = splits.length / 2 + 1;
+        int[] starts = new int[count];
+        for(int k = 1; k < count; k++) {
+            starts[k] = splits[2 * k - 2];
+        }
+        List<ForkJoinTask<Segment>> tasks = new ArrayList<ForkJoinTask<Segment>>(count);
+        try {
+            for(int k = 0; k < count; k++) {
+                tasks.add(pool.submit(new Segment(this, starts[k], (k + 1 < count) ? starts[k + 1] : length)));
+            }
+            List<CoffeeScriptNativeToken> result = new ArrayList<CoffeeScriptNativeToken>();
+            this.structure = new CoffeeScriptNativeStructure();
+            int k = 0;
+            while(k < count) {
+                Segment segment = join(tasks.get(k));
+                int last = k;
+                while(last + 1 < count && !segment.endsAt(starts[last + 1])) {
+                    last++;
+                    segment = new Segment(this, starts[k], (last + 1 < count) ? starts[last + 1] : length).call();
+                }
+                if(segment.failure != null) {
+                    throw segment.failure;
+                }
+                segment.appendTo(result, this.structure);
+                k = last + 1;
+            }
+            this.tokens = result;
+        } finally {
+            for(ForkJoinTask<Segment> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        return complete(pool);
+    }
+    
+    private void start(boolean rewrite, CoffeeScriptNativeCancellation cancellation) {
+        this.cancellation = cancellation;
+        this.comments = null;
+        this.rewrite = rewrite;
+        if(cancellation != null) {
+            cancellation.check();
+        }
+        if(embedded) {
+            // only the blanks ending the range are left to clean
+            while(codeEnd > codeStart && isWhitespace(code.charAt(codeEnd - 1))) {
+                codeEnd--;
+            }
+        } else {
+            this.code = clean(code);
+            this.codeEnd = this.code.length();
+            this.search = new CharSearch(this.code);
+        }
+        if(this.lines == null) {
+            // the line break clean adds before indented code lies on line -1
+            this.lines = new CoffeeScriptNativeLineTable(this.code, this.offsetBase, this.offsetBase, 0);
+        }
+    }
+    
+    // lexes from offset until a token ends at or after end, never looking past limit
+    private int lex(int offset, int end, int limit) throws CoffeeScriptNativeLexerException {
+        int consumed, i = offset;
+        this.position = i;
+        this.chunk = new Chunk(this.code, i, limit, this.search);
+        while (i < end && !this.chunk.isEmpty()) {            
+            checkCancelled();
             consumed = consume();
-            int[] coordinates = getLineAndColumnFromChunk(consumed);
-            this.chunkLine = coordinates[0];
-            this.chunkColumn = coordinates[1];
             i += consumed;
-            this.chunk = slice(this.code,i);
+            this.position = i;
+            this.chunk = new Chunk(this.code, i, limit, this.search);
             
         }
+        return i;
+    }
+    
+    private List<CoffeeScriptNativeToken> finish(ForkJoinPool pool) throws CoffeeScriptNativeLexerException {
         closeIndentation();
-        if((tag = stackPop(ends)) != null) {
-            error("missing "+ tag);
-        }
+        checkClosed();
+        return complete(pool);
+    }
+    
+    // separates the comments and rewrites the lexed tokens as requested
+    private List<CoffeeScriptNativeToken> complete(ForkJoinPool pool) {
+        CoffeeScriptNativeComments separated = separateComments ? CoffeeScriptNativeComments.separate(this.tokens, this.structure) : null;
+        List<CoffeeScriptNativeToken> result = this.tokens;
         if(rewrite) {
-            return new Rewriter(this.tokens).rewrite();
+            result = rewriteTokens(pool);
+            if(separated != null) {
+                separated = separated.anchor(result);
+            }
+        }
+        // only set once the tokens are complete, a cancelled rewrite leaves none
+        this.comments = separated;
+        return result;
+    }
+    
+    private List<CoffeeScriptNativeToken> rewriteTokens(ForkJoinPool pool) {
+        Rewriter rewriter = new Rewriter(this.tokens, cancellation);
+        rewriter.setFileId(fileId);
+        return rewriter.rewrite(pool);
+    }
+    
+    private static Segment join(ForkJoinTask<Segment> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw CoffeeScriptNativeCancelledException.INSTANCE;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+    
+    /**
+     * Part of the code lexed by its own lexer, which starts in the state the
+     * lexer is in after a top-level line break.
+     */
+    private static class Segment implements Callable<Segment> {
+        private final CoffeeScriptNativeLexer lexer;
+        private final int start;
+        private final int end;
+        private int position;
+        private CoffeeScriptNativeLexerException failure;
+
+        Segment(CoffeeScriptNativeLexer parent, int start, int end) {
+            this.lexer = new CoffeeScriptNativeLexer(parent.code, parent.lines, parent.offsetBase);
+            this.lexer.search = parent.search;
+            this.lexer.codeEnd = parent.codeEnd;
+            this.lexer.cancellation = parent.cancellation;
+            this.lexer.rewrite = parent.rewrite;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Segment call() {
+            if(start > 0) {
+                // stands for the line break the previous segment ends with
+                lexer.tokens.add(new CoffeeScriptNativeToken("TERMINATOR", "\\n", null, false));
+            }
+            int length = lexer.codeEnd;
+            try {
+                position = lexer.lex(start, end, Math.min(length, end + SEGMENT_LOOKAHEAD));
+                if(end == length) {
+                    lexer.closeIndentation();
+                    lexer.checkClosed();
+                }
+            } catch (CoffeeScriptNativeLexerException ex) {
+                failure = ex;
+            }
+            return this;
+        }
+
+        // whether the next segment may start at offset
+        boolean endsAt(int offset) {
+            if(failure != null || position != offset || !lexer.atTopLevel()) {
+                return false;
+            }
+            for(CoffeeScriptNativeToken token : lexer.tokens) {
+                String tag = token.getTag();
+                // a string cut off by the end of the segment
+                if(tag.equals("\"") || tag.equals("'") || tag.equals("`")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void appendTo(List<CoffeeScriptNativeToken> tokens, CoffeeScriptNativeStructure structure) {
+            // without the TERMINATOR standing for the previous segment
+            int skipped = (start > 0) ? 1 : 0;
+            structure.append(lexer.structure, tokens.size() - skipped);
+            tokens.addAll(lexer.tokens.subList(skipped, lexer.tokens.size()));
         }
-        return this.tokens;
+    }
+    
+    // whether the state is the one after a line break at the top level
+    private boolean atTopLevel() {
+        CoffeeScriptNativeToken last = last(tokens);
+        return indent == 0 && indebt == 0 && outdebt == 0 && baseIndent == 0 && !seenFor && indentCount == 0 && endCount == 0
+                && last != null && nullSafeCompare(last.getTag(), "TERMINATOR") && nullSafeCompare(last.getValue(), "\\n")
+                && !last.getSpaced() && !last.getReserved();
     }
     
     private int consume() throws CoffeeScriptNativeLexerException {
@@ -158,14 +469,36 @@ public class CoffeeScriptNativeLexer {
         if(code.startsWith(UTF8_BOM)) {
             code = slice(code, 1);
         }
-        code = code.replaceAll("\\r", "").replaceAll(TRAILING_SPACES.pattern(), "");
-        if(getMatcher(WHITESPACE, code).find()) {
+        code = removeReturns(code);
+        // \s+$ backtracks over every whitespace run, so trailing whitespace is cut by hand
+        int end = code.length();
+        while(end > 0 && isWhitespace(code.charAt(end - 1))) {
+            end--;
+        }
+        code = code.substring(0, end);
+        if(end > 0 && code.charAt(0) != '\n' && isWhitespace(code.charAt(0))) {
             code = "\n" + code;
-            this.chunkLine--;
+            this.offsetBase--;
         }
         return code;
     }
 
+    // like replace("\r", ""), but polling the cancellation between the line breaks
+    private String removeReturns(String code) {
+        int r = code.indexOf('\r');
+        if(r == -1) {
+            return code;
+        }
+        StringBuilder sb = new StringBuilder(code.length());
+        int from = 0;
+        for(; r != -1; r = code.indexOf('\r', from)) {
+            checkCancelled();
+            sb.append(code, from, r);
+            from = r + 1;
+        }
+        return sb.append(code, from, code.length()).toString();
+    }
+
     private int identifierToken() throws CoffeeScriptNativeLexerException {
         String tag;
         char first = this.chunk.charAt(0);
@@ -177,6 +510,8 @@ public class CoffeeScriptNativeLexer {
         String input = m.group(0), id = m.group(1), colon = m.group(2);
         int idLength = id.length();
         
+        KeywordClassifier.Keyword keyword = KEYWORDS.lookup(id, 0, idLength);
+        id = (keyword != null) ? keyword.name : SymbolTable.SHARED.intern(id);
         if(nullSafeCompare(id, "own") && nullSafeCompare(lastTag(tokens), "FOR")) {
             token("OWN", id, 0, -1);
             return id.length();        
@@ -187,69 +522,46 @@ public class CoffeeScriptNativeLexer {
                 !prev.getSpaced() && nullSafeCompare(prev.getTag(),"@"));
         tag = "IDENTIFIER";
         CoffeeScriptNativeToken poppedToken = null;
-        if(!forcedIdentifier && (containsNullSafe(id, JS_KEYWORDS) || containsNullSafe(id, COFFEE_KEYWORDS))) {
-            tag = id.toUpperCase();
+        if(!forcedIdentifier && keyword != null && keyword.keyword) {
+            tag = keyword.tag;
             
-            if(nullSafeCompare(tag, "WHEN") && containsNullSafe(lastTag(tokens), LINE_BREAK)) {
+            if(keyword.kind == KeywordClassifier.WHEN && containsNullSafe(lastTag(tokens), LINE_BREAK)) {
                 tag = "LEADING_WHEN";
-            } else if(nullSafeCompare(tag, "FOR")) {
+            } else if(keyword.kind == KeywordClassifier.FOR) {
                 this.seenFor = true;
-            } else if(nullSafeCompare(tag, "UNLESS")) {
-                tag = "IF";
-            } else if(containsNullSafe(tag, UNARY)) {
-                tag = "UNARY";
-            } else if(containsNullSafe(tag, RELATION)) {
-                if(!nullSafeCompare(tag, "INSTANCEOF") && this.seenFor) {
-                    tag = "FOR" + tag;
+            } else if(keyword.kind == KeywordClassifier.RELATION) {
+                if(keyword.forTag != null && this.seenFor) {
+                    tag = keyword.forTag;
                     this.seenFor = false;
                 } else {
                     tag = "RELATION";
                     if(nullSafeCompare(lastValue(tokens), "!")) {
                         poppedToken = tokensPop();
-                        id = "!" + id;
+                        id = SymbolTable.SHARED.intern("!" + id);
+                        keyword = null;
                     }
                 }                
             }
         }
         boolean reserved = false;
-        if(containsNullSafe(id, JS_FORBIDDEN)) {
+        if(keyword != null && keyword.forbidden) {
             if(forcedIdentifier) {
                 tag = "IDENTIFIER";
                 reserved = true;
-            } else if(containsNullSafe(id, RESERVED)) {
+            } else if(keyword.reserved) {
                 error("reserved word " + id);
             }
         }
-        if(!forcedIdentifier) {
-            if(containsNullSafe(id, COFFEE_ALIASES)) {
-                id = COFFEE_ALIAS_MAP.get(id);
-            }
-            switch(id) {
-                case "!":
-                    tag = "UNARY";
-                    break;
-                case "==":
-                case "!=":
-                    tag = "COMPARE";
-                    break;
-                case "&&":
-                case "||":
-                    tag = "LOGIC";
-                    break;
-                case "true":
-                case "false":
-                    tag = "BOOL";
-                    break;
-                case "break":
-                case "continue":
-                    tag = "STATEMENT";
+        if(!forcedIdentifier && keyword != null && keyword.valueTag != null) {
+            if(keyword.alias != null) {
+                id = keyword.alias;
             }
+            tag = keyword.valueTag;
         }
         CoffeeScriptNativeToken tagToken = token(tag, id, 0, idLength);
         tagToken.setReserved(reserved);
         if(poppedToken != null) {
-            tagToken.setFirstColumn(poppedToken.getFirstColumn());
-            tagToken.setFirstLine(poppedToken.getFirstLine());
+            tagToken.setOffsets(this.lines, poppedToken.getStartOffset(), tagToken.getEndOffset());
         }
         if(colon != null) {
             int colonOffset = input.lastIndexOf(":");
@@ -259,26 +571,26 @@ public class CoffeeScriptNativeLexer {
     }
 
     private int commentToken() throws CoffeeScriptNativeLexerException {
-        Matcher pre = getMatcher(PRE_COMMENT, this.chunk);
-        if(!pre.find()) return 0;
-        Matcher m = getMatcher(COMMENT, this.chunk);
-        if(!m.find()) {
-            return 0;
-        }
-        String comment = m.group(0), here = m.group(1);        
-        if(here != null) {
+        if(startsHerecomment(this.chunk, 0)) {
+            int[] bounds = scanHerecomment(this.chunk, 0);
+            if(bounds == null) {
+                error("missing ###");
+            }
+            String here = this.chunk.substring(3, bounds[0]);
             Map<String, Object> options = new HashMap<String,Object>();
             options.put("herecomment", true);
             options.put("indent", repeat(" ", this.indent));
-            token("HERECOMMENT", sanitizeHeredoc(here, options), 0, comment.length());
+            token("HERECOMMENT", sanitizeHeredoc(here, options), 0, bounds[1]);
+            return bounds[1];
         }
-        return comment.length();
+        int end = scanLineComments(this.chunk, 0);
+        return (end == -1) ? 0 : end;
     }
 
     private int whitespaceToken() {
-        Matcher m = getMatcher(WHITESPACE, this.chunk);
-        boolean found;
-        if(!((found = m.find()) || (this.chunk.charAt(0)) == '\n')) {
+        int length = this.chunk.skipHorizontalWhitespace(0);
+        boolean found = length > 0;
+        if(!(found || (this.chunk.charAt(0)) == '\n')) {
             return 0;
         }
         CoffeeScriptNativeToken prev = last(tokens);
@@ -289,11 +601,7 @@ public class CoffeeScriptNativeLexer {
                 prev.setNewLine(true);
             }
         }
-        if(found) {
-            return m.group(0).length();
-        } else {
-            return 0;
-        }
+        return length;
     }
 
     private int lineToken() throws CoffeeScriptNativeLexerException {
@@ -302,11 +610,12 @@ public class CoffeeScriptNativeLexer {
         int size, diff;
         boolean noNewLines;
         if(this.chunk.charAt(0) != '\n') return 0;
-        Matcher m = getMatcher(MULTI_DENT, this.chunk);
-        if(!m.find()) {
-            return 0;
+        // (?:\n[^\n\S]*)+
+        int end = 0;
+        while(end < this.chunk.length() && this.chunk.charAt(end) == '\n') {
+            end = this.chunk.skipHorizontalWhitespace(end + 1);
         }
-        indent = m.group(0);
+        indent = this.chunk.substring(0, end);
         this.seenFor = false;
         size = indent.length() - 1 - indent.lastIndexOf("\n");
         noNewLines = unfinished();
@@ -329,9 +638,13 @@ public class CoffeeScriptNativeLexer {
                 return indent.length();
             }
             diff = size - this.indent + this.outdebt;
-            token("INDENT",String.valueOf(diff), indent.length()-size,size);
-            this.indents.push(diff);
-            this.ends.push("OUTDENT");
+            CoffeeScriptNativeToken indentToken = token("INDENT",SymbolTable.valueOf(diff), indent.length()-size,size);
+            structure.open(tokens.size() - 1, indentToken, true);
+            if(indentCount == indents.length) {
+                indents = Arrays.copyOf(indents, indentCount * 2);
+            }
+            this.indents[indentCount++] = diff;
+            pushEnd(OUTDENT_END);
             this.outdebt = this.indebt = 0;
             this.indent = size;
         } else if(size < this.baseIndent) {
@@ -345,38 +658,35 @@ public class CoffeeScriptNativeLexer {
 
     private int heredocToken() throws CoffeeScriptNativeLexerException {
         if(!(this.chunk.startsWith("\"\"\"") || this.chunk.startsWith("'''"))) return 0;
-        Matcher m = getMatcher(HEREDOC, this.chunk);
-        if(!m.find()) {
-            return 0;
+        int[] bounds = scanHeredoc(this.chunk, 0);
+        if(bounds == null) {
+            error("missing " + this.chunk.substring(0, Math.min(3, this.chunk.length())));
+        }
+        String heredoc = this.chunk.substring(0, bounds[1]);
+        int[] interpolations = (heredoc.charAt(0) == '"') ? scanInterpolations(heredoc, 3, bounds[0]) : null;
+        if(interpolations != null) {
+            interpolatedToken(heredoc, interpolations);
+        } else {
+            token("STRING", heredoc, 0, heredoc.length());
         }
-        String heredoc = m.group(0);
-        String quote = String.valueOf(heredoc.charAt(0));
-        Map<String, Object> options = new HashMap<String, Object>();
-        options.put("quote", quote);
-        options.put("indent", null);
-        String doc = sanitizeHeredoc(code, options);
-        token("STRING", heredoc, 0, heredoc.length());
         return heredoc.length();
     }
 
     private int stringToken() {
-        String quote = String.valueOf(this.chunk.charAt(0));
-        String string = null;
-        switch(quote) {
-            case "'" :
-                Matcher m = getMatcher(SIMPLESTR, this.chunk);
-                if(!m.find()) return 0;
-                string = m.group(0);
-                break;
-            case "\"": 
-                Matcher m1 = getMatcher(QUOTED_STR, this.chunk);
-                if(!m1.find()) return 0;
-                string = m1.group(0);
-                break;
+        char quote = this.chunk.charAt(0);
+        if(quote != '\'' && quote != '"') {
+            return 0;
         }
-        if(string == null) {
+        int end = scanQuote(quote, true);
+        if(end == -1) {
             return 0;
         }
+        String string = this.chunk.substring(0, end);
+        int[] interpolations = (quote == '"') ? scanInterpolations(string, 1, string.length() - 1) : null;
+        if(interpolations != null) {
+            interpolatedToken(string, interpolations);
+            return string.length();
+        }
         token("STRING", string, 0, string.length());
         return string.length();
     }
@@ -417,13 +727,12 @@ public class CoffeeScriptNativeLexer {
             return 0;
         }
         
-        Matcher m = getMatcher(REGEX, this.chunk);
-        if(!m.find()) {
+        int[] bounds = scanRegex(this.chunk, 0);
+        if(bounds == null) {
             return 0;
         }
-        String match = m.group(0);
-        String regex = m.group(1);
-        String flags = m.group(2);
+        String regex = this.chunk.substring(0, bounds[0]);
+        String flags = this.chunk.substring(bounds[0], bounds[1]);
         if(nullSafeCompare(regex,"//")) {
             return 0;
         }
@@ -432,44 +741,61 @@ public class CoffeeScriptNativeLexer {
             error("regular expressions cannot begin with `*`");
         }
 
-        token("REGEX", regex + flags, 0, match.length());
+        token("REGEX", regex + flags, 0, bounds[1]);
         
-        return match.length();
+        return bounds[1];
         
     }
 
     private int jsToken() {
         if(this.chunk.charAt(0) != '`') return 0;
-        Matcher m = getMatcher(JSTOKEN, this.chunk);
-        if(!(this.chunk.charAt(0) == '`' && m.find())) {
+        int end = scanQuote('`', false);
+        if(end == -1) {
             return 0;
         }
-        String script  = m.group(0);
+        String script = this.chunk.substring(0, end);
         token("JS", slice(script, 1, -1), 0, script.length());
         return script.length();
     }
 
+    // end of the quoted run the chunk starts with or -1; a backslash escapes
+    // the next char, but in embedded JavaScript not a line break
+    private int scanQuote(char quote, boolean lineEscapes) {
+        int p = 1;
+        while((p = this.chunk.indexOfAny(p, quote, '\\', '\\')) != -1) {
+            if(this.chunk.charAt(p) == quote) {
+                return p + 1;
+            }
+            if(p + 1 >= this.chunk.length() || (!lineEscapes && isLineTerminator(this.chunk.charAt(p + 1)))) {
+                return -1;
+            }
+            p += 2;
+        }
+        return -1;
+    }
+
     private int literalToken() throws CoffeeScriptNativeLexerException {
 
         Matcher m = getMatcher(OPERATOR, this.chunk);
         String value;
         if(m.find()) {
-            value = m.group(0);
+            value = SymbolTable.constant(m.group(0));
             if(testRegexp(CODE, value)) {
                 tagParameters();
             }
         } else {
-            value = String.valueOf(this.chunk.charAt(0));
+            value = SymbolTable.constant(this.chunk.charAt(0));
         }
         String tag = value;
         CoffeeScriptNativeToken prev = last(tokens);
         if(nullSafeCompare(value, "=") && prev != null) {
-            if(!prev.getReserved() && containsNullSafe(prev.getValue(), JS_FORBIDDEN)) {
+            KeywordClassifier.Keyword keyword = KEYWORDS.lookup(prev.getValue());
+            if(!prev.getReserved() && keyword != null && keyword.forbidden) {
                 error("reserved word \"" + (lastValue(tokens)) + "\" can't be assigned");
             }
             if(nullSafeCompare(prev.getValue(), "||") || nullSafeCompare(prev.getValue(), "&&")) {
                 prev.setTag("COMPOUND_ASSIGN");
-                prev.setValue(prev.getValue() + "=");
+                prev.setValue(SymbolTable.constant(prev.getValue() + "="));
                 return value.length();
             }
         }
@@ -503,41 +829,42 @@ public class CoffeeScriptNativeLexer {
                 }
             }
         }
+        boolean opening = false, closing = false;
         switch (value) {
             case "(":
             case "{":
             case "[":                
-                this.ends.push(Rewriter.getInverses().get(value));
+                pushEnd(closer(value.charAt(0)));
+                opening = true;
                 break;
             case ")":
             case "}":
             case "]":
-                pair(value);
+                pair(value.charAt(0));
+                closing = true;
+        }
+        CoffeeScriptNativeToken literal = token(tag, value,0, -1);
+        if(opening) {
+            structure.open(tokens.size() - 1, literal, false);
+        } else if(closing) {
+            structure.close(tokens.size() - 1, literal, false);
+        }
+        if(nullSafeCompare(value, "(")) {
+            if(parenCount == parens.length) {
+                parens = Arrays.copyOf(parens, parenCount * 2);
+            }
+            parens[parenCount++] = tokens.size() - 1;
+        } else if(nullSafeCompare(value, ")")) {
+            closedParen = (parenCount > 0) ? parens[--parenCount] : -1;
         }
-        token(tag, value,0, -1);
         return value.length();
     }
 
-    private int[] getLineAndColumnFromChunk(int offset) {
-        String string;
-        if(offset == 0) {
-            return new int[]{this.chunkLine, this.chunkColumn};
-        }
-        if (offset >= this.chunk.length()) {
-            string = this.chunk;
-        } else {
-            string = (offset == 0) ? this.chunk : slice(this.chunk, 0, (offset - 1) + 1);
-        }
-        int lineCount = count(string,"\n");
-        int column = this.chunkColumn;
-        
-        if(lineCount > 0) {
-            String[] lines = string.replaceAll("\n", "#\n").split("\n");
-            column = lines[lines.length-1].length()-1;
-        } else {
-            column += string.length();
-        }
-        return new int[] {this.chunkLine + lineCount, column};
+    // source offset of an offset in the chunk, negative ones counting from the end like slice
+    private int offsetOf(int offsetInChunk) {
+        int length = this.chunk.length();
+        int clamped = (offsetInChunk < 0) ? Math.max(length + offsetInChunk, 0) : Math.min(offsetInChunk, length);
+        return this.offsetBase + this.position + clamped;
     }
 
     private void closeIndentation() throws CoffeeScriptNativeLexerException {
@@ -555,7 +882,7 @@ public class CoffeeScriptNativeLexer {
         return doc;
     }
     
-    private boolean testRegexp(Pattern pattern, String s) {        
+    private boolean testRegexp(Pattern pattern, CharSequence s) {        
         return getMatcher(pattern, s).find();
     }
     
@@ -566,14 +893,22 @@ public class CoffeeScriptNativeLexer {
             length = value.length();
         }
         
-        int[] first = getLineAndColumnFromChunk(offsetInChunk);
+        int first = offsetOf(offsetInChunk);
         int lastCharacter = Math.max(0, length-1);
-        int[] last = getLineAndColumnFromChunk(offsetInChunk + lastCharacter);
+        int last = offsetOf(offsetInChunk + lastCharacter);
         CoffeeScriptNativeToken t = new CoffeeScriptNativeToken(tag, value, null, false);
-        t.setLocationData(first, last);
+        t.setOffsets(this.lines, first, (length > 0) ? last + 1 : first);
         return t;
         
     }
+    private CoffeeScriptNativeToken interpolatedToken(String value, int[] interpolations) {
+        CoffeeScriptNativeToken t = new CoffeeScriptNativeStringToken(value, interpolations, this.rewrite);
+        int first = offsetOf(0);
+        t.setOffsets(this.lines, first, first + value.length());
+        this.tokens.add(t);
+        return t;
+    }
+    
     private CoffeeScriptNativeToken token(String tag, String value, int offsetInChunk, int length) {
         CoffeeScriptNativeToken t = makeToken(tag, value, offsetInChunk, length);
         this.tokens.add(t);
@@ -617,7 +952,7 @@ public class CoffeeScriptNativeLexer {
         }
         int decreasedIndent = this.indent - moveOut;
         while (moveOut > 0) {
-            lastIndent = (int) intStackPeek(this.indents);
+            lastIndent = (indentCount > 0) ? this.indents[indentCount - 1] : -1;
             if(lastIndent == -1 || lastIndent == 0) {
                 moveOut = 0;
             } else if(lastIndent == this.outdebt) {
@@ -627,15 +962,16 @@ public class CoffeeScriptNativeLexer {
                 this.outdebt -= lastIndent;
                 moveOut -= lastIndent;
             } else {
-                dent = intStackPop(this.indents) + this.outdebt;
+                dent = this.indents[--indentCount] + this.outdebt;
                 String part = (outdentLength != -1 && outdentLength != 0) ? String.valueOf(this.chunk.charAt(outdentLength)) : null;
                 if((outdentLength != -1 && outdentLength != 0) && containsNullSafe(part, INDENTABLE_CLOSERS)) {
                     decreasedIndent -= dent - moveOut;
                     moveOut = dent;
                 }
                 this.outdebt = 0;
-                pair("OUTDENT");
-                token("OUTDENT", String.valueOf(moveOut), 0 , outdentLength);
+                pair(OUTDENT_END);
+                CoffeeScriptNativeToken outdentToken = token("OUTDENT", SymbolTable.valueOf(moveOut), 0 , outdentLength);
+                structure.close(tokens.size() - 1, outdentToken, true);
                 moveOut -= dent;
             }
         }
@@ -653,63 +989,96 @@ public class CoffeeScriptNativeLexer {
     }
 
     private int heregexToken() throws CoffeeScriptNativeLexerException {
-        Matcher m = getMatcher(HEREGEX,this.chunk);
-        if(!m.find()) {
+        if(!this.chunk.startsWith("///")) {
             return 0;
         }
-        String heregex = m.group(0);
-        String body = m.group(1);
-        String flags = m.group(2);
+        int[] bounds = scanHeregex(this.chunk, 0);
+        if(bounds == null) {
+            error("missing ///");
+        }
+        String body = this.chunk.substring(3, bounds[0]);
+        String flags = this.chunk.substring(bounds[0] + 3, bounds[1]);
         if(getMatcher(HEREGEX_START_TEST,body).find()) {
             error("regular expressions cannot begin with `*`");
         }
-        token("REGEX", "/" + body + "/" + flags, 0, heregex.length());
-        return heregex.length();
+        token("REGEX", "/" + body + "/" + flags, 0, bounds[1]);
+        return bounds[1];
     }
 
+    /**
+     * Retags the parentheses before an arrow as parameters. The opening one is
+     * the one the last <code>)</code> closed, kept by literalToken; a call
+     * remains a call and stays open for the parentheses that follow, since
+     * its closing parenthesis becomes a PARAM_END.
+     */
     private void tagParameters() {
-        Stack<CoffeeScriptNativeToken> stack = new Stack<CoffeeScriptNativeToken>();
         if(!nullSafeCompare(lastTag(tokens), ")")) {
             return;
         }
-        int i = tokens.size();
-        CoffeeScriptNativeToken t = tokens.get(--i);
-        t.setTag("PARAM_END");
-        
-        while(i > 0) {
-            t = tokens.get(--i);
-            switch(t.getTag()) {
-                case ")" : 
-                    stack.push(t);
-                    break;
-                case "(":
-                case "CALL_START":
-                    if(!stack.isEmpty()) {
-                        stack.pop();
-                    } else if(nullSafeCompare(t.getTag(),"(")) {
-                        t.setTag("PARAM_START");
-                        return;
-                    } else {
-                        return;
-                    }
-            }
+        last(tokens).setTag("PARAM_END");
+        if(closedParen == -1) {
+            return;
         }
+        CoffeeScriptNativeToken t = tokens.get(closedParen);
+        if(nullSafeCompare(t.getTag(), "(")) {
+            t.setTag("PARAM_START");
+        } else {
+            parens[parenCount++] = closedParen;
+        }
+        closedParen = -1;
     }
 
-    private void pair(String tag) throws CoffeeScriptNativeLexerException {
-        String wanted;
-        if(!nullSafeCompare(tag, wanted = stackPeek(this.ends))) {
-            if(!nullSafeCompare(wanted, "OUTDENT")) {
-                error("unmatched "+ tag);
+    /**
+     * Closes the innermost block with <code>end</code>, first closing the
+     * indentation levels opened inside of a bracket it closes.
+     */
+    private void pair(char end) throws CoffeeScriptNativeLexerException {
+        while(endCount == 0 || this.ends[endCount - 1] != end) {
+            if(endCount == 0 || this.ends[endCount - 1] != OUTDENT_END) {
+                error("unmatched " + endName(end));
             }
-            outdentToken(intStackPeek(this.indents), true, -1);
-            pair(tag);
-            return;
+            outdentToken((indentCount > 0) ? this.indents[indentCount - 1] : -1, true, -1);
+        }
+        endCount--;
+    }
+    
+    private void pushEnd(char end) {
+        if(endCount == ends.length) {
+            ends = Arrays.copyOf(ends, endCount * 2);
+        }
+        ends[endCount++] = end;
+    }
+    
+    // fails on a block left open at the end of the code
+    private void checkClosed() throws CoffeeScriptNativeLexerException {
+        if(endCount > 0) {
+            error("missing " + endName(ends[--endCount]));
+        }
+    }
+    
+    // not taken from the inverses of the Rewriter, which lexing without rewriting never initializes
+    private static char closer(char opener) {
+        switch(opener) {
+            case '(':
+                return ')';
+            case '[':
+                return ']';
+            default:
+                return '}';
+        }
+    }
+    
+    private static String endName(char end) {
+        return (end == OUTDENT_END) ? "OUTDENT" : String.valueOf(end);
+    }
+    
+    private void checkCancelled() {
+        if(cancellation != null && (++ticks & Rewriter.CANCELLATION_CHECK_MASK) == 0) {
+            cancellation.check();
         }
-        stackPop(this.ends);
     }
     
-    private Matcher getMatcher(Pattern p, String textToMatch) {
+    private Matcher getMatcher(Pattern p, CharSequence textToMatch) {
         Matcher m;
         if(matchers.containsKey(p.pattern())) {
             m = matchers.get(p.pattern());
@@ -725,8 +1094,8 @@ public class CoffeeScriptNativeLexer {
         if(offset == null) {
             offset = 0;
         }        
-        int[] location = getLineAndColumnFromChunk(offset);
-        throw new CoffeeScriptNativeLexerException(message, location[1], location[0]);
+        int location = offsetOf(offset);
+        throw new CoffeeScriptNativeLexerException(message, this.lines.getColumn(location), this.lines.getLine(location));
     }    
     
     private void error(String message) throws CoffeeScriptNativeLexerException {
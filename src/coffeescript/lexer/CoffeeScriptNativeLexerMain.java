@@ -0,0 +1,275 @@
+package coffeescript.lexer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line lexer for build scripts, which lexes files or the standard
+ * input and writes their tokens.
+ * <pre>
+ * java -jar CoffeeScriptLexerRewrite.jar [-r] [-b] [-t] [-o output] [file | -]...
+ *   -r  rewrite the tokens
+ *   -b  binary output instead of text
+ *   -t  report the number of tokens and the time taken, including the JVM
+ *       startup, on the standard error
+ *   -o  write to output instead of the standard output
+ * </pre>
+ * The text output has a <code># path</code> line per file followed by a line
+ * per token with its tag, start offset, end offset and value, separated by
+ * tabs; backslashes, tabs and line breaks in values are escaped. The binary
+ * output is described at {@link BinaryOutput}. Errors are reported as
+ * <code>path:line:column: message</code> on the standard error and make the
+ * exit status 1.
+ * <p>
+ * Short runs are dominated by the JVM startup. The <code>cds-archive</code>
+ * target of the build creates a class data sharing archive by running
+ * <code>--train</code>, which lexes a built-in sample; runs started with
+ * <code>-XX:SharedArchiveFile=dist/lexer.jsa</code> then map the classes of
+ * the lexer and the JDK instead of loading them.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeLexerMain {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String STDIN = "-";
+    private static final int TRAINING_RUNS = 50;
+    // touches every kind of token and every pass of the rewriter
+    private static final String TRAINING_SAMPLE = "###\nHeader\n###\n"
+            + "class Shape extends Base\n  @count: 0\n  constructor: (@name, sides = 4) ->\n    super name\n"
+            + "  area: (x) => x * x unless x < 0\n  describe: ->\n    \"\"\"\n    #{@name} with #{sides} sides\n    \"\"\"\n"
+            + "list = [1, 2.5, 0x1f, 0b101, 1e3]\nobj = a: 1, b: 'two', c: \"three #{list[0]}\"\n"
+            + "r = /^[a-z]+$/gi\nh = ///\n  \\d+ # digits\n///\nj = `function() {}`\n"
+            + "for own k, v of obj when v?\n  console.log k, v\nwhile i-- > 0 then i += 1\n"
+            + "try\n  f?.g?()\ncatch e\n  throw e\nfinally\n  done()\n"
+            + "switch x\n  when 1, 2 then 'small'\n  else 'big'\n"
+            + "y = if a and not b then c ? d else e or f\nz = (n for n in [1..10] by 2)\n"
+            + "x = do -> yes isnt no\n# comment\nlong = a +\n  b\n";
+
+    private CoffeeScriptNativeLexerMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        boolean rewrite = false, binary = false, time = false, train = false;
+        String output = null;
+        List<String> files = new ArrayList<String>();
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("-r")) {
+                rewrite = true;
+            } else if(arg.equals("-b")) {
+                binary = true;
+            } else if(arg.equals("-t")) {
+                time = true;
+            } else if(arg.equals("--train")) {
+                train = true;
+            } else if(arg.equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else if(arg.startsWith("-") && !arg.equals(STDIN)) {
+                System.err.println("usage: [-r] [-b] [-t] [-o output] [file | -]...");
+                System.exit(2);
+                return;
+            } else {
+                files.add(arg);
+            }
+        }
+        if(train) {
+            train();
+            return;
+        }
+        if(files.isEmpty()) {
+            files.add(STDIN);
+        }
+        OutputStream out = new BufferedOutputStream((output != null) ? new FileOutputStream(output) : System.out, 64 * 1024);
+        Output tokens = binary ? new BinaryOutput(out) : new TextOutput(out);
+        int failures = 0, count = 0;
+        for(String file : files) {
+            String code;
+            try {
+                code = new String(file.equals(STDIN) ? readFully(System.in) : Files.readAllBytes(Paths.get(file)), UTF8);
+            } catch (NoSuchFileException ex) {
+                System.err.println(file + ": no such file");
+                failures++;
+                continue;
+            } catch (IOException ex) {
+                System.err.println(file + ": " + ex.getMessage());
+                failures++;
+                continue;
+            }
+            CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(code);
+            lexer.setFileId(file);
+            try {
+                List<CoffeeScriptNativeToken> list = lexer.tokenize(rewrite);
+                tokens.write(file, list);
+                count += list.size();
+            } catch (CoffeeScriptNativeLexerException ex) {
+                System.err.println(file + ":" + (ex.getLine() + 1) + ":" + (ex.getColumn() + 1) + ": " + ex.getMessage());
+                failures++;
+            }
+        }
+        tokens.close();
+        if(time) {
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            // the management classes are only loaded when asked for
+            long total = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.err.println(files.size() + " files, " + count + " tokens in " + elapsed + " ms, " + total + " ms since the JVM started");
+        }
+        if(failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void train() throws IOException {
+        Output text = new TextOutput(new ByteArrayOutputStream());
+        Output binary = new BinaryOutput(new ByteArrayOutputStream());
+        for(int run = 0; run < TRAINING_RUNS; run++) {
+            try {
+                text.write("sample", new CoffeeScriptNativeLexer(TRAINING_SAMPLE).tokenize(false));
+                binary.write("sample", new CoffeeScriptNativeLexer(TRAINING_SAMPLE).tokenize(true));
+                new CoffeeScriptNativeLexer("x = )\n").tokenize(false);
+            } catch (CoffeeScriptNativeLexerException ex) {
+                // expected for the last one
+            }
+        }
+        text.close();
+        binary.close();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface Output {
+        void write(String file, List<CoffeeScriptNativeToken> tokens) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static final class TextOutput implements Output {
+        private final Writer out;
+
+        TextOutput(OutputStream out) {
+            this.out = new OutputStreamWriter(out, UTF8);
+        }
+
+        @Override
+        public void write(String file, List<CoffeeScriptNativeToken> tokens) throws IOException {
+            out.write("# ");
+            out.write(file);
+            out.write('\n');
+            for(CoffeeScriptNativeToken token : tokens) {
+                out.write(token.getTag());
+                out.write('\t');
+                out.write(Integer.toString(token.getStartOffset()));
+                out.write('\t');
+                out.write(Integer.toString(token.getEndOffset()));
+                out.write('\t');
+                escape(token.getValue());
+                out.write('\n');
+            }
+        }
+
+        private void escape(String value) throws IOException {
+            if(value == null) {
+                return;
+            }
+            int length = value.length();
+            for(int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                switch(c) {
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    default:
+                        out.write(c);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Binary output: for every file its path as UTF-8 (an int length and the
+     * bytes) and the number of tokens, then for every token its tag id as a
+     * short, the tag as UTF-8 if the id is used for the first time in the
+     * output, the start offset and length as ints and the value as UTF-8, a
+     * length of -1 standing for <code>null</code>.
+     */
+    private static final class BinaryOutput implements Output {
+        private final DataOutputStream out;
+        private final Map<String, Integer> tags = new HashMap<String, Integer>();
+
+        BinaryOutput(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(String file, List<CoffeeScriptNativeToken> tokens) throws IOException {
+            writeString(file);
+            out.writeInt(tokens.size());
+            for(CoffeeScriptNativeToken token : tokens) {
+                String tag = token.getTag();
+                Integer id = tags.get(tag);
+                if(id == null) {
+                    id = tags.size();
+                    tags.put(tag, id);
+                    out.writeShort(id);
+                    writeString(tag);
+                } else {
+                    out.writeShort(id);
+                }
+                out.writeInt(token.getStartOffset());
+                out.writeInt(token.getEndOffset() - token.getStartOffset());
+                writeString(token.getValue());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            if(s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
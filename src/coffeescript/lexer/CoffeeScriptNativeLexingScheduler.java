@@ -0,0 +1,542 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lexes documents in the background as they change, like the files open in
+ * an editor. Changes of a document arriving within the debounce period of
+ * each other are coalesced into one lex of its latest text; a change to a
+ * document being lexed cancels that lex. A fixed number of worker threads
+ * lex the documents whose debounce period has passed, focused documents
+ * before visible ones and those before the rest, so CPU use stays bounded
+ * when many documents change at once.
+ * <p>
+ * At most <code>maxQueued</code> documents wait in the queue. A change of
+ * another document never blocks the caller and is never lost: it moves the
+ * queued document of the lowest priority, changed last, out of the queue if
+ * that has a lower priority than the change, and otherwise is moved out
+ * itself. Documents moved out are deferred, keeping only their latest text
+ * like queued ones, and enter the queue, most urgent first, as it drains, so
+ * memory stays bounded by the number of documents. Results are delivered through
+ * the futures returned for the changes, all coalesced changes getting the
+ * tokens of the latest text, and to the {@link Callback} of the scheduler,
+ * which is called on the worker thread. Exceptions thrown by the callback
+ * and errors thrown while lexing go to the uncaught exception handler of the
+ * worker, which goes on with the next document.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeLexingScheduler {
+
+    public enum Priority {
+        FOCUSED, VISIBLE, BACKGROUND
+    }
+
+    /**
+     * Receives the results of the scheduler on its worker threads.
+     */
+    public interface Callback {
+
+        void lexed(Object document, List<CoffeeScriptNativeToken> tokens);
+
+        void failed(Object document, Exception ex);
+    }
+
+    private final boolean rewrite;
+    private final long debounceNanos;
+    private final int maxQueued;
+    private final Callback callback;
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when a request is queued or the scheduler shuts down
+    private final Condition changed = lock.newCondition();
+    private final Map<Object, Request> queued = new LinkedHashMap<Object, Request>();
+    // changed documents waiting for room in the queue
+    private final Map<Object, Request> deferred = new LinkedHashMap<Object, Request>();
+    private final Map<Object, Request> running = new HashMap<Object, Request>();
+    private final Thread[] workers;
+    private boolean shutdown;
+    private long completed;
+    private long coalesced;
+    private long deferrals;
+    private long totalLatency;
+    private long maxLatency;
+
+    /**
+     * @param threads number of worker threads
+     * @param maxQueued number of documents that may wait in the queue, more
+     * are deferred
+     * @param rewrite whether to rewrite the tokens
+     * @param debounce period without changes after which a document is lexed
+     * @param callback receives the results or null
+     */
+    public CoffeeScriptNativeLexingScheduler(int threads, int maxQueued, boolean rewrite, long debounce, TimeUnit unit, Callback callback) {
+        if(threads < 1 || maxQueued < 1) {
+            throw new IllegalArgumentException("threads and maxQueued must be positive");
+        }
+        this.rewrite = rewrite;
+        this.debounceNanos = unit.toNanos(debounce);
+        this.maxQueued = maxQueued;
+        this.callback = callback;
+        this.workers = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Worker(), "CoffeeScript lexer " + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Schedules lexing <code>code</code>, the new text of
+     * <code>document</code>, which is compared by equals.
+     *
+     * @return future of the tokens of the latest text of the document as of
+     * its lex, which may be that of a later change; cancelled only on
+     * shutdown
+     */
+    public Future<List<CoffeeScriptNativeToken>> documentChanged(Object document, String code, Priority priority) {
+        Result result = new Result();
+        lock.lock();
+        try {
+            if(shutdown) {
+                result.cancel(false);
+                return result;
+            }
+            long now = System.nanoTime();
+            Request request = queued.get(document);
+            if(request == null) {
+                request = deferred.get(document);
+            }
+            if(request == null) {
+                request = new Request(document, now);
+                Request current = running.remove(document);
+                if(current != null) {
+                    // its lex is stale, the new one answers its waiters
+                    current.cancellation.cancel();
+                    current.superseded = true;
+                    request.firstChange = current.firstChange;
+                    request.results.addAll(current.results);
+                    coalesced++;
+                }
+                request.code = code;
+                request.priority = priority;
+                request.due = now + debounceNanos;
+                request.results.add(result);
+                admit(request);
+            } else {
+                coalesced++;
+                request.code = code;
+                request.priority = priority;
+                request.due = now + debounceNanos;
+                request.results.add(result);
+                reconsider(request);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    // queues the request, making room by deferring the least urgent queued one unless that is at
+    // least as urgent as the request, which is deferred then
+    private void admit(Request request) {
+        if(queued.size() >= maxQueued) {
+            Request least = leastUrgent(queued);
+            deferrals++;
+            if(least.priority.compareTo(request.priority) <= 0) {
+                deferred.put(request.document, request);
+                return;
+            }
+            queued.remove(least.document);
+            deferred.put(least.document, least);
+        }
+        queued.put(request.document, request);
+    }
+
+    // queues the request if it is deferred and would not be deferred again
+    private void reconsider(Request request) {
+        if(deferred.containsKey(request.document)
+                && (queued.size() < maxQueued || leastUrgent(queued).priority.compareTo(request.priority) > 0)) {
+            deferred.remove(request.document);
+            admit(request);
+        }
+    }
+
+    // the request of the lowest priority, the one changed last among those
+    private static Request leastUrgent(Map<Object, Request> requests) {
+        Request least = null;
+        for(Request request : requests.values()) {
+            if(least == null || request.priority.compareTo(least.priority) > 0
+                    || (request.priority == least.priority && request.due - least.due > 0)) {
+                least = request;
+            }
+        }
+        return least;
+    }
+
+    // the request of the highest priority, the one changed first among those
+    private static Request mostUrgent(Map<Object, Request> requests) {
+        Request most = null;
+        for(Request request : requests.values()) {
+            if(most == null || request.priority.compareTo(most.priority) < 0
+                    || (request.priority == most.priority && request.due - most.due < 0)) {
+                most = request;
+            }
+        }
+        return most;
+    }
+
+    /**
+     * Changes the priority of the queued lex of <code>document</code>, for
+     * instance when it gains focus.
+     */
+    public void setPriority(Object document, Priority priority) {
+        lock.lock();
+        try {
+            Request request = queued.get(document);
+            if(request == null) {
+                request = deferred.get(document);
+            }
+            if(request != null) {
+                request.priority = priority;
+                reconsider(request);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of documents waiting in the queue, not counting the
+     * deferred ones
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of lexes completed, successfully or not
+     */
+    public long getCompletedCount() {
+        lock.lock();
+        try {
+            return completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of changes coalesced with a later one
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of documents waiting for room in the queue
+     */
+    public int getDeferredDepth() {
+        lock.lock();
+        try {
+            return deferred.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of times a document was deferred by a full queue
+     */
+    public long getDeferralCount() {
+        lock.lock();
+        try {
+            return deferrals;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return average time from the first of coalesced changes to the
+     * delivery of their result
+     */
+    public long getAverageLatency(TimeUnit unit) {
+        lock.lock();
+        try {
+            return (completed == 0) ? 0 : unit.convert(totalLatency / completed, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxLatency(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(maxLatency, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers, cancelling running lexes and the futures of all
+     * changes not lexed yet.
+     */
+    public void shutdown() {
+        List<Result> cancelled = new ArrayList<Result>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for(Request request : running.values()) {
+                request.cancellation.cancel();
+                request.superseded = true;
+                cancelled.addAll(request.results);
+            }
+            for(Request request : queued.values()) {
+                cancelled.addAll(request.results);
+            }
+            for(Request request : deferred.values()) {
+                cancelled.addAll(request.results);
+            }
+            running.clear();
+            queued.clear();
+            deferred.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for(Result result : cancelled) {
+            result.cancel(false);
+        }
+    }
+
+    // the due request of the highest priority, null on shutdown
+    private Request take() throws InterruptedException {
+        lock.lock();
+        try {
+            while(!shutdown) {
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                Request best = null;
+                for(Request request : queued.values()) {
+                    long delay = request.due - now;
+                    if(delay > 0) {
+                        wait = Math.min(wait, delay);
+                    } else if(best == null || request.priority.compareTo(best.priority) < 0
+                            || (request.priority == best.priority && request.due - best.due < 0)) {
+                        best = request;
+                    }
+                }
+                if(best != null) {
+                    queued.remove(best.document);
+                    running.put(best.document, best);
+                    if(!deferred.isEmpty()) {
+                        Request next = mostUrgent(deferred);
+                        deferred.remove(next.document);
+                        queued.put(next.document, next);
+                    }
+                    return best;
+                }
+                if(wait == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wait);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void execute(Request request) {
+        List<CoffeeScriptNativeToken> tokens = null;
+        Exception failure = null;
+        Error error = null;
+        boolean delivered = false;
+        try {
+            tokens = new CoffeeScriptNativeLexer(request.code).tokenize(rewrite, request.cancellation);
+        } catch (CoffeeScriptNativeCancelledException ex) {
+            // superseded by a later change or shut down
+        } catch (CoffeeScriptNativeLexerException ex) {
+            failure = ex;
+        } catch (RuntimeException ex) {
+            failure = ex;
+        } catch (Error ex) {
+            // fails the futures and goes to the worker
+            error = ex;
+            throw ex;
+        } finally {
+            delivered = complete(request, tokens, (error != null) ? error : failure);
+        }
+        if(delivered && callback != null) {
+            try {
+                if(failure == null) {
+                    callback.lexed(request.document, tokens);
+                } else {
+                    callback.failed(request.document, failure);
+                }
+            } catch (RuntimeException ex) {
+                report(ex);
+            }
+        }
+    }
+
+    // removes the request from the running ones and completes its futures, unless it is superseded
+    private boolean complete(Request request, List<CoffeeScriptNativeToken> tokens, Throwable failure) {
+        lock.lock();
+        try {
+            if(request.superseded) {
+                return false;
+            }
+            running.remove(request.document);
+            long latency = System.nanoTime() - request.firstChange;
+            completed++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        } finally {
+            lock.unlock();
+        }
+        for(Result result : request.results) {
+            result.complete(tokens, failure);
+        }
+        return true;
+    }
+
+    private static void report(Throwable ex) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while(true) {
+                Request request;
+                try {
+                    request = take();
+                } catch (InterruptedException ex) {
+                    // stop working
+                    return;
+                }
+                if(request == null) {
+                    return;
+                }
+                try {
+                    execute(request);
+                } catch (Error ex) {
+                    report(ex);
+                }
+            }
+        }
+    }
+
+    // lex of the latest text of a document, answering the coalesced changes
+    private static final class Request {
+        final Object document;
+        final CoffeeScriptNativeCancellation cancellation = new CoffeeScriptNativeCancellation();
+        final List<Result> results = new ArrayList<Result>();
+        long firstChange;
+        String code;
+        Priority priority;
+        long due;
+        boolean superseded;
+
+        Request(Object document, long firstChange) {
+            this.document = document;
+            this.firstChange = firstChange;
+        }
+    }
+
+    private static final class Result implements Future<List<CoffeeScriptNativeToken>> {
+        private List<CoffeeScriptNativeToken> tokens;
+        private Throwable failure;
+        private boolean done;
+        private boolean cancelled;
+
+        synchronized void complete(List<CoffeeScriptNativeToken> tokens, Throwable failure) {
+            if(!done) {
+                this.tokens = tokens;
+                this.failure = failure;
+                this.done = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if(done) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized List<CoffeeScriptNativeToken> get() throws InterruptedException, ExecutionException {
+            while(!done) {
+                wait();
+            }
+            return report();
+        }
+
+        @Override
+        public synchronized List<CoffeeScriptNativeToken> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while(!done) {
+                long left = deadline - System.nanoTime();
+                if(left <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return report();
+        }
+
+        private List<CoffeeScriptNativeToken> report() throws ExecutionException {
+            if(cancelled) {
+                throw new CancellationException();
+            }
+            if(failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return tokens;
+        }
+    }
+}
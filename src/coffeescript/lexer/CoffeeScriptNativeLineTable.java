@@ -0,0 +1,99 @@
+package coffeescript.lexer;
+
+/**
+ * Maps character offsets of a lexed source to lines and columns. Tokens only
+ * record offsets and resolve their lines and columns through the table of
+ * their source, which is built on the first such request and shared by all
+ * tokens of the source, including those of embedded expressions.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeLineTable {
+    private final int offset;
+    private final int line;
+    private final int column;
+    private volatile String text;
+    private volatile int[] lineStarts;
+
+    /**
+     * Creates a table for <code>text</code>, whose first character lies at
+     * <code>offset</code>, <code>line</code> and <code>column</code>.
+     */
+    CoffeeScriptNativeLineTable(String text, int offset, int line, int column) {
+        this.text = text;
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+    }
+
+    public int getLine(int offset) {
+        return line + lineIndex(lineStarts(), offset);
+    }
+
+    public int getColumn(int offset) {
+        int[] starts = lineStarts();
+        int index = lineIndex(starts, offset);
+        return offset - starts[index] + ((index == 0) ? column : 0);
+    }
+
+    /**
+     * @return offset of the first character of <code>line</code>
+     */
+    public int getLineStart(int line) {
+        int[] starts = lineStarts();
+        int index = Math.max(0, Math.min(line - this.line, starts.length - 1));
+        return starts[index];
+    }
+
+    public int getLineCount() {
+        return lineStarts().length;
+    }
+
+    private int[] lineStarts() {
+        int[] starts = lineStarts;
+        if(starts == null) {
+            synchronized (this) {
+                starts = lineStarts;
+                if(starts == null) {
+                    starts = computeLineStarts(text, offset);
+                    lineStarts = starts;
+                    text = null;
+                }
+            }
+        }
+        return starts;
+    }
+
+    private static int[] computeLineStarts(String text, int offset) {
+        int length = text.length();
+        int count = 1;
+        for(int k = 0; k < length; k++) {
+            if(text.charAt(k) == '\n') {
+                count++;
+            }
+        }
+        int[] starts = new int[count];
+        starts[0] = offset;
+        int line = 1;
+        for(int k = 0; k < length; k++) {
+            if(text.charAt(k) == '\n') {
+                starts[line++] = offset + k + 1;
+            }
+        }
+        return starts;
+    }
+
+    // index of the last line starting at or before offset
+    private static int lineIndex(int[] starts, int offset) {
+        int low = 0, high = starts.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(starts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,310 @@
+package coffeescript.lexer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Outline of a source for navigators: its classes, the methods in class
+ * bodies and the top-level assignments, recognized in the raw or rewritten
+ * tokens without parsing. Tokens are pushed one at a time with {@link #add},
+ * so an outline can be fed from a token list or from a store cursor alike.
+ * <p>
+ * The outline remembers the top-level line breaks it passed. After an edit
+ * {@link #update} restarts at the last of them before the change and stops at
+ * the first one after it from which the tokens are unchanged, moving the
+ * entries that follow; an edit of one top-level statement thus costs the
+ * tokens of that statement plus a copy of the later entries.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeOutline {
+
+    public enum Kind {
+        CLASS, METHOD, ASSIGNMENT
+    }
+
+    // entries in the order of their tokens
+    private Kind[] kinds = new Kind[16];
+    private String[] names = new String[16];
+    private int[] tokenIndexes = new int[16];
+    private int[] parents = new int[16];
+    private int size;
+    // token index after each top-level TERMINATOR and the number of entries there
+    private int[] checkpointTokens = new int[16];
+    private int[] checkpointEntries = new int[16];
+    private int checkpointCount;
+    private int count;
+    private CoffeeScriptNativeToken last1, last2, last3;
+    // entry enclosing each open bracket or block and whether it is a class body, innermost last
+    private int[] frameOwners = new int[16];
+    private boolean[] frameClassBodies = new boolean[16];
+    private int frameCount;
+    // entry whose body the next INDENT at pendingDepth opens
+    private int pending = -1;
+    private int pendingDepth;
+    // class whose name is being read
+    private int classIndex = -1;
+    private StringBuilder className;
+    private int classDepth;
+
+    public static CoffeeScriptNativeOutline of(List<CoffeeScriptNativeToken> tokens) {
+        CoffeeScriptNativeOutline outline = new CoffeeScriptNativeOutline();
+        for(CoffeeScriptNativeToken token : tokens) {
+            outline.add(token);
+        }
+        return outline;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    public Kind getKind(int entry) {
+        return kinds[check(entry)];
+    }
+
+    /**
+     * @return the name, <code>@</code> prefixed for static methods, empty for
+     * anonymous classes
+     */
+    public String getName(int entry) {
+        return names[check(entry)];
+    }
+
+    /**
+     * @return index of the token naming <code>entry</code> in the tokens the
+     * outline was fed or updated with, for its position
+     */
+    public int getTokenIndex(int entry) {
+        return tokenIndexes[check(entry)];
+    }
+
+    /**
+     * @return the enclosing entry or -1
+     */
+    public int getParent(int entry) {
+        return parents[check(entry)];
+    }
+
+    /**
+     * Feeds the next token of the stream.
+     */
+    public void add(CoffeeScriptNativeToken token) {
+        String tag = token.getTag();
+        if(classIndex != -1) {
+            if(tag.equals("IDENTIFIER") || tag.equals(".") || tag.equals("@")) {
+                if(className.length() == 0) {
+                    classIndex = count;
+                }
+                className.append(token.getValue());
+                shift(token);
+                return;
+            }
+            pending = addEntry(Kind.CLASS, className.toString(), classIndex);
+            pendingDepth = classDepth;
+            classIndex = -1;
+        }
+        switch(tag) {
+            case "INDENT":
+            case "(":
+            case "[":
+            case "{":
+            case "CALL_START":
+            case "PARAM_START":
+            case "INDEX_START":
+                if(tag.equals("PARAM_START")) {
+                    methodStart();
+                }
+                open(tag, token);
+                break;
+            case "OUTDENT":
+            case ")":
+            case "]":
+            case "}":
+            case "CALL_END":
+            case "PARAM_END":
+            case "INDEX_END":
+                if(frameCount > 0) {
+                    frameCount--;
+                }
+                if(pending != -1 && frameCount < pendingDepth) {
+                    pending = -1;
+                }
+                break;
+            case "->":
+            case "=>":
+                methodStart();
+                break;
+            case "=":
+                if(frameCount == 0 && last1 != null && last1.getTag().equals("IDENTIFIER") && (last2 == null || last2.getTag().equals("TERMINATOR"))) {
+                    pending = addEntry(Kind.ASSIGNMENT, last1.getValue(), count - 1);
+                    pendingDepth = 0;
+                }
+                break;
+            case "CLASS":
+                classIndex = count;
+                className = new StringBuilder();
+                classDepth = frameCount;
+                break;
+            case "TERMINATOR":
+                if(pending != -1 && frameCount == pendingDepth) {
+                    pending = -1;
+                }
+                if(frameCount == 0) {
+                    checkpoint(count + 1);
+                }
+                break;
+        }
+        shift(token);
+    }
+
+    /**
+     * Brings the outline, fed with all of the old tokens, up to date with the
+     * new tokens of the same kind, raw or rewritten.
+     */
+    public void update(List<CoffeeScriptNativeToken> tokens, CoffeeScriptNativeTokenDiff diff) {
+        int k = lastCheckpoint(diff.getChangedStart());
+        int restart = (k > 0) ? checkpointTokens[k - 1] : 0;
+        int kept = (k > 0) ? checkpointEntries[k - 1] : 0;
+        Kind[] oldKinds = Arrays.copyOfRange(kinds, kept, size);
+        String[] oldNames = Arrays.copyOfRange(names, kept, size);
+        int[] oldTokenIndexes = Arrays.copyOfRange(tokenIndexes, kept, size);
+        int[] oldParents = Arrays.copyOfRange(parents, kept, size);
+        int[] oldTokens = Arrays.copyOfRange(checkpointTokens, k, checkpointCount);
+        int[] oldCounts = Arrays.copyOfRange(checkpointEntries, k, checkpointCount);
+
+        Arrays.fill(names, kept, size, null);
+        size = kept;
+        checkpointCount = k;
+        count = restart;
+        last1 = (restart > 0) ? tokens.get(restart - 1) : null;
+        last2 = last3 = null;
+        frameCount = 0;
+        pending = classIndex = -1;
+
+        int shift = diff.getNewChangedEnd() - diff.getOldChangedEnd();
+        int old = 0;
+        while(count < tokens.size()) {
+            add(tokens.get(count));
+            if(checkpointCount > k && checkpointTokens[checkpointCount - 1] == count && count >= diff.getNewChangedEnd()) {
+                while(old < oldTokens.length && oldTokens[old] < count - shift) {
+                    old++;
+                }
+                if(old < oldTokens.length && oldTokens[old] == count - shift) {
+                    // the rest is unchanged, only moved
+                    int from = oldCounts[old] - kept, length = oldKinds.length - from;
+                    int entryShift = size - oldCounts[old];
+                    ensureCapacity(size + length);
+                    System.arraycopy(oldKinds, from, kinds, size, length);
+                    System.arraycopy(oldNames, from, names, size, length);
+                    for(int entry = 0; entry < length; entry++) {
+                        tokenIndexes[size + entry] = oldTokenIndexes[from + entry] + shift;
+                        int parent = oldParents[from + entry];
+                        parents[size + entry] = (parent == -1) ? -1 : parent + entryShift;
+                    }
+                    size += length;
+                    for(int next = old + 1; next < oldTokens.length; next++) {
+                        checkpoint(oldTokens[next] + shift);
+                        checkpointEntries[checkpointCount - 1] = oldCounts[next] + entryShift;
+                    }
+                    count = tokens.size();
+                    last1 = tokens.get(count - 1);
+                    last2 = last3 = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void methodStart() {
+        if(last1 == null || last2 == null || !last1.getTag().equals(":") || !last2.getTag().equals("IDENTIFIER")) {
+            return;
+        }
+        if(frameCount == 0 || !frameClassBodies[frameCount - 1]) {
+            return;
+        }
+        boolean isStatic = last3 != null && last3.getTag().equals("@");
+        pending = addEntry(Kind.METHOD, isStatic ? "@" + last2.getValue() : last2.getValue(), count - 2);
+        pendingDepth = frameCount;
+    }
+
+    private void open(String tag, CoffeeScriptNativeToken token) {
+        int owner = (frameCount > 0) ? frameOwners[frameCount - 1] : -1;
+        boolean classBody = false;
+        if(tag.equals("INDENT") && pending != -1 && frameCount == pendingDepth) {
+            owner = pending;
+            classBody = kinds[pending] == Kind.CLASS;
+            pending = -1;
+        } else if(tag.equals("{") && token.getGenerated() && frameCount > 0) {
+            // the rewriter wraps class bodies in an implicit object
+            classBody = frameClassBodies[frameCount - 1];
+        }
+        if(frameCount == frameOwners.length) {
+            frameOwners = Arrays.copyOf(frameOwners, frameCount * 2);
+            frameClassBodies = Arrays.copyOf(frameClassBodies, frameCount * 2);
+        }
+        frameOwners[frameCount] = owner;
+        frameClassBodies[frameCount] = classBody;
+        frameCount++;
+    }
+
+    private int addEntry(Kind kind, String name, int tokenIndex) {
+        ensureCapacity(size + 1);
+        kinds[size] = kind;
+        names[size] = name;
+        tokenIndexes[size] = tokenIndex;
+        parents[size] = (frameCount > 0) ? frameOwners[frameCount - 1] : -1;
+        return size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > kinds.length) {
+            int length = Math.max(capacity, kinds.length * 2);
+            kinds = Arrays.copyOf(kinds, length);
+            names = Arrays.copyOf(names, length);
+            tokenIndexes = Arrays.copyOf(tokenIndexes, length);
+            parents = Arrays.copyOf(parents, length);
+        }
+    }
+
+    private void checkpoint(int tokenIndex) {
+        if(checkpointCount == checkpointTokens.length) {
+            checkpointTokens = Arrays.copyOf(checkpointTokens, checkpointCount * 2);
+            checkpointEntries = Arrays.copyOf(checkpointEntries, checkpointCount * 2);
+        }
+        checkpointTokens[checkpointCount] = tokenIndex;
+        checkpointEntries[checkpointCount] = size;
+        checkpointCount++;
+    }
+
+    // number of checkpoints at or before tokenIndex
+    private int lastCheckpoint(int tokenIndex) {
+        int low = 0, high = checkpointCount;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(checkpointTokens[mid] <= tokenIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int check(int entry) {
+        if(entry < 0 || entry >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(entry));
+        }
+        return entry;
+    }
+
+    private void shift(CoffeeScriptNativeToken token) {
+        last3 = last2;
+        last2 = last1;
+        last1 = token;
+        count++;
+    }
+}
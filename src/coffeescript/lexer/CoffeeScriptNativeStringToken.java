@@ -0,0 +1,131 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <code>STRING</code> token of a double quoted string or heredoc containing
+ * <code>#{...}</code> interpolations. The interpolation boundaries are
+ * recorded while lexing the string, but the embedded expressions are only
+ * lexed when their tokens are first requested, in place in the value of the
+ * token. Embedded tokens carry their location in the enclosing source.
+ *
+ * @author milos
+ */
+public class CoffeeScriptNativeStringToken extends CoffeeScriptNativeToken {
+    private final int[] interpolations;
+    private final boolean rewrite;
+    // tokens of each expression, null until lexed
+    private final List<List<CoffeeScriptNativeToken>> streams;
+    // shared by the lexers of the expressions
+    private CharSearch search;
+
+    CoffeeScriptNativeStringToken(String value, int[] interpolations, boolean rewrite) {
+        super("STRING", value, null, false);
+        this.interpolations = interpolations;
+        this.rewrite = rewrite;
+        this.streams = new ArrayList<List<CoffeeScriptNativeToken>>(Collections.<List<CoffeeScriptNativeToken>>nCopies(interpolations.length / 2, null));
+    }
+
+    /**
+     * @return token with the same value and interpolations, whose embedded
+     * expressions are lexed again when requested
+     */
+    CoffeeScriptNativeStringToken copy() {
+        return new CoffeeScriptNativeStringToken(getValue(), interpolations, rewrite);
+    }
+
+    /**
+     * @return token equal to this one whose embedded expressions are lexed
+     * rewritten
+     */
+    CoffeeScriptNativeStringToken rewritten() {
+        CoffeeScriptNativeStringToken copy = new CoffeeScriptNativeStringToken(getValue(), interpolations, true);
+        copyStateTo(copy);
+        return copy;
+    }
+
+    @Override
+    CoffeeScriptNativeToken moved(CoffeeScriptNativeLineTable lines, int offsetShift, int lineShift) {
+        CoffeeScriptNativeStringToken copy = new CoffeeScriptNativeStringToken(getValue(), interpolations, rewrite);
+        moveStateTo(copy, lines, offsetShift, lineShift);
+        return copy;
+    }
+
+    // the tokens of expressions lexed later are frozen as well
+    @Override
+    synchronized void freeze() {
+        if(isFrozen()) {
+            return;
+        }
+        super.freeze();
+        for(int index = 0; index < streams.size(); index++) {
+            if(streams.get(index) != null) {
+                streams.set(index, frozen(streams.get(index)));
+            }
+        }
+    }
+
+    private static List<CoffeeScriptNativeToken> frozen(List<CoffeeScriptNativeToken> tokens) {
+        for(CoffeeScriptNativeToken token : tokens) {
+            token.freeze();
+        }
+        return Collections.unmodifiableList(tokens);
+    }
+
+    // whether the embedded expressions are lexed rewritten
+    boolean isRewrite() {
+        return rewrite;
+    }
+
+    public int getInterpolationCount() {
+        return streams.size();
+    }
+
+    /**
+     * @return offset of the first character of the expression within the value
+     */
+    public int getInterpolationStart(int index) {
+        return interpolations[2 * index];
+    }
+
+    /**
+     * @return offset of the closing brace of the expression within the value
+     */
+    public int getInterpolationEnd(int index) {
+        return interpolations[2 * index + 1];
+    }
+
+    /**
+     * Returns the tokens of the <code>index</code>-th interpolated expression,
+     * lexing it on first access. The tokens are rewritten if the string itself
+     * came from a rewriting tokenize.
+     */
+    public synchronized List<CoffeeScriptNativeToken> getInterpolationTokens(int index) throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = streams.get(index);
+        if(tokens == null) {
+            String value = getValue();
+            int start = getInterpolationStart(index);
+            int end = getInterpolationEnd(index);
+            while(start < end && Scanners.isWhitespace(value.charAt(start))) {
+                start++;
+            }
+            CoffeeScriptNativeLineTable lines = getLineTable();
+            if(lines == null) {
+                // a copy without its source
+                lines = new CoffeeScriptNativeLineTable(value, getStartOffset(), getFirstLine(), getFirstColumn());
+            }
+            if(search == null) {
+                search = new CharSearch(value);
+            }
+            CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(new Chunk(value, start, end, search), lines, getStartOffset());
+            tokens = lexer.tokenize(rewrite);
+            if(isFrozen()) {
+                tokens = frozen(tokens);
+            }
+            streams.set(index, tokens);
+        }
+        return tokens;
+    }
+}
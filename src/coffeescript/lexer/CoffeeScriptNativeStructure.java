@@ -0,0 +1,227 @@
+package coffeescript.lexer;
+
+import java.util.Arrays;
+
+/**
+ * Nesting of a lexed source, recorded by the lexer while it pairs brackets
+ * and indentation. Every bracket, INDENT and OUTDENT of the source is an entry,
+ * in token order, which knows the entry it is paired with; every pair is also
+ * a block, in the order of the opening entries, whose range serves for
+ * folding. Bracket matching and folding thus need no pass over the tokens.
+ * <p>
+ * Entries refer to the tokens returned by <code>tokenize(false)</code>. The
+ * rewriter inserts and removes tokens, so after a rewriting tokenize only the
+ * offsets of the entries are meaningful; tokens it generates have no entries.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeStructure {
+    // entry: token index, start and end offset, index of the paired entry
+    private static final int TOKEN = 0;
+    private static final int START = 1;
+    private static final int END = 2;
+    private static final int MATCH = 3;
+    private static final int ENTRY_SIZE = 4;
+
+    private int[] entries;
+    private boolean[] indentation;
+    private int size;
+    // opening entries in source order
+    private int[] blocks;
+    private int blockCount;
+    // opening entries not closed yet, innermost last
+    private int[] open;
+    private int openCount;
+
+    CoffeeScriptNativeStructure() {
+        this.entries = new int[16 * ENTRY_SIZE];
+        this.indentation = new boolean[16];
+        this.blocks = new int[8];
+        this.open = new int[8];
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return index of the token of <code>entry</code> in the tokens of
+     * <code>tokenize(false)</code>
+     */
+    public int getTokenIndex(int entry) {
+        return entries[check(entry) * ENTRY_SIZE + TOKEN];
+    }
+
+    public int getStartOffset(int entry) {
+        return entries[check(entry) * ENTRY_SIZE + START];
+    }
+
+    public int getEndOffset(int entry) {
+        return entries[check(entry) * ENTRY_SIZE + END];
+    }
+
+    /**
+     * @return the entry paired with <code>entry</code>
+     */
+    public int getMatch(int entry) {
+        return entries[check(entry) * ENTRY_SIZE + MATCH];
+    }
+
+    public boolean isOpening(int entry) {
+        return getMatch(entry) > entry;
+    }
+
+    /**
+     * @return whether <code>entry</code> is an INDENT or OUTDENT rather than a
+     * bracket
+     */
+    public boolean isIndentation(int entry) {
+        check(entry);
+        return indentation[entry];
+    }
+
+    /**
+     * Finds the bracket starting at <code>offset</code>, which is where an
+     * editor looks for the bracket next to the caret.
+     *
+     * @return the entry of the bracket or -1
+     */
+    public int findBracket(int offset) {
+        int low = 0, high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(entries[mid * ENTRY_SIZE + START] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // an OUTDENT closed by a bracket starts where the bracket does
+        for(int entry = low; entry < size && entries[entry * ENTRY_SIZE + START] == offset; entry++) {
+            if(!indentation[entry]) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of blocks, one for each pair of entries
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the opening entry of <code>block</code>
+     */
+    public int getBlockEntry(int block) {
+        if(block < 0 || block >= blockCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(block));
+        }
+        return blocks[block];
+    }
+
+    public int getBlockStartOffset(int block) {
+        return getStartOffset(getBlockEntry(block));
+    }
+
+    /**
+     * @return offset after the closing bracket of a bracket block, offset of
+     * the line break or bracket ending an indented block
+     */
+    public int getBlockEndOffset(int block) {
+        int entry = getBlockEntry(block);
+        int match = getMatch(entry);
+        return indentation[entry] ? getStartOffset(match) : getEndOffset(match);
+    }
+
+    void open(int tokenIndex, CoffeeScriptNativeToken token, boolean indent) {
+        int entry = add(tokenIndex, token, indent);
+        if(blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+        }
+        blocks[blockCount++] = entry;
+        if(openCount == open.length) {
+            open = Arrays.copyOf(open, openCount * 2);
+        }
+        open[openCount++] = entry;
+    }
+
+    // the lexer has paired the token with the innermost open entry already
+    void close(int tokenIndex, CoffeeScriptNativeToken token, boolean indent) {
+        int entry = add(tokenIndex, token, indent);
+        int opening = open[--openCount];
+        entries[opening * ENTRY_SIZE + MATCH] = entry;
+        entries[entry * ENTRY_SIZE + MATCH] = opening;
+    }
+
+    /**
+     * Appends the closed structure of a segment whose tokens start at
+     * <code>tokenShift</code> in the tokens of this one.
+     */
+    void append(CoffeeScriptNativeStructure segment, int tokenShift) {
+        int entryShift = size;
+        ensureCapacity(size + segment.size);
+        for(int entry = 0; entry < segment.size; entry++) {
+            int from = entry * ENTRY_SIZE, to = (entryShift + entry) * ENTRY_SIZE;
+            entries[to + TOKEN] = segment.entries[from + TOKEN] + tokenShift;
+            entries[to + START] = segment.entries[from + START];
+            entries[to + END] = segment.entries[from + END];
+            entries[to + MATCH] = segment.entries[from + MATCH] + entryShift;
+            indentation[entryShift + entry] = segment.indentation[entry];
+        }
+        size += segment.size;
+        if(blockCount + segment.blockCount > blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.max(blockCount + segment.blockCount, blocks.length * 2));
+        }
+        for(int block = 0; block < segment.blockCount; block++) {
+            blocks[blockCount++] = segment.blocks[block] + entryShift;
+        }
+    }
+
+    /**
+     * Moves the entries to the indexes of their tokens once the first
+     * <code>count</code> of the ascending token indexes <code>removed</code>,
+     * none of them with an entry, are removed from the tokens.
+     */
+    void removeTokens(int[] removed, int count) {
+        int before = 0;
+        for(int entry = 0; entry < size; entry++) {
+            int token = entries[entry * ENTRY_SIZE + TOKEN];
+            while(before < count && removed[before] < token) {
+                before++;
+            }
+            entries[entry * ENTRY_SIZE + TOKEN] = token - before;
+        }
+    }
+
+    private int add(int tokenIndex, CoffeeScriptNativeToken token, boolean indent) {
+        ensureCapacity(size + 1);
+        int base = size * ENTRY_SIZE;
+        entries[base + TOKEN] = tokenIndex;
+        entries[base + START] = token.getStartOffset();
+        entries[base + END] = token.getEndOffset();
+        entries[base + MATCH] = -1;
+        indentation[size] = indent;
+        return size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > indentation.length) {
+            int length = Math.max(capacity, indentation.length * 2);
+            entries = Arrays.copyOf(entries, length * ENTRY_SIZE);
+            indentation = Arrays.copyOf(indentation, length);
+        }
+    }
+
+    private int check(int entry) {
+        if(entry < 0 || entry >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(entry));
+        }
+        return entry;
+    }
+}
@@ -19,17 +19,21 @@ public class CoffeeScriptNativeToken {
     private boolean explicit;
     private boolean reserved;
     
-    private int firstLine = -1;
-    private int firstColumn = -1;
-    private int lastLine = -1;
-    private int lastColumn = -1;
+    private int startOffset = -1;
+    private int endOffset = -1;
+    private CoffeeScriptNativeLineTable lines;
+    // first line, first column, last line and last column set directly instead of through offsets
+    private int[] location;
     private boolean fromThen;
+    private boolean frozen;
 
     public void setNewLine(boolean newLine) {
+        checkMutable();
         this.newLine = newLine;
     }
 
     public void setStringEnd(boolean stringEnd) {
+        checkMutable();
         this.stringEnd = stringEnd;
     }
 
@@ -45,6 +49,7 @@ public class CoffeeScriptNativeToken {
     }
 
     public void setTag(String tag) {
+        checkMutable();
         this.tag = tag;
     }
 
@@ -53,10 +58,12 @@ public class CoffeeScriptNativeToken {
     }
 
     public void setValue(String value) {
+        checkMutable();
         this.value = value;
     }
 
     public void setOrigin(CoffeeScriptNativeToken origin) {
+        checkMutable();
         this.origin = origin;
     }
 
@@ -65,6 +72,7 @@ public class CoffeeScriptNativeToken {
     }
 
     public void setGenerated(Boolean generated) {
+        checkMutable();
         this.generated = generated;
     }
 
@@ -73,6 +81,7 @@ public class CoffeeScriptNativeToken {
     }
 
     public void setSpaced(boolean spaced) {
+        checkMutable();
         this.spaced = spaced;
     }
 
@@ -89,6 +98,7 @@ public class CoffeeScriptNativeToken {
     }
 
     public void setExplicit(boolean explicit) {
+        checkMutable();
         this.explicit = explicit;
     }
 
@@ -97,49 +107,102 @@ public class CoffeeScriptNativeToken {
     }
 
     public void setReserved(boolean resedved) {
+        checkMutable();
         this.reserved = resedved;
     }
     
     public void setLocationData(int[] first, int[] last) {
-        this.firstLine = first[0];
-        this.firstColumn = first[1];
-        this.lastLine = last[0];
-        this.lastColumn = last[1];
+        checkMutable();
+        this.location = new int[]{first[0], first[1], last[0], last[1]};
+    }
+
+    /**
+     * @return offset of the first character of the token or -1 if the
+     * token has no location in the source
+     */
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * @return offset after the last character of the token or -1 if the
+     * token has no location in the source
+     */
+    public int getEndOffset() {
+        return endOffset;
+    }
+
+    void setOffsets(CoffeeScriptNativeLineTable lines, int startOffset, int endOffset) {
+        checkMutable();
+        this.lines = lines;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.location = null;
+    }
+
+    // places the token at the start of other
+    void setLocation(CoffeeScriptNativeToken other) {
+        setOffsets(other.lines, other.startOffset, other.startOffset);
+        if(other.location != null) {
+            this.location = new int[]{other.location[0], other.location[1], other.location[0], other.location[1]};
+        }
+    }
+
+    CoffeeScriptNativeLineTable getLineTable() {
+        return lines;
+    }
+
+    // lines and columns set directly instead of through offsets
+    boolean isLocationSet() {
+        return location != null;
     }
 
     public int getFirstLine() {
-        return firstLine;
+        return (location != null) ? location[0] : ((lines != null) ? lines.getLine(startOffset) : -1);
     }
 
     public void setFirstLine(int firstLine) {
-        this.firstLine = firstLine;
+        location()[0] = firstLine;
     }
 
     public int getFirstColumn() {
-        return firstColumn;
+        return (location != null) ? location[1] : ((lines != null) ? lines.getColumn(startOffset) : -1);
     }
 
     public void setFirstColumn(int firstColumn) {
-        this.firstColumn = firstColumn;
+        location()[1] = firstColumn;
     }
 
     public int getLastLine() {
-        return lastLine;
+        return (location != null) ? location[2] : ((lines != null) ? lines.getLine(lastOffset()) : -1);
     }
 
     public void setLastLine(int lastLine) {
-        this.lastLine = lastLine;
+        location()[2] = lastLine;
     }
 
     public int getLastColumn() {
-        return lastColumn;
+        return (location != null) ? location[3] : ((lines != null) ? lines.getColumn(lastOffset()) : -1);
     }
 
     public void setLastColumn(int lastColumn) {
-        this.lastColumn = lastColumn;
+        location()[3] = lastColumn;
+    }
+
+    private int lastOffset() {
+        return Math.max(startOffset, endOffset - 1);
+    }
+
+    private int[] location() {
+        checkMutable();
+        if(location == null) {
+            location = new int[]{getFirstLine(), getFirstColumn(), getLastLine(), getLastColumn()};
+        }
+        return location;
     }
 
     public void setFromThen(boolean b) {
+        checkMutable();
         this.fromThen = b;
     }
 
@@ -148,7 +211,96 @@ public class CoffeeScriptNativeToken {
     }
     
     public boolean hasLocationData() {
-        return firstColumn != -1;
+        return (location != null) ? location[1] != -1 : lines != null;
+    }
+
+    /**
+     * Makes the token read only, so that it can be shared with other threads;
+     * its setters throw {@link IllegalStateException} from now on.
+     */
+    void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkMutable() {
+        if(frozen) {
+            throw new IllegalStateException("token is frozen");
+        }
+    }
+
+    /**
+     * @return token equal to this one but for its tag
+     */
+    CoffeeScriptNativeToken withTag(String tag) {
+        CoffeeScriptNativeToken copy = new CoffeeScriptNativeToken(tag, value, null, null);
+        copyStateTo(copy);
+        return copy;
+    }
+
+    /**
+     * @return token equal to this one moved by <code>offsetShift</code>
+     * characters and <code>lineShift</code> lines, resolving its offsets
+     * through <code>lines</code>
+     */
+    CoffeeScriptNativeToken moved(CoffeeScriptNativeLineTable lines, int offsetShift, int lineShift) {
+        CoffeeScriptNativeToken copy = new CoffeeScriptNativeToken(tag, value, null, null);
+        moveStateTo(copy, lines, offsetShift, lineShift);
+        return copy;
+    }
+
+    void moveStateTo(CoffeeScriptNativeToken copy, CoffeeScriptNativeLineTable lines, int offsetShift, int lineShift) {
+        copyStateTo(copy);
+        copy.tag = tag;
+        if(startOffset != -1) {
+            copy.startOffset += offsetShift;
+            copy.endOffset += offsetShift;
+        }
+        if(this.lines != null && lines != null) {
+            copy.lines = lines;
+        }
+        if(copy.location != null) {
+            copy.location[0] += lineShift;
+            copy.location[2] += lineShift;
+        }
+    }
+
+    // whether other equals this token moved by offsetShift characters and lineShift lines
+    boolean isMovedTo(CoffeeScriptNativeToken other, int offsetShift, int lineShift) {
+        if(!tag.equals(other.tag) || !((value == null) ? other.value == null : value.equals(other.value))) {
+            return false;
+        }
+        if(spaced != other.spaced || newLine != other.newLine || stringEnd != other.stringEnd || explicit != other.explicit
+                || reserved != other.reserved || fromThen != other.fromThen || generated != other.generated) {
+            return false;
+        }
+        if((startOffset == -1) ? other.startOffset != -1 : (other.startOffset != startOffset + offsetShift || other.endOffset != endOffset + offsetShift)) {
+            return false;
+        }
+        if((location == null) != (other.location == null)) {
+            return false;
+        }
+        return location == null || (other.location[0] == location[0] + lineShift && other.location[1] == location[1]
+                && other.location[2] == location[2] + lineShift && other.location[3] == location[3]);
+    }
+
+    // copies everything but the tag and value
+    void copyStateTo(CoffeeScriptNativeToken copy) {
+        copy.origin = origin;
+        copy.generated = generated;
+        copy.spaced = spaced;
+        copy.stringEnd = stringEnd;
+        copy.newLine = newLine;
+        copy.explicit = explicit;
+        copy.reserved = reserved;
+        copy.fromThen = fromThen;
+        copy.startOffset = startOffset;
+        copy.endOffset = endOffset;
+        copy.lines = lines;
+        copy.location = (location != null) ? location.clone() : null;
     }
     
     
@@ -0,0 +1,250 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the token streams of many documents, like those of the files open in
+ * an editor, within a memory budget. Each stream is held by a {@link Holder}.
+ * Streams not accessed for the idle period are compressed by
+ * {@link #compressIdle()}, which the owner calls periodically, for instance
+ * from a timer; when the held streams exceed the budget, the least recently
+ * accessed ones are compressed right away. A compressed stream takes about a
+ * tenth of the memory of its tokens and is decompressed, without lexing it
+ * again, when it is next accessed.
+ * <p>
+ * Decompressed tokens are new objects equal to the held ones, so held tokens
+ * should not be changed and references to them should not be kept across
+ * accesses; replace a stream through {@link Holder#setTokens(List)} instead.
+ * A budget and its holders are thread safe. Streams are compressed and
+ * decompressed without holding the lock of the budget, which only guards
+ * the bookkeeping, so a stream being compressed does not hold up accesses
+ * to the others.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeTokenBudget {
+    // estimate of a resident token with its share of the list and location
+    private static final long TOKEN_BYTES = 64;
+
+    private final long maxBytes;
+    private final long idleNanos;
+    // least recently accessed first
+    private final Map<Holder, Boolean> holders = new LinkedHashMap<Holder, Boolean>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param maxBytes estimated bytes the held streams may take
+     * @param idle period after which {@link #compressIdle()} compresses a
+     * stream not accessed since
+     */
+    public CoffeeScriptNativeTokenBudget(long maxBytes, long idle, TimeUnit unit) {
+        this.maxBytes = maxBytes;
+        this.idleNanos = unit.toNanos(idle);
+    }
+
+    /**
+     * Starts holding <code>tokens</code>, which the returned holder owns from
+     * now on.
+     */
+    public Holder hold(List<CoffeeScriptNativeToken> tokens) {
+        Holder holder = new Holder();
+        synchronized (this) {
+            holders.put(holder, Boolean.TRUE);
+            holder.resident(tokens);
+        }
+        enforce(holder);
+        return holder;
+    }
+
+    /**
+     * Compresses the streams not accessed for the idle period.
+     *
+     * @return number of streams compressed
+     */
+    public int compressIdle() {
+        long now = System.nanoTime();
+        List<Holder> idle = new ArrayList<Holder>();
+        synchronized (this) {
+            for(Holder holder : holders.keySet()) {
+                if(now - holder.lastAccess < idleNanos) {
+                    // the rest were accessed later
+                    break;
+                }
+                idle.add(holder);
+            }
+        }
+        int count = 0;
+        for(Holder holder : idle) {
+            if(holder.compress(idleNanos)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return estimated bytes taken by the held streams, compressed or not
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // compresses the coldest streams but current until within the budget
+    private void enforce(Holder current) {
+        List<Holder> coldest;
+        synchronized (this) {
+            if(bytes <= maxBytes) {
+                return;
+            }
+            coldest = new ArrayList<Holder>(holders.keySet());
+        }
+        for(Holder holder : coldest) {
+            synchronized (this) {
+                if(bytes <= maxBytes) {
+                    return;
+                }
+            }
+            if(holder != current) {
+                holder.compress(Long.MIN_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Token stream held in a budget.
+     */
+    public final class Holder {
+        private List<CoffeeScriptNativeToken> tokens;
+        private CompressedTokens compressed;
+        private long lastAccess;
+        private long holderBytes;
+
+        private Holder() {
+        }
+
+        /**
+         * @return read only list of the tokens, decompressed if needed
+         */
+        public List<CoffeeScriptNativeToken> getTokens() {
+            while(true) {
+                CompressedTokens source;
+                synchronized (CoffeeScriptNativeTokenBudget.this) {
+                    checkHeld();
+                    holders.get(this);
+                    if(tokens != null) {
+                        lastAccess = System.nanoTime();
+                        return tokens;
+                    }
+                    source = compressed;
+                }
+                List<CoffeeScriptNativeToken> decoded = source.decode();
+                List<CoffeeScriptNativeToken> result;
+                synchronized (CoffeeScriptNativeTokenBudget.this) {
+                    // decoded by another access, replaced or released meanwhile
+                    if(compressed != source) {
+                        continue;
+                    }
+                    resident(decoded);
+                    result = tokens;
+                }
+                enforce(this);
+                return result;
+            }
+        }
+
+        /**
+         * Replaces the held tokens, for instance after the document is lexed
+         * again.
+         */
+        public void setTokens(List<CoffeeScriptNativeToken> tokens) {
+            synchronized (CoffeeScriptNativeTokenBudget.this) {
+                checkHeld();
+                holders.get(this);
+                resident(tokens);
+            }
+            enforce(this);
+        }
+
+        public boolean isCompressed() {
+            synchronized (CoffeeScriptNativeTokenBudget.this) {
+                return compressed != null;
+            }
+        }
+
+        /**
+         * Compresses the tokens now, unless they already are.
+         *
+         * @return <code>false</code> if the tokens were already compressed,
+         * or were replaced or released while being compressed
+         */
+        public boolean compress() {
+            synchronized (CoffeeScriptNativeTokenBudget.this) {
+                checkHeld();
+            }
+            return compress(Long.MIN_VALUE);
+        }
+
+        // compresses the tokens if they were not accessed for idle nanoseconds
+        private boolean compress(long idle) {
+            List<CoffeeScriptNativeToken> source;
+            synchronized (CoffeeScriptNativeTokenBudget.this) {
+                if(tokens == null || System.nanoTime() - lastAccess < idle) {
+                    return false;
+                }
+                source = tokens;
+            }
+            CompressedTokens result = CompressedTokens.of(source);
+            synchronized (CoffeeScriptNativeTokenBudget.this) {
+                // accessed, replaced or released meanwhile
+                if(tokens != source || System.nanoTime() - lastAccess < idle) {
+                    return false;
+                }
+                tokens = null;
+                compressed = result;
+                account(result.getByteSize());
+                return true;
+            }
+        }
+
+        /**
+         * Stops holding the tokens, which no longer count against the
+         * budget. The holder cannot be used afterwards.
+         */
+        public void release() {
+            synchronized (CoffeeScriptNativeTokenBudget.this) {
+                if(holders.remove(this) != null) {
+                    account(0);
+                    tokens = null;
+                    compressed = null;
+                }
+            }
+        }
+
+        private void resident(List<CoffeeScriptNativeToken> tokens) {
+            this.tokens = Collections.unmodifiableList(tokens);
+            this.compressed = null;
+            this.lastAccess = System.nanoTime();
+            account(TOKEN_BYTES * tokens.size());
+        }
+
+        private void account(long newBytes) {
+            bytes += newBytes - holderBytes;
+            holderBytes = newBytes;
+        }
+
+        private void checkHeld() {
+            if(tokens == null && compressed == null) {
+                throw new IllegalStateException("token stream is released");
+            }
+        }
+    }
+}
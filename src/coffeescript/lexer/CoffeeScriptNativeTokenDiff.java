@@ -0,0 +1,295 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Range of tokens that differ between two lexes of a document. Tokens before
+ * {@link #getChangedStart()} are identical in both lists; tokens from
+ * {@link #getOldChangedEnd()} in the old list correspond one to one to tokens
+ * from {@link #getNewChangedEnd()} in the new list, moved by
+ * {@link #getLineShift()} lines (and, on the last edited line, by
+ * {@link #getColumnShift()} columns).
+ *
+ * @author milos
+ */
+public class CoffeeScriptNativeTokenDiff {
+    private static final Set<String> OPENING = new HashSet<String>(Arrays.asList("(", "[", "{", "INDENT", "CALL_START", "PARAM_START", "INDEX_START"));
+    private static final Set<String> CLOSING = new HashSet<String>(Arrays.asList(")", "]", "}", "OUTDENT", "CALL_END", "PARAM_END", "INDEX_END"));
+
+    private final int changedStart;
+    private final int oldChangedEnd;
+    private final int newChangedEnd;
+    private final int lineShift;
+    private final int columnShift;
+
+    private CoffeeScriptNativeTokenDiff(int changedStart, int oldChangedEnd, int newChangedEnd, int lineShift, int columnShift) {
+        this.changedStart = changedStart;
+        this.oldChangedEnd = oldChangedEnd;
+        this.newChangedEnd = newChangedEnd;
+        this.lineShift = lineShift;
+        this.columnShift = columnShift;
+    }
+
+    public int getChangedStart() {
+        return changedStart;
+    }
+
+    public int getOldChangedEnd() {
+        return oldChangedEnd;
+    }
+
+    public int getNewChangedEnd() {
+        return newChangedEnd;
+    }
+
+    public int getLineShift() {
+        return lineShift;
+    }
+
+    public int getColumnShift() {
+        return columnShift;
+    }
+
+    public boolean isEmpty() {
+        return changedStart == oldChangedEnd && changedStart == newChangedEnd;
+    }
+
+    /**
+     * Compares two token lists without knowing the edit. The line shift of the
+     * common suffix is taken from the last tokens, so this needs a full scan of
+     * the unchanged tokens.
+     */
+    public static CoffeeScriptNativeTokenDiff compute(List<CoffeeScriptNativeToken> oldTokens, List<CoffeeScriptNativeToken> newTokens) {
+        int oldSize = oldTokens.size(), newSize = newTokens.size();
+        int lineShift = (oldSize > 0 && newSize > 0) ? newTokens.get(newSize - 1).getFirstLine() - oldTokens.get(oldSize - 1).getFirstLine() : 0;
+        Shift shift = new Shift(lineShift, Integer.MAX_VALUE, 0);
+        int prefix = commonPrefix(oldTokens, newTokens, 0);
+        return new CoffeeScriptNativeTokenDiff(prefix, oldSize - commonSuffix(oldTokens, newTokens, prefix, shift),
+                newSize - commonSuffix(oldTokens, newTokens, prefix, shift), lineShift, 0);
+    }
+
+    /**
+     * Compares two token lists around a known edit, which replaced the text
+     * between <code>startLine:startColumn</code> and
+     * <code>oldEndLine:oldEndColumn</code> of the old document with text
+     * ending at <code>newEndLine:newEndColumn</code> of the new one.
+     * <p>
+     * The rewriter retags tokens and inserts new ones up to several lines
+     * before the edit, like an <code>IF</code> that becomes
+     * <code>POST_IF</code> when the next line is no longer indented, but it
+     * never crosses the <code>TERMINATOR</code> ending a statement. So the
+     * lists are compared from one line before the edit, found by binary
+     * search, back to the first unchanged <code>TERMINATOR</code> at the
+     * outermost level reached, and the tokens before it are skipped.
+     * <p>
+     * After the edit the lists are resynchronized at the first equal token
+     * more than one line past the edit. The match is accepted when both lists have the same number of
+     * tokens left and the changed ranges leave the same blocks and brackets
+     * open, in which case only the tokens closing those blocks are compared;
+     * otherwise the suffix is compared in full. The cost is O(changed + log n)
+     * for edits of statements at the top level and grows with the enclosing
+     * blocks and the statements containing the edit for nested ones.
+     */
+    public static CoffeeScriptNativeTokenDiff compute(List<CoffeeScriptNativeToken> oldTokens, List<CoffeeScriptNativeToken> newTokens,
+            int startLine, int startColumn, int oldEndLine, int oldEndColumn, int newEndLine, int newEndColumn) {
+        int oldSize = oldTokens.size(), newSize = newTokens.size();
+        int lineShift = newEndLine - oldEndLine;
+        int columnShift = newEndColumn - oldEndColumn;
+        Shift shift = new Shift(lineShift, oldEndLine, columnShift);
+
+        int trusted = trustedPrefix(oldTokens, newTokens, Math.min(firstOnOrAfterLine(oldTokens, startLine - 1), newSize));
+        int prefix = commonPrefix(oldTokens, newTokens, trusted);
+
+        int i = Math.max(firstOnOrAfterLine(oldTokens, oldEndLine + 2), prefix);
+        int j = Math.max(firstOnOrAfterLine(newTokens, newEndLine + 2), prefix);
+        while(i < oldSize && j < newSize) {
+            CoffeeScriptNativeToken o = oldTokens.get(i), n = newTokens.get(j);
+            int c = compare(shift.line(o.getFirstLine()), shift.column(o.getFirstLine(), o.getFirstColumn()), n.getFirstLine(), n.getFirstColumn());
+            if(c < 0) {
+                i++;
+            } else if(c > 0) {
+                j++;
+            } else if(equal(o, n, shift)) {
+                break;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        while(i > prefix && j > prefix && equal(oldTokens.get(i - 1), newTokens.get(j - 1), shift)) {
+            i--;
+            j--;
+        }
+        if(oldSize - i != newSize - j || !sameNesting(oldTokens, prefix, i, newTokens, prefix, j, shift)) {
+            int suffix = commonSuffix(oldTokens, newTokens, prefix, shift);
+            return new CoffeeScriptNativeTokenDiff(prefix, oldSize - suffix, newSize - suffix, lineShift, columnShift);
+        }
+        return new CoffeeScriptNativeTokenDiff(prefix, i, j, lineShift, columnShift);
+    }
+
+    // index following the last TERMINATOR before from that is unchanged and is not nested in brackets
+    // or blocks enclosing from; statements ended by it are rewritten the same in both lists
+    private static int trustedPrefix(List<CoffeeScriptNativeToken> oldTokens, List<CoffeeScriptNativeToken> newTokens, int from) {
+        int depth = 0, outermost = 0;
+        for(int k = from - 1; k >= 0; k--) {
+            CoffeeScriptNativeToken token = oldTokens.get(k);
+            String tag = token.getTag();
+            if(CLOSING.contains(tag)) {
+                depth++;
+            } else if(OPENING.contains(tag)) {
+                outermost = Math.min(outermost, --depth);
+            } else if(tag.equals("TERMINATOR") && depth == outermost && equal(token, newTokens.get(k), null)) {
+                return k + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int commonPrefix(List<CoffeeScriptNativeToken> oldTokens, List<CoffeeScriptNativeToken> newTokens, int from) {
+        int limit = Math.min(oldTokens.size(), newTokens.size());
+        int k = from;
+        while(k < limit && equal(oldTokens.get(k), newTokens.get(k), null)) {
+            k++;
+        }
+        return k;
+    }
+
+    private static int commonSuffix(List<CoffeeScriptNativeToken> oldTokens, List<CoffeeScriptNativeToken> newTokens, int prefix, Shift shift) {
+        int oldSize = oldTokens.size(), newSize = newTokens.size();
+        int k = 0;
+        while(oldSize - k > prefix && newSize - k > prefix && equal(oldTokens.get(oldSize - k - 1), newTokens.get(newSize - k - 1), shift)) {
+            k++;
+        }
+        return k;
+    }
+
+    // whether both changed ranges close the same enclosing blocks, leave the same blocks open and
+    // end at the same indentation; the tokens closing the blocks left open are generated from
+    // tokens inside the ranges, so they are compared as well
+    private static boolean sameNesting(List<CoffeeScriptNativeToken> oldTokens, int oldStart, int oldEnd,
+            List<CoffeeScriptNativeToken> newTokens, int newStart, int newEnd, Shift shift) {
+        Nesting oldNesting = new Nesting(oldTokens, oldStart, oldEnd);
+        if(!oldNesting.equals(new Nesting(newTokens, newStart, newEnd))) {
+            return false;
+        }
+        int depth = oldNesting.open.size();
+        for(int k = 0; depth > 0 && oldEnd + k < oldTokens.size(); k++) {
+            CoffeeScriptNativeToken token = oldTokens.get(oldEnd + k);
+            if(!equal(token, newTokens.get(newEnd + k), shift)) {
+                return false;
+            }
+            if(OPENING.contains(token.getTag())) {
+                depth++;
+            } else if(CLOSING.contains(token.getTag())) {
+                depth--;
+            }
+        }
+        return true;
+    }
+
+    private static class Nesting {
+        private final List<String> closed = new ArrayList<String>();
+        private final List<String> open = new ArrayList<String>();
+        private int indentation;
+
+        Nesting(List<CoffeeScriptNativeToken> tokens, int start, int end) {
+            for(int k = start; k < end; k++) {
+                CoffeeScriptNativeToken token = tokens.get(k);
+                String tag = token.getTag();
+                if(tag.equals("INDENT")) {
+                    indentation += amount(token);
+                } else if(tag.equals("OUTDENT")) {
+                    indentation -= amount(token);
+                }
+                if(OPENING.contains(tag)) {
+                    open.add(tag.equals("INDENT") ? tag + token.getValue() : tag);
+                } else if(CLOSING.contains(tag)) {
+                    if(open.isEmpty()) {
+                        closed.add(tag.equals("OUTDENT") ? tag + token.getValue() : tag);
+                    } else {
+                        open.remove(open.size() - 1);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Nesting)) {
+                return false;
+            }
+            Nesting other = (Nesting) obj;
+            return indentation == other.indentation && closed.equals(other.closed) && open.equals(other.open);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * indentation + closed.hashCode()) + open.hashCode();
+        }
+    }
+
+    private static int amount(CoffeeScriptNativeToken token) {
+        try {
+            return Integer.parseInt(token.getValue());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    // index of the first token starting on or after line, tokens being ordered by line
+    private static int firstOnOrAfterLine(List<CoffeeScriptNativeToken> tokens, int line) {
+        int low = 0, high = tokens.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(tokens.get(mid).getFirstLine() < line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(int line1, int column1, int line2, int column2) {
+        return (line1 != line2) ? (line1 < line2 ? -1 : 1) : (column1 < column2 ? -1 : (column1 == column2 ? 0 : 1));
+    }
+
+    private static boolean equal(CoffeeScriptNativeToken o, CoffeeScriptNativeToken n, Shift shift) {
+        if(!o.getTag().equals(n.getTag()) || !o.getValue().equals(n.getValue())) {
+            return false;
+        }
+        if(shift == null) {
+            // an edit within a comment moves the offsets of the tokens after it, but not their lines and columns
+            return o.getFirstLine() == n.getFirstLine() && o.getFirstColumn() == n.getFirstColumn()
+                    && o.getLastLine() == n.getLastLine() && o.getLastColumn() == n.getLastColumn()
+                    && o.getStartOffset() == n.getStartOffset() && o.getEndOffset() == n.getEndOffset();
+        }
+        return shift.line(o.getFirstLine()) == n.getFirstLine() && shift.column(o.getFirstLine(), o.getFirstColumn()) == n.getFirstColumn()
+                && shift.line(o.getLastLine()) == n.getLastLine() && shift.column(o.getLastLine(), o.getLastColumn()) == n.getLastColumn();
+    }
+
+    // maps old positions after the edit to new positions
+    private static class Shift {
+        private final int lines;
+        private final int editLine;
+        private final int columns;
+
+        Shift(int lines, int editLine, int columns) {
+            this.lines = lines;
+            this.editLine = editLine;
+            this.columns = columns;
+        }
+
+        int line(int line) {
+            return line + lines;
+        }
+
+        int column(int line, int column) {
+            return (line == editLine) ? column + columns : column;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package coffeescript.lexer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable token list sharing structure with the versions it was updated
+ * from, for keeping several versions of a document's tokens, like those of
+ * the undo history, of background analyses and of the editor, at the cost of
+ * about one copy plus the edits.
+ * <p>
+ * The tokens are kept in chunks at the leaves of a balanced tree. Every node
+ * may shift the offsets and lines of the tokens below it and resolve them
+ * through the line table of a later document, so the tokens after an edit are
+ * moved by replacing the O(log n) nodes on the path to the edit, while the
+ * chunks themselves are shared; only the tokens next to the edit differing
+ * from those of the edited document are replaced one by one, so an update
+ * takes O(changed + log n) besides the diff. Tokens of moved chunks are returned as new
+ * tokens equal to the tokens of the document, created on each access; other
+ * tokens are returned as they were lexed. Tokens must not be changed once they
+ * are in a rope; a {@link #freeze() frozen} rope makes sure they cannot be.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeTokenRope extends AbstractList<CoffeeScriptNativeToken> {
+    private static final int CHUNK_SIZE = 128;
+    private static final CoffeeScriptNativeTokenRope EMPTY = new CoffeeScriptNativeTokenRope(null);
+
+    private final Node root;
+    // whether the tokens are frozen, those created on access included
+    private volatile boolean frozen;
+
+    private CoffeeScriptNativeTokenRope(Node root) {
+        this.root = root;
+    }
+
+    public static CoffeeScriptNativeTokenRope of(List<CoffeeScriptNativeToken> tokens) {
+        return tokens.isEmpty() ? EMPTY : new CoffeeScriptNativeTokenRope(build(tokens, 0, (tokens.size() + CHUNK_SIZE - 1) / CHUNK_SIZE));
+    }
+
+    // balanced tree of the chunks from chunk before end
+    private static Node build(List<CoffeeScriptNativeToken> tokens, int chunk, int end) {
+        if(end - chunk == 1) {
+            List<CoffeeScriptNativeToken> range = tokens.subList(chunk * CHUNK_SIZE, Math.min((chunk + 1) * CHUNK_SIZE, tokens.size()));
+            return new Leaf(range.toArray(new CoffeeScriptNativeToken[range.size()]), 0, 0, null);
+        }
+        int mid = (chunk + end) >>> 1;
+        return new Branch(build(tokens, chunk, mid), build(tokens, mid, end), 0, 0, null);
+    }
+
+    /**
+     * Creates the version of the rope for the tokens of the edited document.
+     * The tokens outside of the changed range of <code>diff</code>, computed
+     * between the tokens of this rope and <code>tokens</code>, are shared
+     * with this rope, so <code>tokens</code> may be dropped afterwards.
+     */
+    public CoffeeScriptNativeTokenRope update(List<CoffeeScriptNativeToken> tokens, CoffeeScriptNativeTokenDiff diff) {
+        int start = diff.getChangedStart();
+        int oldEnd = diff.getOldChangedEnd();
+        int newEnd = diff.getNewChangedEnd();
+        Node[] prefix = split(root, start);
+        Node[] suffix = split(prefix[1], oldEnd - start);
+        Node kept = patch(prefix[0], tokens.subList(0, start), start - CHUNK_SIZE, start);
+        if(kept == null) {
+            start = 0;
+        }
+        Node moved = suffix[1];
+        if(moved != null) {
+            int offsetShift = offsetShift(tokens, newEnd);
+            // even tokens not moved may be on other columns, which the lines of the document resolve
+            moved = moved.shifted(offsetShift, diff.getLineShift(), tokens.get(tokens.size() - 1).getLineTable());
+            moved = (moved.size == tokens.size() - newEnd) ? patch(moved, tokens.subList(newEnd, tokens.size()), 0, CHUNK_SIZE) : null;
+            if(moved == null) {
+                newEnd = tokens.size();
+            }
+        }
+        Node changed = (newEnd > start) ? build(tokens.subList(start, newEnd), 0, (newEnd - start + CHUNK_SIZE - 1) / CHUNK_SIZE) : null;
+        Node result = join(join(kept, changed), moved);
+        return (result == null) ? EMPTY : new CoffeeScriptNativeTokenRope(result);
+    }
+
+    // the offset shift of the tokens of the kept suffix from newEnd in tokens; the first of them may
+    // span the edit, like an outdent on a line losing indentation, so it is taken from the last token
+    // with an offset, which follows the edit unless the suffix is so short that it is patched in full
+    private int offsetShift(List<CoffeeScriptNativeToken> tokens, int newEnd) {
+        int oldIndex = size() - 1;
+        for(int k = tokens.size() - 1; k >= newEnd; k--, oldIndex--) {
+            int offset = tokens.get(k).getStartOffset();
+            if(offset != -1) {
+                return offset - get(oldIndex).getStartOffset();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Replaces the tokens of <code>node</code> between <code>from</code> and
+     * <code>to</code> which differ from <code>tokens</code> by those. The
+     * tokens kept by the diff have the tags, values and positions of the
+     * edited document, but the diff does not compare whitespace flags and
+     * offsets, which only differ for tokens next to the edit; so only those
+     * are checked, visiting the O(log n) nodes above them.
+     *
+     * @return the patched node, null if node is null or too many of its
+     * tokens differ
+     */
+    private static Node patch(Node node, List<CoffeeScriptNativeToken> tokens, int from, int to) {
+        int[] mismatches = new int[CHUNK_SIZE];
+        int count = (node != null) ? mismatches(node, 0, 0, tokens, 0, Math.max(from, 0), Math.min(to, node.size), mismatches, 0) : -1;
+        if(count < 0) {
+            return null;
+        }
+        Node patched = null;
+        int next = 0;
+        for(int i = 0; i < count; i++) {
+            int mismatch = mismatches[i];
+            Node[] parts = split(node, mismatch - next);
+            Node taken = new Leaf(new CoffeeScriptNativeToken[]{tokens.get(mismatch)}, 0, 0, null);
+            patched = join(join(patched, parts[0]), taken);
+            node = split(parts[1], 1)[1];
+            next = mismatch + 1;
+        }
+        return join(patched, node);
+    }
+
+    // adds to the count indexes in result those of the tokens from from before to below node, whose
+    // first token is the first-th, which differ from the tokens of the document after moving them;
+    // -1 when there are too many of them
+    private static int mismatches(Node node, int offsetShift, int lineShift, List<CoffeeScriptNativeToken> tokens, int first, int from, int to,
+            int[] result, int count) {
+        if(count < 0 || first >= to || first + node.size <= from) {
+            return count;
+        }
+        offsetShift += node.offsetShift;
+        lineShift += node.lineShift;
+        if(node instanceof Branch) {
+            Branch branch = (Branch) node;
+            count = mismatches(branch.left, offsetShift, lineShift, tokens, first, from, to, result, count);
+            return mismatches(branch.right, offsetShift, lineShift, tokens, first + branch.left.size, from, to, result, count);
+        }
+        CoffeeScriptNativeToken[] leafTokens = ((Leaf) node).tokens;
+        for(int k = Math.max(from - first, 0); k < leafTokens.length && first + k < to; k++) {
+            if(!leafTokens[k].isMovedTo(tokens.get(first + k), offsetShift, lineShift)) {
+                if(count == result.length) {
+                    return -1;
+                }
+                result[count++] = first + k;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public CoffeeScriptNativeToken get(int index) {
+        if(index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        CoffeeScriptNativeToken token = token(root, index);
+        if(frozen) {
+            // moved tokens are created for each access
+            token.freeze();
+        }
+        return token;
+    }
+
+    /**
+     * Freezes the tokens of the rope in place, including those created for
+     * moved chunks on later accesses, so that the rope can be shared with
+     * other threads. Chunks already frozen with an earlier version are
+     * skipped, so freezing an updated rope takes O(changed + log n).
+     *
+     * @return this rope
+     */
+    CoffeeScriptNativeTokenRope freeze() {
+        if(!frozen) {
+            if(root != null) {
+                freeze(root);
+            }
+            frozen = true;
+        }
+        return this;
+    }
+
+    private static void freeze(Node node) {
+        if(node.frozen) {
+            return;
+        }
+        if(node instanceof Leaf) {
+            for(CoffeeScriptNativeToken token : ((Leaf) node).tokens) {
+                token.freeze();
+            }
+        } else {
+            freeze(((Branch) node).left);
+            freeze(((Branch) node).right);
+        }
+        node.frozen = true;
+    }
+
+    @Override
+    public int size() {
+        return (root == null) ? 0 : root.size;
+    }
+
+    private static CoffeeScriptNativeToken token(Node node, int index) {
+        int offsetShift = 0, lineShift = 0;
+        CoffeeScriptNativeLineTable lines = null;
+        while(true) {
+            offsetShift += node.offsetShift;
+            lineShift += node.lineShift;
+            if(lines == null) {
+                // the outermost table is the latest one
+                lines = node.lines;
+            }
+            if(node instanceof Leaf) {
+                CoffeeScriptNativeToken token = ((Leaf) node).tokens[index];
+                if(offsetShift == 0 && lineShift == 0 && (lines == null || lines == token.getLineTable())) {
+                    return token;
+                }
+                return token.moved(lines, offsetShift, lineShift);
+            }
+            Branch branch = (Branch) node;
+            if(index < branch.left.size) {
+                node = branch.left;
+            } else {
+                index -= branch.left.size;
+                node = branch.right;
+            }
+        }
+    }
+
+    // the first index tokens and the rest, either null when empty
+    private static Node[] split(Node node, int index) {
+        if(index == 0) {
+            return new Node[]{null, node};
+        }
+        if(index == node.size) {
+            return new Node[]{node, null};
+        }
+        if(node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            return new Node[]{leaf.range(0, index), leaf.range(index, leaf.size)};
+        }
+        Node left = ((Branch) node).left(), right = ((Branch) node).right();
+        if(index <= left.size) {
+            Node[] parts = split(left, index);
+            return new Node[]{parts[0], join(parts[1], right)};
+        }
+        Node[] parts = split(right, index - left.size);
+        return new Node[]{join(left, parts[0]), parts[1]};
+    }
+
+    // concatenation keeping the heights of siblings within one
+    private static Node join(Node left, Node right) {
+        if(left == null) {
+            return right;
+        }
+        if(right == null) {
+            return left;
+        }
+        if(left instanceof Leaf && right instanceof Leaf && left.size + right.size <= CHUNK_SIZE) {
+            return Leaf.concat((Leaf) left, (Leaf) right);
+        }
+        if(left.height > right.height + 1) {
+            Branch branch = (Branch) left;
+            Node l = branch.left(), r = join(branch.right(), right);
+            return (r.height > l.height + 1) ? rotateLeft(l, (Branch) r) : new Branch(l, r, 0, 0, null);
+        }
+        if(right.height > left.height + 1) {
+            Branch branch = (Branch) right;
+            Node l = join(left, branch.left()), r = branch.right();
+            return (l.height > r.height + 1) ? rotateRight((Branch) l, r) : new Branch(l, r, 0, 0, null);
+        }
+        return new Branch(left, right, 0, 0, null);
+    }
+
+    // balances a branch of left and right, right being two higher
+    private static Node rotateLeft(Node left, Branch right) {
+        Node rl = right.left(), rr = right.right();
+        if(rl.height > rr.height) {
+            Branch inner = (Branch) rl;
+            return new Branch(new Branch(left, inner.left(), 0, 0, null), new Branch(inner.right(), rr, 0, 0, null), 0, 0, null);
+        }
+        return new Branch(new Branch(left, rl, 0, 0, null), rr, 0, 0, null);
+    }
+
+    // balances a branch of left and right, left being two higher
+    private static Node rotateRight(Branch left, Node right) {
+        Node ll = left.left(), lr = left.right();
+        if(lr.height > ll.height) {
+            Branch inner = (Branch) lr;
+            return new Branch(new Branch(ll, inner.left(), 0, 0, null), new Branch(inner.right(), right, 0, 0, null), 0, 0, null);
+        }
+        return new Branch(ll, new Branch(lr, right, 0, 0, null), 0, 0, null);
+    }
+
+    private static abstract class Node {
+        final int size;
+        final int height;
+        // added to the offsets and explicitly set lines of the tokens below
+        final int offsetShift;
+        final int lineShift;
+        // resolves the lines of the tokens below unless a node above has one
+        final CoffeeScriptNativeLineTable lines;
+        // whether the tokens below are frozen, set once all of them are
+        volatile boolean frozen;
+
+        Node(int size, int height, int offsetShift, int lineShift, CoffeeScriptNativeLineTable lines) {
+            this.size = size;
+            this.height = height;
+            this.offsetShift = offsetShift;
+            this.lineShift = lineShift;
+            this.lines = lines;
+        }
+
+        boolean isShifted() {
+            return offsetShift != 0 || lineShift != 0 || lines != null;
+        }
+
+        /**
+         * @return node with the tokens of this one moved further, sharing
+         * its children or tokens
+         */
+        abstract Node shifted(int offsetShift, int lineShift, CoffeeScriptNativeLineTable lines);
+
+        // the shift of outer applied to this node
+        Node under(Node outer) {
+            return outer.isShifted() ? shifted(outer.offsetShift, outer.lineShift, outer.lines) : this;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final CoffeeScriptNativeToken[] tokens;
+
+        Leaf(CoffeeScriptNativeToken[] tokens, int offsetShift, int lineShift, CoffeeScriptNativeLineTable lines) {
+            super(tokens.length, 0, offsetShift, lineShift, lines);
+            this.tokens = tokens;
+        }
+
+        @Override
+        Node shifted(int offsetShift, int lineShift, CoffeeScriptNativeLineTable lines) {
+            Leaf leaf = new Leaf(tokens, this.offsetShift + offsetShift, this.lineShift + lineShift, (lines != null) ? lines : this.lines);
+            leaf.frozen = frozen;
+            return leaf;
+        }
+
+        Leaf range(int from, int to) {
+            Leaf leaf = new Leaf(Arrays.copyOfRange(tokens, from, to), offsetShift, lineShift, lines);
+            leaf.frozen = frozen;
+            return leaf;
+        }
+
+        static Leaf concat(Leaf first, Leaf second) {
+            if(first.offsetShift == second.offsetShift && first.lineShift == second.lineShift && first.lines == second.lines) {
+                CoffeeScriptNativeToken[] tokens = Arrays.copyOf(first.tokens, first.size + second.size);
+                System.arraycopy(second.tokens, 0, tokens, first.size, second.size);
+                Leaf leaf = new Leaf(tokens, first.offsetShift, first.lineShift, first.lines);
+                leaf.frozen = first.frozen && second.frozen;
+                return leaf;
+            }
+            // small leaves moved apart, their tokens are moved into a new chunk
+            CoffeeScriptNativeToken[] tokens = new CoffeeScriptNativeToken[first.size + second.size];
+            for(int k = 0; k < tokens.length; k++) {
+                tokens[k] = token((k < first.size) ? first : second, (k < first.size) ? k : k - first.size);
+            }
+            return new Leaf(tokens, 0, 0, null);
+        }
+    }
+
+    private static final class Branch extends Node {
+        private final Node left;
+        private final Node right;
+
+        Branch(Node left, Node right, int offsetShift, int lineShift, CoffeeScriptNativeLineTable lines) {
+            super(left.size + right.size, Math.max(left.height, right.height) + 1, offsetShift, lineShift, lines);
+            this.left = left;
+            this.right = right;
+            this.frozen = left.frozen && right.frozen;
+        }
+
+        @Override
+        Node shifted(int offsetShift, int lineShift, CoffeeScriptNativeLineTable lines) {
+            return new Branch(left, right, this.offsetShift + offsetShift, this.lineShift + lineShift, (lines != null) ? lines : this.lines);
+        }
+
+        // children with the shift of this branch applied
+        Node left() {
+            return left.under(this);
+        }
+
+        Node right() {
+            return right.under(this);
+        }
+    }
+}
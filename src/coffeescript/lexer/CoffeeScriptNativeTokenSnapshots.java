@@ -0,0 +1,113 @@
+package coffeescript.lexer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latest token stream of a document, published to concurrent readers
+ * without locks. A writer publishes each new stream as an immutable
+ * {@link Snapshot} through an atomic reference; readers take the current
+ * snapshot and read it as long as they like, while writers publish the
+ * next ones. Neither waits for the other.
+ * <p>
+ * Publishing freezes the tokens, whose setters throw from then on, so the
+ * writer hands them over and must lex or copy the next version instead of
+ * changing them. Lists are copied unless they are a
+ * {@link CoffeeScriptNativeTokenRope}, which never changes and shares its
+ * tokens with the snapshots of the other versions; only its chunks not
+ * published before are frozen.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeTokenSnapshots {
+    private final AtomicReference<Snapshot> current;
+
+    public CoffeeScriptNativeTokenSnapshots() {
+        List<CoffeeScriptNativeToken> empty = Collections.emptyList();
+        this.current = new AtomicReference<Snapshot>(new Snapshot(0, empty));
+    }
+
+    /**
+     * @return the latest snapshot, of version 0 without tokens before the
+     * first is published
+     */
+    public Snapshot get() {
+        return current.get();
+    }
+
+    /**
+     * Publishes <code>tokens</code> as the version following the current
+     * one.
+     */
+    public Snapshot publish(List<CoffeeScriptNativeToken> tokens) {
+        List<CoffeeScriptNativeToken> frozen = freeze(tokens);
+        while(true) {
+            Snapshot snapshot = current.get();
+            Snapshot next = new Snapshot(snapshot.version + 1, frozen);
+            if(current.compareAndSet(snapshot, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Publishes <code>tokens</code> as <code>version</code>, like the
+     * modification stamp of the lexed text, unless a snapshot of the same or
+     * a later version is published already; writers lexing several versions
+     * concurrently thus never replace a newer stream by an older one.
+     *
+     * @return whether the tokens were published
+     */
+    public boolean publish(long version, List<CoffeeScriptNativeToken> tokens) {
+        Snapshot next = null;
+        while(true) {
+            Snapshot snapshot = current.get();
+            if(snapshot.version >= version) {
+                return false;
+            }
+            if(next == null) {
+                next = new Snapshot(version, freeze(tokens));
+            }
+            if(current.compareAndSet(snapshot, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static List<CoffeeScriptNativeToken> freeze(List<CoffeeScriptNativeToken> tokens) {
+        if(tokens instanceof CoffeeScriptNativeTokenRope) {
+            // the tokens of the rope, not the moved copies get() creates
+            return ((CoffeeScriptNativeTokenRope) tokens).freeze();
+        }
+        for(CoffeeScriptNativeToken token : tokens) {
+            token.freeze();
+        }
+        return Collections.unmodifiableList(Arrays.asList(tokens.toArray(new CoffeeScriptNativeToken[tokens.size()])));
+    }
+
+    /**
+     * Read only token stream of one version of a document.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<CoffeeScriptNativeToken> tokens;
+
+        private Snapshot(long version, List<CoffeeScriptNativeToken> tokens) {
+            this.version = version;
+            this.tokens = tokens;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the frozen tokens, in a list that cannot be changed
+         */
+        public List<CoffeeScriptNativeToken> getTokens() {
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package coffeescript.lexer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Token stream kept outside of the Java heap. Tags, positions and flags of
+ * every token are written into fixed size records in direct buffers, values
+ * are stored once per distinct string, so the garbage collector only sees a
+ * few objects per store however many tokens it holds. Tokens are read through
+ * a {@link Cursor} or materialized on demand.
+ * <p>
+ * A store must be {@link #close() closed} when it is no longer needed. Java
+ * cannot free direct memory explicitly, so closing drops the buffers and makes
+ * the store and its cursors unusable; the memory itself is returned once the
+ * buffers are collected.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeTokenStore implements Closeable {
+    // record: tag, value, start and end offset, first line, first column, last line, last column, flags
+    private static final int TAG = 0;
+    private static final int VALUE = 4;
+    private static final int START_OFFSET = 8;
+    private static final int END_OFFSET = 12;
+    private static final int FIRST_LINE = 16;
+    private static final int FIRST_COLUMN = 20;
+    private static final int LAST_LINE = 24;
+    private static final int LAST_COLUMN = 28;
+    private static final int FLAGS = 32;
+    private static final int RECORD_SIZE = 36;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private static final int SPACED = 1;
+    private static final int NEW_LINE = 2;
+    private static final int STRING_END = 4;
+    private static final int EXPLICIT = 8;
+    private static final int RESERVED = 16;
+    private static final int FROM_THEN = 32;
+    private static final int GENERATED = 64;
+    private static final int NOT_GENERATED = 128;
+
+    private volatile ByteBuffer[] pages;
+    private final int size;
+    private final String[] tags;
+    private final String[] values;
+    // interpolated strings keep their own structure
+    private final Map<Integer, CoffeeScriptNativeToken> strings;
+
+    private CoffeeScriptNativeTokenStore(ByteBuffer[] pages, int size, String[] tags, String[] values, Map<Integer, CoffeeScriptNativeToken> strings) {
+        this.pages = pages;
+        this.size = size;
+        this.tags = tags;
+        this.values = values;
+        this.strings = strings;
+    }
+
+    /**
+     * Copies <code>tokens</code> into a new store. The list can be dropped
+     * afterwards.
+     */
+    public static CoffeeScriptNativeTokenStore of(List<CoffeeScriptNativeToken> tokens) {
+        Builder builder = new Builder(tokens.size());
+        builder.addAll(tokens);
+        return builder.build();
+    }
+
+    private static int id(String s, List<String> table, Map<String, Integer> ids) {
+        if(s == null) {
+            return -1;
+        }
+        Integer id = ids.get(s);
+        if(id == null) {
+            id = table.size();
+            table.add(s);
+            ids.put(s, id);
+        }
+        return id;
+    }
+
+    private static int flags(CoffeeScriptNativeToken token) {
+        int flags = 0;
+        if(token.getSpaced()) {
+            flags |= SPACED;
+        }
+        if(token.getNewLine()) {
+            flags |= NEW_LINE;
+        }
+        if(token.getStringEnd()) {
+            flags |= STRING_END;
+        }
+        if(token.getExplicit()) {
+            flags |= EXPLICIT;
+        }
+        if(token.getReserved()) {
+            flags |= RESERVED;
+        }
+        if(token.getFromThen()) {
+            flags |= FROM_THEN;
+        }
+        if(token.getGenerated() != null) {
+            flags |= token.getGenerated() ? GENERATED : NOT_GENERATED;
+        }
+        return flags;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return cursor positioned before the first token
+     */
+    public Cursor cursor() {
+        checkOpen();
+        return new Cursor();
+    }
+
+    /**
+     * Creates a heap token equal to the <code>index</code>-th token. Changes
+     * to the returned token are not written back.
+     */
+    public CoffeeScriptNativeToken get(int index) {
+        Cursor cursor = cursor();
+        cursor.moveTo(index);
+        return cursor.getToken();
+    }
+
+    /**
+     * @return read only list view creating heap tokens on access
+     */
+    public List<CoffeeScriptNativeToken> asList() {
+        return new AbstractList<CoffeeScriptNativeToken>() {
+            @Override
+            public CoffeeScriptNativeToken get(int index) {
+                return CoffeeScriptNativeTokenStore.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Rewrites the tokens of this store, which is left unchanged, into a new
+     * store. The tokens are read and written a part of the stream at a time,
+     * so only the tokens of the top-level statements being rewritten are
+     * created on the heap.
+     */
+    public CoffeeScriptNativeTokenStore rewrite(CoffeeScriptNativeCancellation cancellation) {
+        Builder builder = new Builder(size + size / 4);
+        Rewriter.rewrite(cursor(), builder, cancellation);
+        return builder.build();
+    }
+
+    public boolean isClosed() {
+        return pages == null;
+    }
+
+    @Override
+    public void close() {
+        pages = null;
+    }
+
+    private void checkOpen() {
+        if(pages == null) {
+            throw new IllegalStateException("token store is closed");
+        }
+    }
+
+    /**
+     * Writes tokens one after the other into a new store.
+     */
+    static final class Builder {
+        private ByteBuffer[] pages = new ByteBuffer[1];
+        private int size;
+        private final int expectedSize;
+        private final List<String> tags = new ArrayList<String>();
+        private final List<String> values = new ArrayList<String>();
+        private final Map<String, Integer> tagIds = new HashMap<String, Integer>();
+        private final Map<String, Integer> valueIds = new HashMap<String, Integer>();
+        private final Map<Integer, CoffeeScriptNativeToken> strings = new HashMap<Integer, CoffeeScriptNativeToken>();
+
+        /**
+         * @param expectedSize number of tokens the pages are sized for, they
+         * grow if more are added
+         */
+        Builder(int expectedSize) {
+            this.expectedSize = expectedSize;
+        }
+
+        void addAll(List<CoffeeScriptNativeToken> tokens) {
+            for(CoffeeScriptNativeToken token : tokens) {
+                add(token);
+            }
+        }
+
+        void add(CoffeeScriptNativeToken token) {
+            int index = size;
+            ByteBuffer buffer = page(index);
+            int offset = (index & PAGE_MASK) * RECORD_SIZE;
+            buffer.putInt(offset + TAG, id(token.getTag(), tags, tagIds));
+            buffer.putInt(offset + VALUE, id(token.getValue(), values, valueIds));
+            buffer.putInt(offset + START_OFFSET, token.getStartOffset());
+            buffer.putInt(offset + END_OFFSET, token.getEndOffset());
+            buffer.putInt(offset + FIRST_LINE, token.getFirstLine());
+            buffer.putInt(offset + FIRST_COLUMN, token.getFirstColumn());
+            buffer.putInt(offset + LAST_LINE, token.getLastLine());
+            buffer.putInt(offset + LAST_COLUMN, token.getLastColumn());
+            buffer.putInt(offset + FLAGS, flags(token));
+            if(token instanceof CoffeeScriptNativeStringToken) {
+                strings.put(index, token);
+            }
+            size++;
+        }
+
+        // page holding the index-th record, allocated for the expected size or grown by doubling
+        private ByteBuffer page(int index) {
+            int page = index >>> PAGE_BITS;
+            if(page == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            ByteBuffer buffer = pages[page];
+            int records = (index & PAGE_MASK) + 1;
+            if(buffer == null || buffer.capacity() < records * RECORD_SIZE) {
+                int capacity = (buffer == null) ? expectedSize - (page << PAGE_BITS) : 2 * buffer.capacity() / RECORD_SIZE;
+                capacity = Math.min(Math.max(capacity, records), PAGE_MASK + 1);
+                ByteBuffer grown = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+                if(buffer != null) {
+                    buffer.clear();
+                    grown.put(buffer);
+                    grown.clear();
+                }
+                pages[page] = buffer = grown;
+            }
+            return buffer;
+        }
+
+        CoffeeScriptNativeTokenStore build() {
+            return new CoffeeScriptNativeTokenStore(Arrays.copyOf(pages, (size + PAGE_MASK) >>> PAGE_BITS), size,
+                    tags.toArray(new String[tags.size()]), values.toArray(new String[values.size()]), strings);
+        }
+    }
+
+    /**
+     * Reads tokens of the store without creating objects for them. A cursor
+     * is not thread safe, but any number of cursors may read one store.
+     */
+    public final class Cursor {
+        private int index = -1;
+        private ByteBuffer page;
+        private int offset;
+
+        private Cursor() {
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Moves to the next token.
+         *
+         * @return <code>false</code> at the end of the store
+         */
+        public boolean next() {
+            if(index + 1 >= size) {
+                index = size;
+                return false;
+            }
+            moveTo(index + 1);
+            return true;
+        }
+
+        /**
+         * Moves to the previous token.
+         *
+         * @return <code>false</code> at the beginning of the store
+         */
+        public boolean previous() {
+            if(index <= 0) {
+                index = -1;
+                return false;
+            }
+            moveTo(index - 1);
+            return true;
+        }
+
+        public void moveTo(int index) {
+            if(index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            ByteBuffer[] current = pages;
+            if(current == null) {
+                throw new IllegalStateException("token store is closed");
+            }
+            this.index = index;
+            this.page = current[index >>> PAGE_BITS];
+            this.offset = (index & PAGE_MASK) * RECORD_SIZE;
+        }
+
+        public String getTag() {
+            return tags[read(TAG)];
+        }
+
+        public String getValue() {
+            int value = read(VALUE);
+            return (value == -1) ? null : values[value];
+        }
+
+        public int getStartOffset() {
+            return read(START_OFFSET);
+        }
+
+        public int getEndOffset() {
+            return read(END_OFFSET);
+        }
+
+        public int getFirstLine() {
+            return read(FIRST_LINE);
+        }
+
+        public int getFirstColumn() {
+            return read(FIRST_COLUMN);
+        }
+
+        public int getLastLine() {
+            return read(LAST_LINE);
+        }
+
+        public int getLastColumn() {
+            return read(LAST_COLUMN);
+        }
+
+        public boolean getSpaced() {
+            return (read(FLAGS) & SPACED) != 0;
+        }
+
+        public boolean getNewLine() {
+            return (read(FLAGS) & NEW_LINE) != 0;
+        }
+
+        public boolean getReserved() {
+            return (read(FLAGS) & RESERVED) != 0;
+        }
+
+        public Boolean getGenerated() {
+            int flags = read(FLAGS);
+            return ((flags & GENERATED) != 0) ? Boolean.TRUE : (((flags & NOT_GENERATED) != 0) ? Boolean.FALSE : null);
+        }
+
+        /**
+         * Creates a heap token equal to the current one.
+         */
+        public CoffeeScriptNativeToken getToken() {
+            int flags = read(FLAGS);
+            CoffeeScriptNativeToken string = strings.get(index);
+            CoffeeScriptNativeToken token = (string != null) ? ((CoffeeScriptNativeStringToken) string).copy()
+                    : new CoffeeScriptNativeToken(getTag(), getValue(), null, null);
+            token.setGenerated(getGenerated());
+            token.setSpaced((flags & SPACED) != 0);
+            token.setNewLine((flags & NEW_LINE) != 0);
+            token.setStringEnd((flags & STRING_END) != 0);
+            token.setExplicit((flags & EXPLICIT) != 0);
+            token.setReserved((flags & RESERVED) != 0);
+            token.setFromThen((flags & FROM_THEN) != 0);
+            token.setOffsets(null, getStartOffset(), getEndOffset());
+            token.setLocationData(new int[]{getFirstLine(), getFirstColumn()}, new int[]{getLastLine(), getLastColumn()});
+            return token;
+        }
+
+        private int read(int field) {
+            if(page == null) {
+                throw new IllegalStateException("cursor is not on a token");
+            }
+            if(pages == null) {
+                throw new IllegalStateException("token store is closed");
+            }
+            return page.getInt(offset + field);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package coffeescript.lexer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Raw and rewritten token streams of one lex, for consumers needing both,
+ * like an editor highlighting the raw tokens and parsing the rewritten ones.
+ * The rewritten stream is an overlay over the raw one: it refers to the raw
+ * tokens it keeps, adds the tokens generated by the rewriter and copies of
+ * the raw tokens it retags, and leaves out the ones it removes. The raw tokens
+ * themselves are never modified.
+ *
+ * @author milos
+ */
+public final class CoffeeScriptNativeTokenViews {
+    private final List<CoffeeScriptNativeToken> raw;
+    private final List<CoffeeScriptNativeToken> rewritten;
+    private final int[] rawIndexes;
+    private final int[] rewrittenIndexes;
+
+    CoffeeScriptNativeTokenViews(List<CoffeeScriptNativeToken> raw, List<CoffeeScriptNativeToken> rewritten, Map<CoffeeScriptNativeToken, CoffeeScriptNativeToken> copies) {
+        this.raw = Collections.unmodifiableList(raw);
+        this.rewritten = Collections.unmodifiableList(rewritten);
+        this.rawIndexes = new int[rewritten.size()];
+        this.rewrittenIndexes = new int[raw.size()];
+        Arrays.fill(rewrittenIndexes, -1);
+        // the rewriter keeps the raw tokens in order, so one pass pairs them
+        int next = 0;
+        for(int index = 0; index < rawIndexes.length; index++) {
+            CoffeeScriptNativeToken token = rewritten.get(index);
+            CoffeeScriptNativeToken source = copies.get(token);
+            if(source == null) {
+                source = token;
+            }
+            rawIndexes[index] = -1;
+            if(Boolean.TRUE.equals(source.getGenerated()) || source.getExplicit()) {
+                continue;
+            }
+            while(next < raw.size() && raw.get(next) != source) {
+                next++;
+            }
+            if(next < raw.size()) {
+                rawIndexes[index] = next;
+                rewrittenIndexes[next] = index;
+                next++;
+            }
+        }
+    }
+
+    public List<CoffeeScriptNativeToken> getRawTokens() {
+        return raw;
+    }
+
+    public List<CoffeeScriptNativeToken> getRewrittenTokens() {
+        return rewritten;
+    }
+
+    /**
+     * @return index of the raw token a rewritten token is or was copied from,
+     * -1 for tokens generated by the rewriter
+     */
+    public int getRawIndex(int rewrittenIndex) {
+        return rawIndexes[rewrittenIndex];
+    }
+
+    /**
+     * @return index of a raw token or its copy in the rewritten tokens, -1 for
+     * tokens the rewriter removed
+     */
+    public int getRewrittenIndex(int rawIndex) {
+        return rewrittenIndexes[rawIndex];
+    }
+}
@@ -0,0 +1,335 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Token stream encoded into a byte array. Every token is a sequence of
+ * variable length integers: its flags, the ids of its tag and value in the
+ * tables of the stream, the distance of its start from the end of the
+ * previous token and its length. The value id is left out when a token
+ * repeats the value of the previous token with its tag, like most
+ * punctuation and keywords do, so most tokens take four or five bytes.
+ * Lines and columns set directly on a token follow as differences to the
+ * previous such token. Values are stored once per distinct string, packed
+ * into one string.
+ * <p>
+ * Interpolated strings add their interpolation boundaries. Decoding creates
+ * new tokens equal to the encoded ones, sharing their line tables;
+ * interpolated strings lex their expressions again when requested.
+ * The origin of generated tokens is not kept.
+ *
+ * @author milos
+ */
+final class CompressedTokens {
+    // common flags first, so that they fit into the first byte
+    private static final int SPACED = 1;
+    private static final int NEW_LINE = 2;
+    private static final int GENERATED = 4;
+    private static final int NOT_GENERATED = 8;
+    // the value is that of the previous token with the same tag, its id is left out
+    private static final int SAME_VALUE = 16;
+    private static final int LOCATION = 32;
+    private static final int STRING_END = 64;
+    private static final int STRING = 128;
+    private static final int EXPLICIT = 256;
+    private static final int RESERVED = 512;
+    private static final int FROM_THEN = 1024;
+    // the line table differs from that of the previous token, its id follows
+    private static final int LINES = 2048;
+
+    private final byte[] data;
+    private final int size;
+    private final String[] tags;
+    private final String values;
+    private final int[] valueEnds;
+    private final CoffeeScriptNativeLineTable[] lines;
+
+    private CompressedTokens(byte[] data, int size, String[] tags, String values, int[] valueEnds, CoffeeScriptNativeLineTable[] lines) {
+        this.data = data;
+        this.size = size;
+        this.tags = tags;
+        this.values = values;
+        this.valueEnds = valueEnds;
+        this.lines = lines;
+    }
+
+    static CompressedTokens of(List<CoffeeScriptNativeToken> tokens) {
+        int size = tokens.size();
+        Output out = new Output(size * 6 + 16);
+        List<String> tags = new ArrayList<String>();
+        Map<String, Integer> tagIds = new HashMap<String, Integer>();
+        StringBuilder values = new StringBuilder();
+        List<Integer> valueEnds = new ArrayList<Integer>();
+        Map<String, Integer> valueIds = new HashMap<String, Integer>();
+        List<CoffeeScriptNativeLineTable> lines = new ArrayList<CoffeeScriptNativeLineTable>();
+        Map<CoffeeScriptNativeLineTable, Integer> lineIds = new IdentityHashMap<CoffeeScriptNativeLineTable, Integer>();
+        CoffeeScriptNativeLineTable previousLines = null;
+        int[] tagValues = new int[16];
+        int previousEnd = 0;
+        int previousLine = 0;
+        for(int index = 0; index < size; index++) {
+            CoffeeScriptNativeToken token = tokens.get(index);
+            int flags = flags(token);
+            CoffeeScriptNativeLineTable table = token.getLineTable();
+            if(table != previousLines) {
+                flags |= LINES;
+            }
+            if(token instanceof CoffeeScriptNativeStringToken) {
+                flags |= STRING;
+            }
+            int tag = id(token.getTag(), tags, tagIds);
+            if(tag >= tagValues.length) {
+                tagValues = Arrays.copyOf(tagValues, 2 * tag);
+            }
+            // value ids are stored one up, so that no value and new tags are 0
+            int value = 0;
+            if(token.getValue() != null) {
+                Integer id = valueIds.get(token.getValue());
+                if(id == null) {
+                    id = valueEnds.size();
+                    values.append(token.getValue());
+                    valueEnds.add(values.length());
+                    valueIds.put(token.getValue(), id);
+                }
+                value = id + 1;
+            }
+            if(value == tagValues[tag]) {
+                flags |= SAME_VALUE;
+            }
+            tagValues[tag] = value;
+            out.writeInt(flags);
+            if((flags & LINES) != 0) {
+                Integer id = null;
+                if(table != null) {
+                    id = lineIds.get(table);
+                    if(id == null) {
+                        id = lines.size();
+                        lines.add(table);
+                        lineIds.put(table, id);
+                    }
+                }
+                out.writeInt((id == null) ? 0 : id + 1);
+                previousLines = table;
+            }
+            out.writeInt(tag);
+            if((flags & SAME_VALUE) == 0) {
+                out.writeInt(value);
+            }
+            int start = token.getStartOffset();
+            int end = token.getEndOffset();
+            out.writeSigned(start - previousEnd);
+            out.writeSigned(end - start);
+            previousEnd = end;
+            if((flags & STRING) != 0) {
+                CoffeeScriptNativeStringToken string = (CoffeeScriptNativeStringToken) token;
+                int count = string.getInterpolationCount();
+                out.writeInt(2 * count + (string.isRewrite() ? 1 : 0));
+                int previous = 0;
+                for(int k = 0; k < count; k++) {
+                    out.writeInt(string.getInterpolationStart(k) - previous);
+                    out.writeInt(string.getInterpolationEnd(k) - string.getInterpolationStart(k));
+                    previous = string.getInterpolationEnd(k);
+                }
+            }
+            if((flags & LOCATION) != 0) {
+                int firstLine = token.getFirstLine();
+                out.writeSigned(firstLine - previousLine);
+                out.writeSigned(token.getFirstColumn());
+                out.writeSigned(token.getLastLine() - firstLine);
+                out.writeSigned(token.getLastColumn());
+                previousLine = firstLine;
+            }
+        }
+        int[] ends = new int[valueEnds.size()];
+        for(int k = 0; k < ends.length; k++) {
+            ends[k] = valueEnds.get(k);
+        }
+        return new CompressedTokens(out.toByteArray(), size, tags.toArray(new String[tags.size()]), values.toString(), ends,
+                lines.toArray(new CoffeeScriptNativeLineTable[lines.size()]));
+    }
+
+    private static int id(String s, List<String> table, Map<String, Integer> ids) {
+        Integer id = ids.get(s);
+        if(id == null) {
+            id = table.size();
+            table.add(s);
+            ids.put(s, id);
+        }
+        return id;
+    }
+
+    private static int flags(CoffeeScriptNativeToken token) {
+        int flags = 0;
+        if(token.getSpaced()) {
+            flags |= SPACED;
+        }
+        if(token.getNewLine()) {
+            flags |= NEW_LINE;
+        }
+        if(token.getGenerated() != null) {
+            flags |= token.getGenerated() ? GENERATED : NOT_GENERATED;
+        }
+        if(token.isLocationSet()) {
+            flags |= LOCATION;
+        }
+        if(token.getStringEnd()) {
+            flags |= STRING_END;
+        }
+        if(token.getExplicit()) {
+            flags |= EXPLICIT;
+        }
+        if(token.getReserved()) {
+            flags |= RESERVED;
+        }
+        if(token.getFromThen()) {
+            flags |= FROM_THEN;
+        }
+        return flags;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return estimate of the bytes taken by the encoded stream
+     */
+    long getByteSize() {
+        return 64 + data.length + 2L * values.length() + 4L * valueEnds.length + 4L * (tags.length + lines.length);
+    }
+
+    List<CoffeeScriptNativeToken> decode() {
+        List<CoffeeScriptNativeToken> tokens = new ArrayList<CoffeeScriptNativeToken>(size);
+        // equal values stay shared between the decoded tokens
+        String[] decodedValues = new String[valueEnds.length];
+        Input in = new Input(data);
+        CoffeeScriptNativeLineTable table = null;
+        int[] tagValues = new int[tags.length];
+        int previousEnd = 0;
+        int previousLine = 0;
+        for(int index = 0; index < size; index++) {
+            int flags = in.readInt();
+            if((flags & LINES) != 0) {
+                int id = in.readInt();
+                table = (id == 0) ? null : lines[id - 1];
+            }
+            int tag = in.readInt();
+            if((flags & SAME_VALUE) == 0) {
+                tagValues[tag] = in.readInt();
+            }
+            int valueId = tagValues[tag] - 1;
+            String value = null;
+            if(valueId >= 0) {
+                value = decodedValues[valueId];
+                if(value == null) {
+                    value = values.substring((valueId == 0) ? 0 : valueEnds[valueId - 1], valueEnds[valueId]);
+                    decodedValues[valueId] = value;
+                }
+            }
+            int start = previousEnd + in.readSigned();
+            int end = start + in.readSigned();
+            previousEnd = end;
+            CoffeeScriptNativeToken token;
+            if((flags & STRING) != 0) {
+                int header = in.readInt();
+                int[] interpolations = new int[header & ~1];
+                int previous = 0;
+                for(int k = 0; k < interpolations.length; k += 2) {
+                    interpolations[k] = previous + in.readInt();
+                    interpolations[k + 1] = interpolations[k] + in.readInt();
+                    previous = interpolations[k + 1];
+                }
+                token = new CoffeeScriptNativeStringToken(value, interpolations, (header & 1) != 0);
+                token.setTag(tags[tag]);
+            } else {
+                token = new CoffeeScriptNativeToken(tags[tag], value, null, null);
+            }
+            if((flags & GENERATED) != 0) {
+                token.setGenerated(Boolean.TRUE);
+            } else if((flags & NOT_GENERATED) != 0) {
+                token.setGenerated(Boolean.FALSE);
+            }
+            token.setSpaced((flags & SPACED) != 0);
+            token.setNewLine((flags & NEW_LINE) != 0);
+            token.setStringEnd((flags & STRING_END) != 0);
+            token.setExplicit((flags & EXPLICIT) != 0);
+            token.setReserved((flags & RESERVED) != 0);
+            token.setFromThen((flags & FROM_THEN) != 0);
+            token.setOffsets(table, start, end);
+            if((flags & LOCATION) != 0) {
+                int firstLine = previousLine + in.readSigned();
+                int firstColumn = in.readSigned();
+                int lastLine = firstLine + in.readSigned();
+                int lastColumn = in.readSigned();
+                token.setLocationData(new int[]{firstLine, firstColumn}, new int[]{lastLine, lastColumn});
+                previousLine = firstLine;
+            }
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    private static final class Output {
+        private byte[] bytes;
+        private int length;
+
+        Output(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        // seven bits per byte, the high bit set on all but the last
+        void writeInt(int value) {
+            if(length + 5 > bytes.length) {
+                byte[] grown = new byte[bytes.length * 2 + 5];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            while((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        // small negative values as small positive ones
+        void writeSigned(int value) {
+            writeInt((value << 1) ^ (value >> 31));
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, 0, result, 0, length);
+            return result;
+        }
+    }
+
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readInt() {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if(b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        int readSigned() {
+            int value = readInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package coffeescript.lexer;
+
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * {@link LexerEvents} recorded by the Java Flight Recorder. This is the only
+ * class referring to <code>jdk.jfr</code>; it is loaded by name, so the lexer
+ * keeps running on JVMs without the flight recorder.
+ * <p>
+ * The tokenize and rewrite events are disabled in the default recording
+ * settings and have to be enabled explicitly, for example with
+ * <code>coffeescript.Tokenize#enabled=true</code>. The slow lex event is
+ * enabled and only recorded for tokenize calls taking longer than its
+ * threshold, 100 ms unless configured otherwise.
+ *
+ * @author milos
+ */
+final class FlightRecorderEvents extends LexerEvents {
+
+    @Override
+    Object beginTokenize() {
+        TokenizeEvent event = new TokenizeEvent();
+        event.slow = new SlowLexEvent();
+        event.begin();
+        event.slow.begin();
+        return event;
+    }
+
+    @Override
+    void endTokenize(Object event, String fileId, int characters, List<CoffeeScriptNativeToken> tokens, boolean rewrite, String outcome) {
+        TokenizeEvent tokenize = (TokenizeEvent) event;
+        SlowLexEvent slow = tokenize.slow;
+        tokenize.end();
+        slow.end();
+        boolean recordTokenize = tokenize.shouldCommit();
+        boolean recordSlow = slow.shouldCommit();
+        if(!recordTokenize && !recordSlow) {
+            return;
+        }
+        int size = (tokens == null) ? -1 : tokens.size();
+        int generated = countGenerated(tokens);
+        if(recordTokenize) {
+            tokenize.fileId = fileId;
+            tokenize.characters = characters;
+            tokenize.tokens = size;
+            tokenize.generatedTokens = generated;
+            tokenize.rewrite = rewrite;
+            tokenize.outcome = outcome;
+            tokenize.commit();
+        }
+        if(recordSlow) {
+            slow.fileId = fileId;
+            slow.characters = characters;
+            slow.tokens = size;
+            slow.generatedTokens = generated;
+            slow.rewrite = rewrite;
+            slow.outcome = outcome;
+            slow.commit();
+        }
+    }
+
+    @Override
+    Object beginRewrite() {
+        RewriteEvent event = new RewriteEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endRewrite(Object event, String fileId, String pass, List<CoffeeScriptNativeToken> tokens, String outcome) {
+        RewriteEvent rewrite = (RewriteEvent) event;
+        rewrite.end();
+        if(rewrite.shouldCommit()) {
+            rewrite.fileId = fileId;
+            rewrite.pass = pass;
+            rewrite.tokens = tokens.size();
+            rewrite.generatedTokens = countGenerated(tokens);
+            rewrite.outcome = outcome;
+            rewrite.commit();
+        }
+    }
+
+    @Name("coffeescript.Tokenize")
+    @Label("Tokenize")
+    @Category("CoffeeScript Lexer")
+    @Description("Lexing of a source, including the rewriter when requested")
+    @Enabled(false)
+    @StackTrace(false)
+    static class TokenizeEvent extends Event {
+        @Label("File")
+        String fileId;
+        @Label("Characters")
+        int characters;
+        @Label("Tokens")
+        int tokens;
+        @Label("Generated Tokens")
+        int generatedTokens;
+        @Label("Rewrite")
+        boolean rewrite;
+        @Label("Outcome")
+        String outcome;
+        transient SlowLexEvent slow;
+    }
+
+    @Name("coffeescript.SlowLex")
+    @Label("Slow Lex")
+    @Category("CoffeeScript Lexer")
+    @Description("Lexing of a source that took longer than the threshold")
+    @Threshold("100 ms")
+    @StackTrace(false)
+    static class SlowLexEvent extends Event {
+        @Label("File")
+        String fileId;
+        @Label("Characters")
+        int characters;
+        @Label("Tokens")
+        int tokens;
+        @Label("Generated Tokens")
+        int generatedTokens;
+        @Label("Rewrite")
+        boolean rewrite;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("coffeescript.Rewrite")
+    @Label("Rewriter Pass")
+    @Category("CoffeeScript Lexer")
+    @Description("One pass of the rewriter over a token stream")
+    @Enabled(false)
+    @StackTrace(false)
+    static class RewriteEvent extends Event {
+        @Label("File")
+        String fileId;
+        @Label("Pass")
+        String pass;
+        @Label("Tokens")
+        int tokens;
+        @Label("Generated Tokens")
+        int generatedTokens;
+        @Label("Outcome")
+        String outcome;
+    }
+}
@@ -0,0 +1,191 @@
+package coffeescript.lexer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Perfect hash over the fixed keyword vocabulary of the lexer. An identifier
+ * span is mapped to its {@link Keyword} descriptor with one hash, one table
+ * probe and one region compare, without allocating; ordinary identifiers are
+ * usually rejected by the length bounds or an empty slot.
+ *
+ * @author milos
+ */
+class KeywordClassifier {
+
+    static final int OTHER = 0;
+    static final int WHEN = 1;
+    static final int FOR = 2;
+    static final int RELATION = 3;
+
+    private static final int MAX_TABLE_SIZE = 1 << 16;
+    // perfect hash found for the vocabulary of the lexer, tried before searching
+    private static final int KNOWN_MULTIPLIER = 137;
+    private static final int KNOWN_SIZE = 512;
+
+    private final Keyword[] table;
+    private final int mask;
+    private final int multiplier;
+    private final int minLength;
+    private final int maxLength;
+
+    /**
+     * Everything the lexer needs to know about a word of the keyword
+     * vocabulary.
+     */
+    static final class Keyword {
+        final String name;
+        // JS or CoffeeScript keyword, tagged with tag unless used as a property
+        final boolean keyword;
+        final String tag;
+        final int kind;
+        // tag for a RELATION keyword right after FOR, null for instanceof
+        final String forTag;
+        // replacement value of an alias, null if the word is not an alias
+        final String alias;
+        // tag forced by the (aliased) value, null if there is none
+        final String valueTag;
+        final boolean forbidden;
+        final boolean reserved;
+
+        Keyword(String name, boolean keyword, String tag, int kind, String forTag, String alias, String valueTag, boolean forbidden, boolean reserved) {
+            this.name = name;
+            this.keyword = keyword;
+            this.tag = tag;
+            this.kind = kind;
+            this.forTag = forTag;
+            this.alias = alias;
+            this.valueTag = valueTag;
+            this.forbidden = forbidden;
+            this.reserved = reserved;
+        }
+    }
+
+    KeywordClassifier(Map<String, Keyword> keywords) {
+        int min = Integer.MAX_VALUE, max = 0;
+        for(String name : keywords.keySet()) {
+            min = Math.min(min, name.length());
+            max = Math.max(max, name.length());
+        }
+        this.minLength = min;
+        this.maxLength = max;
+        // the search takes a few hundred tries, a noticeable part of the startup of short runs
+        Keyword[] candidate = fill(keywords, KNOWN_MULTIPLIER, KNOWN_SIZE - 1);
+        int size = KNOWN_SIZE;
+        int m = KNOWN_MULTIPLIER + 2;
+        if(candidate == null) {
+            size = Integer.highestOneBit(Math.max(keywords.size(), 1)) << 2;
+            m = 1;
+        }
+        while(candidate == null) {
+            if(m >= size) {
+                size <<= 1;
+                m = 1;
+                if(size > MAX_TABLE_SIZE) {
+                    throw new IllegalStateException("no perfect hash for keywords");
+                }
+            }
+            candidate = fill(keywords, m, size - 1);
+            m += 2;
+        }
+        this.table = candidate;
+        this.mask = size - 1;
+        this.multiplier = m - 2;
+    }
+
+    private static Keyword[] fill(Map<String, Keyword> keywords, int multiplier, int mask) {
+        Keyword[] candidate = new Keyword[mask + 1];
+        for(Keyword k : keywords.values()) {
+            int slot = hash(k.name, 0, k.name.length(), multiplier) & mask;
+            if(candidate[slot] != null) {
+                return null;
+            }
+            candidate[slot] = k;
+        }
+        return candidate;
+    }
+
+    private static int hash(String s, int start, int end, int multiplier) {
+        int length = end - start;
+        int h = s.charAt(start);
+        h = h * multiplier + s.charAt(start + (length > 1 ? 1 : 0));
+        h = h * multiplier + s.charAt(end - 1);
+        h = h * multiplier + length;
+        return h ^ (h >>> 7);
+    }
+
+    Keyword lookup(String s, int start, int end) {
+        int length = end - start;
+        if(length < minLength || length > maxLength) {
+            return null;
+        }
+        Keyword k = table[hash(s, start, end, multiplier) & mask];
+        if(k == null || k.name.length() != length || !s.regionMatches(start, k.name, 0, length)) {
+            return null;
+        }
+        return k;
+    }
+
+    Keyword lookup(String s) {
+        return (s == null) ? null : lookup(s, 0, s.length());
+    }
+
+    /**
+     * Builds the classifier from the keyword sets of the lexer.
+     */
+    static KeywordClassifier create(Set<String> jsKeywords, Set<String> coffeeKeywords, Map<String, String> aliases, Set<String> forbidden, Set<String> reserved,
+            Set<String> unary, Set<String> relation) {
+        Map<String, Keyword> keywords = new HashMap<String, Keyword>();
+        Set<String> all = new HashSet<String>(jsKeywords);
+        all.addAll(coffeeKeywords);
+        all.addAll(forbidden);
+        for(String name : all) {
+            boolean keyword = jsKeywords.contains(name) || coffeeKeywords.contains(name);
+            String tag = null, forTag = null;
+            int kind = OTHER;
+            if(keyword) {
+                tag = name.toUpperCase();
+                if(tag.equals("WHEN")) {
+                    kind = WHEN;
+                } else if(tag.equals("FOR")) {
+                    kind = FOR;
+                } else if(tag.equals("UNLESS")) {
+                    tag = "IF";
+                } else if(unary.contains(tag)) {
+                    tag = "UNARY";
+                } else if(relation.contains(tag)) {
+                    kind = RELATION;
+                    forTag = tag.equals("INSTANCEOF") ? null : "FOR" + tag;
+                }
+            }
+            String alias = aliases.get(name);
+            String valueTag = null;
+            if(keyword) {
+                switch(alias != null ? alias : name) {
+                    case "!":
+                        valueTag = "UNARY";
+                        break;
+                    case "==":
+                    case "!=":
+                        valueTag = "COMPARE";
+                        break;
+                    case "&&":
+                    case "||":
+                        valueTag = "LOGIC";
+                        break;
+                    case "true":
+                    case "false":
+                        valueTag = "BOOL";
+                        break;
+                    case "break":
+                    case "continue":
+                        valueTag = "STATEMENT";
+                }
+            }
+            keywords.put(name, new Keyword(name, keyword, tag, kind, forTag, alias, valueTag, forbidden.contains(name), reserved.contains(name)));
+        }
+        return new KeywordClassifier(keywords);
+    }
+}
@@ -0,0 +1,62 @@
+package coffeescript.lexer;
+
+import java.util.List;
+
+/**
+ * Hooks reporting tokenize calls and rewriter passes to a monitoring backend.
+ * Reporting is off unless the <code>coffeescript.lexer.events</code> system
+ * property is <code>true</code> and the Java Flight Recorder is available;
+ * {@link #INSTANCE} is then <code>null</code> and every hook is skipped by a
+ * single check of a constant. The build leaves out the flight recorder
+ * backend when the JDK building the lexer has no <code>jdk.jfr</code>.
+ *
+ * @author milos
+ */
+abstract class LexerEvents {
+    static final LexerEvents INSTANCE = load();
+
+    private static LexerEvents load() {
+        if(!Boolean.getBoolean("coffeescript.lexer.events")) {
+            return null;
+        }
+        try {
+            // loaded by name so that the lexer does not link against jdk.jfr
+            return (LexerEvents) Class.forName("coffeescript.lexer.FlightRecorderEvents").getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return event passed to {@link #endTokenize}
+     */
+    abstract Object beginTokenize();
+
+    /**
+     * @param tokens the tokens or <code>null</code> when lexing failed
+     * @param outcome <code>ok</code>, <code>error</code> or <code>cancelled</code>
+     */
+    abstract void endTokenize(Object event, String fileId, int characters, List<CoffeeScriptNativeToken> tokens, boolean rewrite, String outcome);
+
+    /**
+     * @return event passed to {@link #endRewrite}
+     */
+    abstract Object beginRewrite();
+
+    abstract void endRewrite(Object event, String fileId, String pass, List<CoffeeScriptNativeToken> tokens, String outcome);
+
+    static int countGenerated(List<CoffeeScriptNativeToken> tokens) {
+        if(tokens == null) {
+            return -1;
+        }
+        int count = 0;
+        for(CoffeeScriptNativeToken token : tokens) {
+            if(Boolean.TRUE.equals(token.getGenerated())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
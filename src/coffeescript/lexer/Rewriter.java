@@ -1,14 +1,19 @@
 package coffeescript.lexer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import static coffeescript.lexer.Helpers.*;
 
 
@@ -32,10 +37,42 @@ public class Rewriter {
     private static final Set<String> SINGLE_CLOSERS = new HashSet<String>(Arrays.asList("TERMINATOR", "CATCH", "FINALLY", "ELSE", "OUTDENT", "LEADING_WHEN"));
     private static final Set<String> LINEBREAKS = new HashSet<String>(Arrays.asList("TERMINATOR", "INDENT", "OUTDENT"));
     private static final Set<String> CALL_CLOSERS = new HashSet<String>(Arrays.asList(".", "?.", "::", "?::"));
+    private static final Set<String> IMPLICIT_OBJECT_CONTROL = new HashSet<String>(Arrays.asList("CLASS", "EXTENDS", "IF", "CATCH", "SWITCH", "LEADING_WHEN", "FOR", "WHILE", "UNTIL"));
+    static final int CANCELLATION_CHECK_MASK = 0xFF;
+    
+    // flags of the implicit braces and parens stack
+    private static final int OURS = 1;
+    private static final int SAME_LINE = 2;
+    private static final int STARTS_LINE = 4;
+    private static final int STACK_CAPACITY = 64;
+    // minimal number of tokens of a part of a parallel rewrite
+    private static final int PART_SIZE = 4 * 1024;
+    // names of the passes run by rewrite, in order
+    private static final String[] PASSES = {"removeLeadingNewLines", "closeOpenCalls", "closeOpenIndexes", "normalizeLines",
+        "tagPostfixConditionals", "addImplicitBracesAndParens", "addLocationDataToGeneratedTokens"};
 
     private String starter;
     private CoffeeScriptNativeToken indent, outdent, original;
-    private Boolean insideForDeclaration;
+    private int originalIndex;
+    private boolean insideForDeclaration;
+    private String[] stackTags;
+    private int[] stackIndexes;
+    private int[] stackFlags;
+    private int stackSize;
+    private int implicitCallIndex;
+    // whether a control keyword is reachable backwards on the current line, per open bracket
+    private boolean[] controlLevels;
+    private int controlDepth;
+    private int controlScanned;
+    private final CoffeeScriptNativeCancellation cancellation;
+    private int ticks;
+    private String fileId;
+    // tokens retagged in place of tokens of the raw stream and the tokens they replace, when that is kept intact
+    private Map<CoffeeScriptNativeToken, CoffeeScriptNativeToken> copies;
+    // whether the tokens continue a stream whose leading line breaks are removed
+    private boolean continued;
+    // whether an implicit call, object or control was left open at the end
+    private boolean openAtEnd;
     
     static {
         EXPRESSION_CLOSE.addAll(EXPRESSION_END);
@@ -58,35 +95,363 @@ public class Rewriter {
     }
 
     public Rewriter(List<CoffeeScriptNativeToken> tokens) {
+        this(tokens, null);
+    }
+    
+    /**
+     * Creates a rewriter that polls <code>cancellation</code> while scanning.
+     * A cancelled rewrite leaves <code>tokens</code> partially rewritten, so
+     * the list must be discarded after {@link CoffeeScriptNativeCancelledException}.
+     */
+    public Rewriter(List<CoffeeScriptNativeToken> tokens, CoffeeScriptNativeCancellation cancellation) {
         this.tokens = tokens;
+        this.cancellation = cancellation;
+    }
+    
+    /**
+     * Sets the identifier of the source reported to monitoring, usually its
+     * path.
+     */
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
     }
     
     public List<CoffeeScriptNativeToken> rewrite() {
-        
-        this.removeLeadingNewLines();
-        this.closeOpenCalls();
-        this.closeOpenIndexes();
-        this.normalizeLines();
-        this.tagPostfixConditionals();
-        this.addImplicitBracesAndParens();
-        this.addLocationDataToGeneratedTokens();
+        LexerEvents events = LexerEvents.INSTANCE;
+        for(int pass = 0; pass < PASSES.length; pass++) {
+            if(events == null) {
+                runPass(pass);
+                continue;
+            }
+            Object event = events.beginRewrite();
+            String outcome = "error";
+            try {
+                runPass(pass);
+                outcome = "ok";
+            } catch (CoffeeScriptNativeCancelledException ex) {
+                outcome = "cancelled";
+                throw ex;
+            } finally {
+                events.endRewrite(event, fileId, PASSES[pass], this.tokens, outcome);
+            }
+        }
         return this.tokens;
-        
+    }
+    
+    /**
+     * Rewrites the tokens like {@link #rewrite()}, but rewrites large streams
+     * in parts on <code>pool</code>. The parts end at top-level line breaks
+     * which no pass looks across, found by a scan of the tokens; a part is
+     * only used if nothing implicit is left open at its end, otherwise it is
+     * rewritten again together with the following one. The parts retag copies
+     * of the tokens, so a part rewritten again starts from the tokens as they
+     * were; the tags of the copies go to the tokens when the parts are joined.
+     * The tokens are the same as those of the sequential rewrite. Without a
+     * <code>pool</code> the tokens are rewritten sequentially.
+     */
+    public List<CoffeeScriptNativeToken> rewrite(ForkJoinPool pool) {
+        int[] ends = (pool != null && copies == null && tokens.size() >= 2 * PART_SIZE) ? scanPartEnds() : new int[0];
+        if(ends.length == 0) {
+            return rewrite();
+        }
+        return rewriteParts(pool, ends);
+    }
+
+    // rewrites the parts ending at ends on pool, keeping the raw tokens intact if there are copies
+    private List<CoffeeScriptNativeToken> rewriteParts(ForkJoinPool pool, int[] ends) {
+        int count = ends.length + 1;
+        int[] starts = new int[count + 1];
+        for(int k = 1; k < count; k++) {
+            starts[k] = ends[k - 1] + 1;
+        }
+        starts[count] = tokens.size();
+        List<ForkJoinTask<Part>> tasks = new ArrayList<ForkJoinTask<Part>>(count);
+        try {
+            for(int k = 0; k < count; k++) {
+                tasks.add(pool.submit(new Part(this, starts[k], starts[k + 1])));
+            }
+            List<CoffeeScriptNativeToken> result = new ArrayList<CoffeeScriptNativeToken>(tokens.size() + tokens.size() / 4);
+            int k = 0;
+            while(k < count) {
+                Part part = join(tasks.get(k));
+                int last = k;
+                while(!part.isClean() && last + 1 < count) {
+                    last++;
+                    part = new Part(this, starts[k], starts[last + 1]).call();
+                }
+                part.appendTo(result, copies);
+                k = last + 1;
+            }
+            this.tokens = result;
+        } finally {
+            for(ForkJoinTask<Part> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        return this.tokens;
+    }
+    
+    /**
+     * Rewrites the tokens read through <code>cursor</code>, from after its
+     * current position, into <code>store</code>. The tokens are read and
+     * rewritten in parts ending at the same top-level line breaks as those of
+     * {@link #rewrite(ForkJoinPool)}, and each part is written to the store
+     * before the next is read, so the heap only holds the tokens of a few
+     * parts at a time. A part is only used if nothing implicit is left open
+     * at its end, otherwise it is read further up to the next line break
+     * that ends a part cleanly, so a top-level statement is always on the
+     * heap as a whole.
+     */
+    static void rewrite(CoffeeScriptNativeTokenStore.Cursor cursor, CoffeeScriptNativeTokenStore.Builder store, CoffeeScriptNativeCancellation cancellation) {
+        List<CoffeeScriptNativeToken> window = new ArrayList<CoffeeScriptNativeToken>();
+        List<CoffeeScriptNativeToken> rewritten = new ArrayList<CoffeeScriptNativeToken>();
+        CoffeeScriptNativeToken previous = null;
+        int wanted = 4 * PART_SIZE;
+        // end of the last part found not to end cleanly, the parts up to it need not be tried again
+        int tried = -1;
+        boolean more = true;
+        while(true) {
+            while(more && window.size() < wanted) {
+                more = cursor.next();
+                if(more) {
+                    window.add(cursor.getToken());
+                }
+            }
+            int[] ends = more ? new Rewriter(window).scanPartEnds() : new int[0];
+            Part part = null;
+            int end = -1;
+            for(int k = 0; k < ends.length && part == null; k++) {
+                if(ends[k] > tried) {
+                    Part candidate = new Part(window, 0, ends[k] + 1, previous, cancellation, null).call();
+                    if(candidate.isClean()) {
+                        part = candidate;
+                        end = ends[k];
+                    } else {
+                        tried = ends[k];
+                    }
+                }
+            }
+            if(part == null && more) {
+                wanted = 2 * window.size();
+                continue;
+            }
+            if(part == null) {
+                // the rest of the tokens
+                if(!window.isEmpty()) {
+                    rewritten.clear();
+                    new Part(window, 0, window.size(), previous, cancellation, null).call().appendTo(rewritten, null);
+                    store.addAll(rewritten);
+                }
+                return;
+            }
+            rewritten.clear();
+            part.appendTo(rewritten, null);
+            store.addAll(rewritten);
+            previous = window.get(end);
+            window = new ArrayList<CoffeeScriptNativeToken>(window.subList(end + 1, window.size()));
+            wanted = 4 * PART_SIZE;
+            tried = -1;
+        }
+    }
+    
+    /**
+     * Finds the TERMINATORs a parallel rewrite may end its parts with: line
+     * breaks outside of brackets, not ending a line with a comma or a
+     * <code>catch</code> and not followed by what continues a statement or an
+     * implicit object. Consecutive ends are at least {@link #PART_SIZE}
+     * tokens apart.
+     */
+    private int[] scanPartEnds() {
+        int[] ends = new int[16];
+        int count = 0;
+        int depth = 0, last = 0;
+        for(int i = 0; i + 1 < tokens.size(); i++) {
+            String tag = tokens.get(i).getTag();
+            if(EXPRESSION_START.contains(tag)) {
+                depth++;
+            } else if(EXPRESSION_END.contains(tag)) {
+                depth--;
+            } else if(depth == 0 && i - last >= PART_SIZE && tag.equals("TERMINATOR") && nullSafeCompare(tokens.get(i).getValue(), "\\n")
+                    && !EXPRESSION_CLOSE.contains(tokens.get(i + 1).getTag()) && !looksObjectish(i + 1)
+                    && !nullSafeCompare(tagAt(tokens, i - 1), ",") && !nullSafeCompare(tagAt(tokens, i - 1), "CATCH")
+                    && !nullSafeCompare(tagAt(tokens, i - 2), "CATCH")) {
+                if(count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                ends[count++] = i;
+                last = i;
+            }
+        }
+        // the last part would be too small
+        if(count > 0 && tokens.size() - last < PART_SIZE) {
+            count--;
+        }
+        return Arrays.copyOf(ends, count);
+    }
+    
+    private static Part join(ForkJoinTask<Part> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw CoffeeScriptNativeCancelledException.INSTANCE;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+    
+    /**
+     * Tokens from a top-level line break up to and including the next one
+     * chosen by the scan, rewritten by their own rewriter. The tokens are
+     * preceded by the line break ending the previous part, which the passes
+     * see when they look back.
+     */
+    private static class Part implements Callable<Part> {
+        private final Rewriter rewriter;
+        private final CoffeeScriptNativeToken previous;
+
+        Part(Rewriter parent, int start, int end) {
+            this(parent.tokens, start, end, (start > 0) ? parent.tokens.get(start - 1) : null, parent.cancellation, parent.fileId);
+        }
+
+        Part(List<CoffeeScriptNativeToken> source, int start, int end, CoffeeScriptNativeToken previous,
+                CoffeeScriptNativeCancellation cancellation, String fileId) {
+            List<CoffeeScriptNativeToken> tokens = new ArrayList<CoffeeScriptNativeToken>(end - start + (end - start) / 4 + 1);
+            this.previous = previous;
+            if(previous != null) {
+                tokens.add(previous);
+            }
+            tokens.addAll(source.subList(start, end));
+            this.rewriter = new Rewriter(tokens, cancellation);
+            this.rewriter.setFileId(fileId);
+            this.rewriter.copies = new IdentityHashMap<CoffeeScriptNativeToken, CoffeeScriptNativeToken>();
+            this.rewriter.continued = previous != null;
+        }
+
+        @Override
+        public Part call() {
+            rewriter.rewrite();
+            return this;
+        }
+
+        // whether the rewriter ended in the state the next part starts in
+        boolean isClean() {
+            return !rewriter.openAtEnd && (previous == null || rewriter.tokens.get(0) == previous);
+        }
+
+        // a copy of a raw token, that is not one of the copies of the rewriter
+        // whose tokens were split, is kept in its place and added to those copies
+        void appendTo(List<CoffeeScriptNativeToken> result, Map<CoffeeScriptNativeToken, CoffeeScriptNativeToken> copies) {
+            List<CoffeeScriptNativeToken> tokens = rewriter.tokens;
+            for(int i = (previous != null) ? 1 : 0; i < tokens.size(); i++) {
+                CoffeeScriptNativeToken t = tokens.get(i);
+                CoffeeScriptNativeToken original = rewriter.copies.get(t);
+                if(original != null) {
+                    if(copies == null || copies.containsKey(original)) {
+                        original.setTag(t.getTag());
+                        t = original;
+                    } else {
+                        copies.put(t, original);
+                    }
+                }
+                result.add(t);
+            }
+        }
+    }
+    
+    /**
+     * Rewrites a copy of the token list, leaving the list and its tokens
+     * intact. The rewritten stream shares the tokens it keeps unchanged with
+     * the raw one; only tokens getting another tag and interpolated strings,
+     * whose expressions are lexed rewritten, are copied.
+     */
+    public CoffeeScriptNativeTokenViews rewriteViews() {
+        return rewriteViews(null);
+    }
+
+    /**
+     * Rewrites a copy of the token list like {@link #rewriteViews()}, but
+     * rewrites large streams in parts on <code>pool</code> like
+     * {@link #rewrite(ForkJoinPool)}.
+     */
+    public CoffeeScriptNativeTokenViews rewriteViews(ForkJoinPool pool) {
+        List<CoffeeScriptNativeToken> raw = this.tokens;
+        this.tokens = new ArrayList<CoffeeScriptNativeToken>(raw.size() + raw.size() / 4);
+        this.copies = new IdentityHashMap<CoffeeScriptNativeToken, CoffeeScriptNativeToken>();
+        for(CoffeeScriptNativeToken t : raw) {
+            if(t instanceof CoffeeScriptNativeStringToken) {
+                CoffeeScriptNativeToken copy = ((CoffeeScriptNativeStringToken) t).rewritten();
+                copies.put(copy, t);
+                t = copy;
+            }
+            this.tokens.add(t);
+        }
+        int[] ends = (pool != null && tokens.size() >= 2 * PART_SIZE) ? scanPartEnds() : new int[0];
+        if(ends.length == 0) {
+            rewrite();
+        } else {
+            rewriteParts(pool, ends);
+        }
+        return new CoffeeScriptNativeTokenViews(raw, this.tokens, copies);
+    }
+    
+    private void runPass(int pass) {
+        switch(pass) {
+            case 0:
+                if(!continued) {
+                    this.removeLeadingNewLines();
+                }
+                break;
+            case 1: this.closeOpenCalls(); break;
+            case 2: this.closeOpenIndexes(); break;
+            case 3: this.normalizeLines(); break;
+            case 4: this.tagPostfixConditionals(); break;
+            case 5: this.addImplicitBracesAndParens(); break;
+            case 6: this.addLocationDataToGeneratedTokens(); break;
+            default: throw new IllegalArgumentException("pass " + pass);
+        }
     }
     
     private void scanTokens(IBlock block) {
         int i = 0;
         CoffeeScriptNativeToken t;
+        if(cancellation != null) {
+            cancellation.check();
+        }
         while (tokens.size() > i) {
+            checkCancelled();
             t = tokens.get(i);
             i += block.call(t, i);
         }       
     }    
     
+    private void checkCancelled() {
+        if(cancellation != null && (++ticks & CANCELLATION_CHECK_MASK) == 0) {
+            cancellation.check();
+        }
+    }
+    
+    // tokens of the raw stream are replaced by retagged copies when it is kept intact
+    private void retag(int index, String tag) {
+        CoffeeScriptNativeToken t = tokens.get(index);
+        if(copies != null && !copies.containsKey(t) && !Boolean.TRUE.equals(t.getGenerated()) && !t.getExplicit()) {
+            CoffeeScriptNativeToken copy = t.withTag(tag);
+            copies.put(copy, t);
+            tokens.set(index, copy);
+        } else {
+            t.setTag(tag);
+        }
+    }
+    
     private int detectEnd(int i, ICondition condition, IAction action) {
         int levels = 0;
         CoffeeScriptNativeToken t;
         while(tokens.size() > i) {
+            checkCancelled();
             t = tokens.get(i);
             if(levels == 0 && condition.call(t, i)) return action.call(t, i);
             if(levels < 0) return action.call(t, i-1);
@@ -123,7 +488,7 @@ public class Rewriter {
             @Override
             public int call(CoffeeScriptNativeToken t, int i) {
                 int index = t.getTag().equals("OUTDENT") ? i - 1 : i;
-                tokens.get(index).setTag("CALL_END");
+                retag(index, "CALL_END");
                 return 1;
             }
             
@@ -158,7 +523,8 @@ public class Rewriter {
 
             @Override
             public int call(CoffeeScriptNativeToken t, int i) {
-                t.setTag("INDEX_END");
+                // past the end of a block detectEnd passes the index before t
+                retag((tokens.get(i) == t) ? i : i + 1, "INDEX_END");
                 return 1;
             }
             
@@ -177,130 +543,155 @@ public class Rewriter {
         scanTokens(block);
     }
     
-    private boolean matchTags(Object... args) { 
-        assert(args[0] instanceof Integer);
-        Object[] tags = null;
-        Integer i = (Integer) args[0];
-        if(args.length > 1) {
-            tags = Arrays.copyOfRange(args, 1, args.length);
-        }
-        int fuzz = 0, j = 0;
-        if(tags != null) {
-            for(Object pattern : tags) {
-                while(nullSafeCompare(tagAt(tokens, i + j + fuzz), "HERECOMMENT")) {
-                    fuzz += 2;
-                }                
-                if(pattern == null) {
-                    j++;
-                    continue;                    
-                }
-                String tag = tagAt(tokens, i + j + fuzz);
-                if(pattern instanceof String && !nullSafeCompare(tag, pattern)) return false;
-                j++;
-            }
+    // position after the token matched against pattern (null matches any tag), or -1
+    private int matchTag(int k, String pattern) {
+        while(nullSafeCompare(tagAt(tokens, k), "HERECOMMENT")) {
+            k += 2;
         }
-        return true;
+        if(pattern != null && !nullSafeCompare(tagAt(tokens, k), pattern)) {
+            return -1;
+        }
+        return k + 1;
+    }
+    
+    private boolean matchTags(int i, String first, String second) {
+        int k = matchTag(i, first);
+        return k != -1 && matchTag(k, second) != -1;
+    }
+    
+    private boolean matchTags(int i, String first, String second, String third) {
+        int k = matchTag(i, first);
+        return k != -1 && (k = matchTag(k, second)) != -1 && matchTag(k, third) != -1;
     }
     
     private boolean looksObjectish(int j) {
         return matchTags(j, "@", null, ":") || matchTags(j, null, ":");
     }
     
-    private boolean findTagsBackwards(int i, Set<String> tags) {
-        Stack<String> backStack = new Stack<String>();
-        String tag = tagAt(tokens, i);
-        CoffeeScriptNativeToken token = tokens.get(i);
-        while (i>= 0 && (!backStack.isEmpty() || 
-                (!containsNullSafe(tag, tags) && 
-                (!containsNullSafe(tag, EXPRESSION_START) || token.getGenerated()) && 
-                !containsNullSafe(tag, LINEBREAKS)))) {
-            if(containsNullSafe(tag, EXPRESSION_END)) {
-                backStack.push(tag);
-            }
-            if(containsNullSafe(tag, EXPRESSION_START) && !backStack.isEmpty()) {
-                backStack.pop();
+    /**
+     * Tests whether one of <code>IMPLICIT_OBJECT_CONTROL</code> precedes the
+     * <code>i</code>-th token on its line, skipping bracketed groups and
+     * generated opening brackets, but not other opening brackets. The answer
+     * is kept for every open bracket while the tokens are scanned forward, so
+     * a test only catches up with the tokens after the previous one.
+     */
+    private boolean followsObjectControl(int i) {
+        while(controlScanned <= i) {
+            CoffeeScriptNativeToken token = tokens.get(controlScanned++);
+            String tag = token.getTag();
+            if(containsNullSafe(tag, EXPRESSION_START)) {
+                boolean transparent = !tag.equals("INDENT") && Boolean.TRUE.equals(token.getGenerated());
+                if(controlDepth + 1 == controlLevels.length) {
+                    controlLevels = Arrays.copyOf(controlLevels, controlLevels.length * 2);
+                }
+                controlLevels[controlDepth + 1] = transparent && controlLevels[controlDepth];
+                controlDepth++;
+            } else if(containsNullSafe(tag, EXPRESSION_END)) {
+                if(controlDepth > 0) {
+                    controlDepth--;
+                } else {
+                    // nothing before an unmatched closing bracket is reachable
+                    controlLevels[0] = false;
+                }
+                if(tag.equals("OUTDENT")) {
+                    controlLevels[controlDepth] = false;
+                }
+            } else if(tag.equals("TERMINATOR")) {
+                controlLevels[controlDepth] = false;
+            } else if(containsNullSafe(tag, IMPLICIT_OBJECT_CONTROL)) {
+                controlLevels[controlDepth] = true;
             }
-            i-=1;
-            tag = tagAt(tokens, i);
-            token = tokens.get(i);
         }
-        return containsNullSafe(tag, tags);
+        return controlLevels[controlDepth];
+    }
+    
+    // inserts a generated token, restarting the control scan if it has passed j
+    private void insert(int j, CoffeeScriptNativeToken token) {
+        if(j < controlScanned) {
+            controlDepth = 0;
+            controlScanned = 0;
+            controlLevels[0] = false;
+        }
+        tokens.add(j, token);
     }
     
     private void addImplicitBracesAndParens() {
-        final Stack<BracesAndParensDescriptor> stack = new Stack<BracesAndParensDescriptor>();
+        stackTags = new String[STACK_CAPACITY];
+        stackIndexes = new int[STACK_CAPACITY];
+        stackFlags = new int[STACK_CAPACITY];
+        stackSize = 0;
+        controlLevels = new boolean[STACK_CAPACITY];
+        controlDepth = 0;
+        controlScanned = 0;
         IBlock block = new IBlock() {
 
             @Override
             public int call(CoffeeScriptNativeToken t, int i) {
-                Holder<Integer> implicitCallIndex = new Holder<Integer>(i);
+                implicitCallIndex = i;
                 int startIdx = i;
                 String tag = t.getTag();
-                CoffeeScriptNativeToken prevToken = tokenAt(tokens, implicitCallIndex.value-1);
-                String prevTag = tagAt(tokens, implicitCallIndex.value-1);
-                String nextTag = tagAt(tokens, implicitCallIndex.value+1);
-                if(inImplicitCall(stack) && (tag.equals("IF") || tag.equals("TRY") || tag.equals("FINALLY") ||
+                CoffeeScriptNativeToken prevToken = tokenAt(tokens, implicitCallIndex-1);
+                String prevTag = tagAt(tokens, implicitCallIndex-1);
+                String nextTag = tagAt(tokens, implicitCallIndex+1);
+                if(inImplicitCall() && (tag.equals("IF") || tag.equals("TRY") || tag.equals("FINALLY") ||
                         tag.equals("CATCH") || tag.equals("CLASS") || tag.equals("SWITCH")) ) {
-                    BracesAndParensDescriptor d = new BracesAndParensDescriptor("CONTROL", implicitCallIndex.value);
-                    d.addParam("ours", true);
-                    stack.push(d);
-                    return forward(1, startIdx, implicitCallIndex.value);
+                    push("CONTROL", implicitCallIndex, OURS);
+                    return forward(1, startIdx, implicitCallIndex);
                 }
-                if(tag.equals("INDENT") && inImplicit(stack)) {
+                if(tag.equals("INDENT") && inImplicit()) {
                     if(!prevTag.equals("=>") && !prevTag.equals("->") && !prevTag.equals("[") &&
                             !prevTag.equals("(") && !prevTag.equals(",") && !prevTag.equals("{") &&
                             !prevTag.equals("TRY") && !prevTag.equals("ELSE") && !prevTag.equals("=")) {
-                        while(inImplicitCall(stack)) {
-                            endImplicitCall(stack,implicitCallIndex);
+                        while(inImplicitCall()) {
+                            endImplicitCall();
                         }
                     }
-                    if(inImplicitControl(stack)) {
-                        stackPop(stack);
+                    if(inImplicitControl()) {
+                        pop();
                     }
-                    stack.push(new BracesAndParensDescriptor(tag, implicitCallIndex.value));
-                    return forward(1, startIdx, implicitCallIndex.value);
+                    push(tag, implicitCallIndex, 0);
+                    return forward(1, startIdx, implicitCallIndex);
                 }
                 if(containsNullSafe(tag, EXPRESSION_START)) {
-                    stack.push(new BracesAndParensDescriptor(tag, implicitCallIndex.value));
-                    return forward(1, startIdx, implicitCallIndex.value);
+                    push(tag, implicitCallIndex, 0);
+                    return forward(1, startIdx, implicitCallIndex);
                 }
                 if(containsNullSafe(tag, EXPRESSION_END)) {
-                    while (inImplicit(stack)) {
-                        if(inImplicitCall(stack)) {
-                            endImplicitCall(stack, implicitCallIndex);
-                        } else if(inImplicitObject(stack)) {
-                            endImplicitObject(stack, null,t, implicitCallIndex);
+                    while (inImplicit()) {
+                        if(inImplicitCall()) {
+                            endImplicitCall();
+                        } else if(inImplicitObject()) {
+                            endImplicitObject(-1, t);
                         } else {
-                            stackPop(stack);
+                            pop();
                         }
                     }                    
-                    stackPop(stack);
+                    pop();
                 }
                 CoffeeScriptNativeToken nextToken;
                 if((containsNullSafe(tag, IMPLICIT_FUNC) && t.getSpaced() && !t.getStringEnd() || 
-                        tag.equals("?") && !tokenAt(tokens,implicitCallIndex.value - 1).getSpaced()) && (containsNullSafe(nextTag, IMPLICIT_CALL) ||
-                        containsNullSafe(nextTag, IMPLICIT_UNSPACED_CALL) && !(((nextToken = tokenAt(tokens,implicitCallIndex.value + 1)) != null) ? nextToken.getSpaced() : false) &&
+                        tag.equals("?") && !tokenAt(tokens,implicitCallIndex - 1).getSpaced()) && (containsNullSafe(nextTag, IMPLICIT_CALL) ||
+                        containsNullSafe(nextTag, IMPLICIT_UNSPACED_CALL) && !(((nextToken = tokenAt(tokens,implicitCallIndex + 1)) != null) ? nextToken.getSpaced() : false) &&
                         !((nextToken != null) ? nextToken.getNewLine(): false))) {
                     if(tag.equals("?")) {
                         tag = "FUNC_EXIST";
-                        t.setTag(tag);
+                        retag(implicitCallIndex, tag);
                     }
-                    startImplicitCall(stack, implicitCallIndex.value+1, implicitCallIndex);
-                    return forward(2, startIdx, implicitCallIndex.value);
+                    startImplicitCall(implicitCallIndex+1);
+                    return forward(2, startIdx, implicitCallIndex);
                 }
-                if(containsNullSafe(tag, IMPLICIT_FUNC) && matchTags(implicitCallIndex.value+1, "INDENT",null,":") && 
-                        !findTagsBackwards(implicitCallIndex.value, new HashSet<String>(Arrays.asList("CLASS", "EXTENDS", "IF",
-                        "CATCH", "SWITCH", "LEADING_WHEN", "FOR", "WHILE", "UNTIL")))) {
-                    startImplicitCall(stack, implicitCallIndex.value+1,implicitCallIndex);
-                    stack.push(new BracesAndParensDescriptor("INDENT", implicitCallIndex.value+2));
-                    return forward(3, startIdx,implicitCallIndex.value);
+                if(containsNullSafe(tag, IMPLICIT_FUNC) && matchTags(implicitCallIndex+1, "INDENT",null,":") && 
+                        !followsObjectControl(implicitCallIndex)) {
+                    startImplicitCall(implicitCallIndex+1);
+                    push("INDENT", implicitCallIndex+2, 0);
+                    return forward(3, startIdx,implicitCallIndex);
                 }
                 int s;
                 if(tag.equals(":")) {
-                    if(nullSafeCompare(tagAt(tokens, implicitCallIndex.value-2),"@")) {
-                        s = implicitCallIndex.value - 2;
+                    if(nullSafeCompare(tagAt(tokens, implicitCallIndex-2),"@")) {
+                        s = implicitCallIndex - 2;
                     } else {
-                        s = implicitCallIndex.value - 1;
+                        s = implicitCallIndex - 1;
                     }
                     while (nullSafeCompare(tagAt(tokens, s - 2),"HERECOMMENT")) {
                         s-=2;
@@ -308,48 +699,53 @@ public class Rewriter {
                     insideForDeclaration = nullSafeCompare(nextTag ,"FOR");
                     boolean startsLine = (s == 0 || containsNullSafe(tagAt(tokens, s - 1), LINEBREAKS) ||
                             tokenAt(tokens,s-1).getNewLine());
-                    BracesAndParensDescriptor stackTop = stackPeek(stack);
-                    if(stackTop != null) {
-                        if((stackTop.getTag().equals("{") || stackTop.getTag().equals("INDENT") && nullSafeCompare(tagAt(tokens, stackTop.getIndex()-1), "{")) &&
+                    if(stackSize > 0) {
+                        String stackTag = stackTags[stackSize - 1];
+                        if((stackTag.equals("{") || stackTag.equals("INDENT") && nullSafeCompare(tagAt(tokens, stackIndexes[stackSize - 1]-1), "{")) &&
                                 (startsLine || nullSafeCompare(tagAt(tokens, s-1),",") || nullSafeCompare(tagAt(tokens, s-1),"{"))) {
-                            return forward(1, startIdx, implicitCallIndex.value);
+                            return forward(1, startIdx, implicitCallIndex);
                         }
                     }
-                    startImplicitObject(stack, s, startsLine,implicitCallIndex);
-                    return forward(2, startIdx, implicitCallIndex.value);
+                    startImplicitObject(s, startsLine);
+                    return forward(2, startIdx, implicitCallIndex);
                 }
                 
-                if(inImplicitObject(stack) && containsNullSafe(tag, LINEBREAKS)) {
-                    if(stackPeek(stack) != null) stackPeek(stack).addParam("sameLine", false);
+                if(inImplicitObject() && containsNullSafe(tag, LINEBREAKS)) {
+                    stackFlags[stackSize - 1] &= ~SAME_LINE;
                 }
                 boolean newLine = nullSafeCompare(prevTag, "OUTDENT") || ((prevToken!=null) ? prevToken.getNewLine() : false);
                 
                 if(containsNullSafe(tag, IMPLICIT_END) || containsNullSafe(tag, CALL_CLOSERS) && newLine) {
-                    while(inImplicit(stack)) {
-                        BracesAndParensDescriptor d = stackPeek(stack);
-                        if(inImplicitCall(stack) && !nullSafeCompare(prevTag,",")) {
-                            endImplicitCall(stack, implicitCallIndex);
-                        } else if(inImplicitObject(stack) && !insideForDeclaration && d.getParamAsBoolean("sameLine") && !nullSafeCompare(tag, "TERMINATOR") && !nullSafeCompare(prevTag, ":") && endImplicitObject(stack, null, t, implicitCallIndex) != 0) {
-                        } else if(inImplicitObject(stack) && nullSafeCompare(tag,"TERMINATOR") && !nullSafeCompare(prevTag,",") &&
-                                !(d.getParamAsBoolean("startsLine") && looksObjectish(implicitCallIndex.value + 1))) {
-                            endImplicitObject(stack, null, t, implicitCallIndex);
+                    while(inImplicit()) {
+                        int flags = stackFlags[stackSize - 1];
+                        if(inImplicitCall() && !nullSafeCompare(prevTag,",")) {
+                            endImplicitCall();
+                        } else if(inImplicitObject() && !insideForDeclaration && (flags & SAME_LINE) != 0 && !nullSafeCompare(tag, "TERMINATOR") && !nullSafeCompare(prevTag, ":") && endImplicitObject(-1, t) != 0) {
+                        } else if(inImplicitObject() && nullSafeCompare(tag,"TERMINATOR") && !nullSafeCompare(prevTag,",") &&
+                                !((flags & STARTS_LINE) != 0 && looksObjectish(implicitCallIndex + 1))) {
+                            endImplicitObject(-1, t);
                         } else {
                             break;
                         }
                     }
                 }
-                if(nullSafeCompare(tag,",") && !looksObjectish(implicitCallIndex.value+1) && inImplicitObject(stack) && !insideForDeclaration &&
-                        (!nullSafeCompare(nextTag,"TERMINATOR") || !looksObjectish(implicitCallIndex.value + 2))) {
+                if(nullSafeCompare(tag,",") && !looksObjectish(implicitCallIndex+1) && inImplicitObject() && !insideForDeclaration &&
+                        (!nullSafeCompare(nextTag,"TERMINATOR") || !looksObjectish(implicitCallIndex + 2))) {
                     int offset = nullSafeCompare(nextTag,"OUTDENT") ? 1 : 0;
-                    while (inImplicitObject(stack)) {
-                        endImplicitObject(stack, implicitCallIndex.value + offset, t, implicitCallIndex);
+                    while (inImplicitObject()) {
+                        endImplicitObject(implicitCallIndex + offset, t);
                     }
                 }
-                return forward(1, startIdx, implicitCallIndex.value);
+                return forward(1, startIdx, implicitCallIndex);
             }
         };
         
         scanTokens(block);
+        openAtEnd = stackSize > 0;
+        stackTags = null;
+        stackIndexes = null;
+        stackFlags = null;
+        controlLevels = null;
     }
     
     private void addLocationDataToGeneratedTokens() {
@@ -358,23 +754,15 @@ public class Rewriter {
             @Override
             public int call(CoffeeScriptNativeToken t, int i) {
                 CoffeeScriptNativeToken nextLocation, prevLocation;
-                int line, column;
                 if(t.hasLocationData()) return 1;
                 if(!(t.getGenerated() || t.getExplicit())) return 1;
                 if(t.getTag().equals("{") && ((nextLocation = tokenAt(tokens, i+1)) != null ? nextLocation.hasLocationData() : false)) {
-                    line = nextLocation.getFirstLine();
-                    column = nextLocation.getFirstColumn();
+                    t.setLocation(nextLocation);
                 } else if (((prevLocation = tokenAt(tokens, i-1)) != null ? prevLocation.hasLocationData() : false)) {
-                    line = prevLocation.getFirstLine();
-                    column = prevLocation.getFirstColumn();
+                    t.setLocation(prevLocation);
                 } else {
-                    line = 0;
-                    column = 0;
+                    t.setLocationData(new int[]{0, 0}, new int[]{0, 0});
                 }
-                t.setFirstColumn(column);
-                t.setLastColumn(column);
-                t.setFirstLine(line);
-                t.setLastLine(line);
                 return 1;
             };
         };
@@ -474,7 +862,7 @@ public class Rewriter {
             @Override
             public int call(CoffeeScriptNativeToken t, int i) {
                 if(!t.getTag().equals("INDENT") || (t.getGenerated() && !t.getFromThen())) {
-                    original.setTag("POST_" + original.getTag());
+                    retag(originalIndex, "POST_" + original.getTag());
                     return 0;
                 }
                 return 0;
@@ -488,6 +876,7 @@ public class Rewriter {
                     return 1;
                 }
                 original = t;
+                originalIndex = i;
                 detectEnd(i+1, condition, action);
                 return 1;
             }
@@ -499,61 +888,64 @@ public class Rewriter {
         return implicitCallIndex - startIdx + n;
     }
     
-    private boolean inImplicit(Stack<BracesAndParensDescriptor> s) {
-        BracesAndParensDescriptor desc = stackPeek(s);
-        return (desc != null) ? desc.getParamAsBoolean("ours") : false;
+    private void push(String tag, int index, int flags) {
+        if(stackSize == stackTags.length) {
+            stackTags = Arrays.copyOf(stackTags, stackSize * 2);
+            stackIndexes = Arrays.copyOf(stackIndexes, stackSize * 2);
+            stackFlags = Arrays.copyOf(stackFlags, stackSize * 2);
+        }
+        stackTags[stackSize] = tag;
+        stackIndexes[stackSize] = index;
+        stackFlags[stackSize] = flags;
+        stackSize++;
+    }
+    
+    private void pop() {
+        if(stackSize > 0) {
+            stackTags[--stackSize] = null;
+        }
     }
     
-    private boolean inImplicitCall(Stack<BracesAndParensDescriptor> s) {
-        BracesAndParensDescriptor desc;
-        return inImplicit(s) && (((desc = stackPeek(s)) != null) ? desc.getTag().equals("(") : false);
+    private boolean inImplicit() {
+        return stackSize > 0 && (stackFlags[stackSize - 1] & OURS) != 0;
     }
     
-    private boolean inImplicitObject(Stack<BracesAndParensDescriptor> s) {
-        BracesAndParensDescriptor desc;
-        return inImplicit(s) && (((desc = stackPeek(s)) != null) ? desc.getTag().equals("{") : false);
+    private boolean inImplicitCall() {
+        return inImplicit() && stackTags[stackSize - 1].equals("(");
     }
     
-    private boolean inImplicitControl(Stack<BracesAndParensDescriptor> s) {
-        BracesAndParensDescriptor desc;
-        return inImplicit(s) && (((desc = stackPeek(s)) != null) ? desc.getTag().equals("CONTROL") : false);
+    private boolean inImplicitObject() {
+        return inImplicit() && stackTags[stackSize - 1].equals("{");
     }
     
-    private int startImplicitCall(Stack<BracesAndParensDescriptor> s, Integer j, Holder<Integer> implicitCallIndex) {
-        int idx = (j!= null) ? j : implicitCallIndex.value;
-        BracesAndParensDescriptor d = new BracesAndParensDescriptor("(", idx);
-        d.addParam("ours", true);
-        s.push(d);
-        tokens.add(idx, generate("CALL_START", "("));
-        if(j == null) implicitCallIndex.value++;
-        return implicitCallIndex.value;
+    private boolean inImplicitControl() {
+        return inImplicit() && stackTags[stackSize - 1].equals("CONTROL");
     }
     
-    private int endImplicitCall(Stack<BracesAndParensDescriptor> s, Holder<Integer> implicitCallIndex) {
-        s.pop();
-        tokens.add(implicitCallIndex.value, generate("CALL_END", "(", null));
-        implicitCallIndex.value++;
-        return implicitCallIndex.value;
+    private void startImplicitCall(int j) {
+        push("(", j, OURS);
+        insert(j, generate("CALL_START", "("));
     }
     
-    private int startImplicitObject(Stack<BracesAndParensDescriptor> s, Integer j, Boolean startsLine, Holder<Integer> implicitCallIndex) {
-        int idx = (j!= null) ? j : implicitCallIndex.value;
-        BracesAndParensDescriptor d = new BracesAndParensDescriptor("{", idx);
-        d.addParam("ours", true);
-        d.addParam("sameLine", true);
-        d.addParam("startsLine", Boolean.TRUE.equals(startsLine));
-        s.push(d);
-        tokens.add(idx, generate("{", "{"));
-        if(j == null) implicitCallIndex.value++;
-        return implicitCallIndex.value;
+    private int endImplicitCall() {
+        pop();
+        insert(implicitCallIndex, generate("CALL_END", "(", null));
+        implicitCallIndex++;
+        return implicitCallIndex;
     }
     
-    private int endImplicitObject(Stack<BracesAndParensDescriptor> s, Integer j, CoffeeScriptNativeToken t, Holder<Integer> implicitCallIndex) {
-        j = (j != null) ? j : implicitCallIndex.value;
-        stackPop(s);
-        tokens.add(j, generate("}", "}", t));
-        implicitCallIndex.value ++;
-        return implicitCallIndex.value;
+    private void startImplicitObject(int j, boolean startsLine) {
+        push("{", j, OURS | SAME_LINE | (startsLine ? STARTS_LINE : 0));
+        insert(j, generate("{", "{"));
+    }
+    
+    // j == -1 inserts the closing brace at the current position
+    private int endImplicitObject(int j, CoffeeScriptNativeToken t) {
+        j = (j != -1) ? j : implicitCallIndex;
+        pop();
+        insert(j, generate("}", "}", t));
+        implicitCallIndex ++;
+        return implicitCallIndex;
     }
     
     private CoffeeScriptNativeToken[] indentation(CoffeeScriptNativeToken origin) {
@@ -605,46 +997,4 @@ public class Rewriter {
         }
     }
     
-    private class BracesAndParensDescriptor {
-        private String tag;
-        private int index;
-        private Map<String, Object> params = new HashMap<String, Object>();
-
-        public BracesAndParensDescriptor(String tag, int index) {
-            this.tag = tag;
-            this.index = index;
-        }       
-        
-        public String getTag() {
-            return tag;
-        }
-
-        public void setTag(String tag) {
-            this.tag = tag;
-        }
-
-        public int getIndex() {
-            return index;
-        }
-
-        public void setIndex(int index) {
-            this.index = index;
-        }
-        
-        public Boolean getParamAsBoolean(String key) {
-            return params.containsKey(key) && (Boolean) params.get(key);
-        }
-        
-        public void addParam(String key, Object o) {
-            params.put(key, o);
-        }
-    }
-    
-    private class Holder<T> {
-        private T value;
-        public Holder(T value) {
-            this.value = value;
-        }        
-    }
-    
 }
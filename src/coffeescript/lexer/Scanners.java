@@ -0,0 +1,417 @@
+package coffeescript.lexer;
+
+import java.util.Arrays;
+
+/**
+ * Hand written scanners for the block constructs whose regular expressions
+ * backtrack (heredocs, block comments, heregexes and regexes). Every scanner
+ * visits each character at most a constant number of times and never recurses,
+ * so unterminated or very large blocks fail or succeed in linear time.
+ *
+ * @author milos
+ */
+class Scanners {
+
+    // characters scanned between polls of a cancellation
+    private static final int POLL_INTERVAL = 16 * 1024;
+
+    private Scanners() {
+    }
+
+    /**
+     * Scans a heredoc starting with <code>"""</code> or <code>'''</code> at
+     * <code>start</code>.
+     *
+     * @return <code>{bodyEnd, end}</code> or <code>null</code> when the heredoc
+     * is not terminated
+     */
+    static int[] scanHeredoc(Chunk s, int start) {
+        char quote = s.charAt(start);
+        int length = s.length();
+        int p = start + 3;
+        while ((p = s.indexOfAny(p, quote, '\n', '\\')) != -1) {
+            char c = s.charAt(p);
+            if(isTripleAt(s, p, quote)) {
+                return new int[]{p, p + 3};
+            }
+            if(c == '\n') {
+                int q = skipHorizontalWhitespace(s, p + 1);
+                if(isTripleAt(s, q, quote)) {
+                    return new int[]{p, q + 3};
+                }
+            }
+            if(c == '\\') {
+                if(p + 1 >= length) {
+                    return null;
+                }
+                p += 2;
+            } else {
+                p++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scans a block comment starting with <code>###</code> followed by a
+     * character other than <code>#</code> at <code>start</code>.
+     *
+     * @return <code>{bodyEnd, end}</code> or <code>null</code> when the comment
+     * is not terminated
+     */
+    static int[] scanHerecomment(Chunk s, int start) {
+        int close = start + 4;
+        while((close = s.indexOfAny(close, '#', '#', '#')) != -1) {
+            if(isTripleAt(s, close, '#')) {
+                return new int[]{close, skipHorizontalWhitespace(s, close + 3)};
+            }
+            close++;
+        }
+        return null;
+    }
+
+    /**
+     * Scans a run of single line comments, possibly preceded by whitespace,
+     * starting at <code>start</code>.
+     *
+     * @return end of the last comment line or -1 if there is no comment
+     */
+    static int scanLineComments(Chunk s, int start) {
+        int length = s.length();
+        int end = -1;
+        int p = start;
+        while (true) {
+            while (p < length && isWhitespace(s.charAt(p))) {
+                p++;
+            }
+            if(p >= length || s.charAt(p) != '#' || startsHerecomment(s, p)) {
+                return end;
+            }
+            p = s.indexOfLineTerminator(p + 1);
+            if(p == -1) {
+                p = length;
+            }
+            end = p;
+        }
+    }
+
+    /**
+     * Tests whether <code>###</code> at <code>p</code> opens a block comment
+     * rather than a line comment.
+     */
+    static boolean startsHerecomment(CharSequence s, int p) {
+        return p + 3 < s.length() && isTripleAt(s, p, '#') && s.charAt(p + 3) != '#';
+    }
+
+    /**
+     * Scans a heregex starting with <code>///</code> at <code>start</code>.
+     * Candidate end positions are tried in the same order as the lazy
+     * <code>(?:\\?[\s\S])+?</code> body of the original expression would
+     * try them, but every position is visited at most once, so the search
+     * stays linear in the length of the heregex even when it has to fall back
+     * past escaped characters.
+     *
+     * @return <code>{bodyEnd, end}</code> where the flags lie between
+     * <code>bodyEnd + 3</code> and <code>end</code>, or <code>null</code> when
+     * the heregex is not terminated
+     */
+    static int[] scanHeregex(CharSequence s, int start) {
+        int length = s.length();
+        int bodyStart = start + 3;
+        // positions visited relative to the body, grown with the heregex
+        // rather than sized to the rest of the source
+        boolean[] visited = new boolean[64];
+        int[] pending = new int[16];
+        int top = 0;
+        pending[top++] = bodyStart;
+        while(top > 0) {
+            int p = pending[--top];
+            int index = p - bodyStart;
+            if(index >= visited.length) {
+                visited = Arrays.copyOf(visited, Math.max(index + 1, visited.length * 2));
+            }
+            if(visited[index]) {
+                continue;
+            }
+            visited[index] = true;
+            if(p > bodyStart && isTripleAt(s, p, '/')) {
+                int end = scanFlags(s, p + 3);
+                if(end != -1) {
+                    return new int[]{p, end};
+                }
+            }
+            if(p >= length) {
+                continue;
+            }
+            if(top + 2 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            pending[top++] = p + 1;
+            if(s.charAt(p) == '\\' && p + 1 < length) {
+                pending[top++] = p + 2;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scans a single line regex literal starting with <code>/</code> at
+     * <code>start</code>.
+     *
+     * @return <code>{bodyEnd, end}</code> where <code>bodyEnd</code> is the
+     * index after the closing slash, or <code>null</code> if there is no regex
+     */
+    static int[] scanRegex(CharSequence s, int start) {
+        int length = s.length();
+        int p = start + 1;
+        if(p >= length || isWhitespace(s.charAt(p)) || s.charAt(p) == '=') {
+            return null;
+        }
+        while (p < length) {
+            char c = s.charAt(p);
+            if(c == '/') {
+                int end = scanFlags(s, p + 1);
+                return (end == -1) ? null : new int[]{p + 1, end};
+            } else if(c == '\n') {
+                return null;
+            } else if(c == '\\') {
+                p += 2;
+            } else if(c == '[') {
+                p++;
+                while (true) {
+                    if(p >= length) {
+                        return null;
+                    }
+                    c = s.charAt(p);
+                    if(c == ']') {
+                        p++;
+                        break;
+                    } else if(c == '\n') {
+                        return null;
+                    }
+                    p += (c == '\\') ? 2 : 1;
+                }
+            } else {
+                p++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the <code>#{...}</code> interpolations of a double quoted string or
+     * heredoc whose contents lie between <code>start</code> and
+     * <code>end</code>. Unbalanced interpolations are ignored.
+     *
+     * @return pairs of expression start and end offsets, or <code>null</code>
+     * if the string is not interpolated
+     */
+    static int[] scanInterpolations(String s, int start, int end) {
+        int[] bounds = null;
+        int count = 0;
+        int p = start;
+        while(p < end) {
+            char c = s.charAt(p);
+            if(c == '\\') {
+                p += 2;
+            } else if(c == '#' && p + 1 < end && s.charAt(p + 1) == '{') {
+                int close = scanInterpolationEnd(s, p + 2, end);
+                if(close == -1) {
+                    break;
+                }
+                if(bounds == null) {
+                    bounds = new int[4];
+                } else if(count == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, count * 2);
+                }
+                bounds[count++] = p + 2;
+                bounds[count++] = close;
+                p = close + 1;
+            } else {
+                p++;
+            }
+        }
+        return (bounds == null) ? null : Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Finds the offsets where a large input may be split for lexing: starts of
+     * lines at column 0 outside of strings, heredocs, comments, regexes,
+     * embedded JavaScript and brackets, which do not continue the previous
+     * line. This is a cheap approximation of the lexer, so callers must still
+     * verify that the lexer state is clean at every offset. Consecutive
+     * offsets are at least <code>minSegment</code> characters apart.
+     *
+     * @return pairs of offset and line of every split point
+     */
+    static int[] scanSplitPoints(String s, int minSegment, CoffeeScriptNativeCancellation cancellation) {
+        Chunk all = Chunk.of(s);
+        int length = s.length();
+        int[] splits = new int[16];
+        int count = 0;
+        int line = 0, depth = 0, last = 0;
+        int p = 0;
+        int poll = 0;
+        while(p < length) {
+            if(cancellation != null && p >= poll) {
+                cancellation.check();
+                poll = p + POLL_INTERVAL;
+            }
+            char c = s.charAt(p);
+            int next = p + 1;
+            if(c == '\n') {
+                line++;
+                if(depth == 0 && next - last >= minSegment && next < length && startsTopLevelLine(s.charAt(next))) {
+                    if(count + 2 > splits.length) {
+                        splits = Arrays.copyOf(splits, splits.length * 2);
+                    }
+                    splits[count++] = next;
+                    splits[count++] = line;
+                    last = next;
+                }
+            } else if(c == '#') {
+                if(startsHerecomment(s, p)) {
+                    int[] bounds = scanHerecomment(all, p);
+                    next = (bounds == null) ? length : bounds[0] + 3;
+                } else {
+                    next = s.indexOf('\n', p);
+                    next = (next == -1) ? length : next;
+                }
+            } else if(c == '"' || c == '\'') {
+                if(isTripleAt(s, p, c)) {
+                    int[] bounds = scanHeredoc(all, p);
+                    next = (bounds == null) ? length : bounds[1];
+                } else {
+                    next = scanQuoted(s, p, c);
+                }
+            } else if(c == '`') {
+                next = scanQuoted(s, p, c);
+            } else if(c == '/') {
+                int[] bounds = isTripleAt(s, p, '/') ? scanHeregex(s, p) : (startsRegex(s, p) ? scanRegex(s, p) : null);
+                next = (bounds == null) ? p + (isTripleAt(s, p, '/') ? 3 : 1) : bounds[bounds.length - 1];
+            } else if(c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if(c == ')' || c == ']' || c == '}') {
+                depth = Math.max(0, depth - 1);
+            }
+            if(next > p + 1) {
+                line += countLines(s, p + 1, next);
+            }
+            p = next;
+        }
+        return Arrays.copyOf(splits, count);
+    }
+
+    // lines starting like this neither continue the previous line nor close a bracket
+    private static boolean startsTopLevelLine(char c) {
+        return !isWhitespace(c) && "#,.?:)]}".indexOf(c) == -1;
+    }
+
+    // whether a slash is more likely to start a regex than to divide
+    private static boolean startsRegex(String s, int p) {
+        int q = p - 1;
+        while(q >= 0 && s.charAt(q) != '\n' && isWhitespace(s.charAt(q))) {
+            q--;
+        }
+        return q < 0 || "\n(,=:[!&|?{};+-*%<>~".indexOf(s.charAt(q)) != -1;
+    }
+
+    // end of a string or embedded JavaScript, skipping escapes and interpolations
+    private static int scanQuoted(String s, int start, char quote) {
+        int length = s.length();
+        int p = start + 1;
+        while(p < length) {
+            char c = s.charAt(p);
+            if(c == quote) {
+                return p + 1;
+            } else if(c == '\\') {
+                p += 2;
+            } else if(quote == '"' && c == '#' && p + 1 < length && s.charAt(p + 1) == '{') {
+                int close = scanInterpolationEnd(s, p + 2, length);
+                p = (close == -1) ? length : close + 1;
+            } else {
+                p++;
+            }
+        }
+        return length;
+    }
+
+    private static int countLines(String s, int start, int end) {
+        int lines = 0;
+        for(int p = start; p < end; p++) {
+            if(s.charAt(p) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    // index of the } closing an interpolation, skipping nested braces and strings
+    private static int scanInterpolationEnd(String s, int p, int end) {
+        int depth = 1;
+        while(p < end) {
+            char c = s.charAt(p);
+            if(c == '\\') {
+                p += 2;
+            } else if(c == '{') {
+                depth++;
+                p++;
+            } else if(c == '}') {
+                if(--depth == 0) {
+                    return p;
+                }
+                p++;
+            } else if(c == '\'' || c == '"') {
+                p++;
+                while(p < end && s.charAt(p) != c) {
+                    p += (s.charAt(p) == '\\') ? 2 : 1;
+                }
+                p++;
+            } else {
+                p++;
+            }
+        }
+        return -1;
+    }
+
+    // [imgy]{0,4}(?!\w)
+    private static int scanFlags(CharSequence s, int p) {
+        int length = s.length();
+        int limit = Math.min(length, p + 4);
+        while (p < limit && "imgy".indexOf(s.charAt(p)) != -1) {
+            p++;
+        }
+        if(p < length && isWordChar(s.charAt(p))) {
+            return -1;
+        }
+        return p;
+    }
+
+    private static boolean isTripleAt(CharSequence s, int p, char c) {
+        return p + 2 < s.length() && s.charAt(p) == c && s.charAt(p + 1) == c && s.charAt(p + 2) == c;
+    }
+
+    // [^\n\S]*
+    private static int skipHorizontalWhitespace(CharSequence s, int p) {
+        int length = s.length();
+        while (p < length && s.charAt(p) != '\n' && isWhitespace(s.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    // \s
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // \w
+    static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // line terminators not matched by .
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
@@ -0,0 +1,96 @@
+package coffeescript.lexer;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interns token values so that equal identifiers and operators share one
+ * String instance across all lexers. Identifiers go into a lock striped table
+ * of weak references, so names no longer used by any token can be collected.
+ * Punctuation, operators and small numbers map to permanent constants.
+ *
+ * @author milos
+ */
+class SymbolTable {
+
+    static final SymbolTable SHARED = new SymbolTable();
+
+    private static final int SEGMENTS = 16;
+    private static final Map<String, String> CONSTANTS = new HashMap<String, String>();
+    private static final String[] NUMBERS = new String[256];
+    private static final String[] CHARACTERS = new String[0x80];
+
+    static {
+        for(char c = ' '; c < 0x7f; c++) {
+            String s = String.valueOf(c);
+            CONSTANTS.put(s, s);
+            CHARACTERS[c] = s;
+        }
+        String[] operators = {"->", "=>", "-=", "+=", "*=", "/=", "%=", "<=", ">=", "&=", "|=", "^=", "!=", "?=", "==",
+            ">>>", ">>>=", "--", "++", "::", "&&", "||", "<<", ">>", "**", "//", "%%", "&&=", "||=", "<<=", ">>=", "**=", "//=", "%%=",
+            "?.", "?::", "..", "...", "\\n"};
+        for(String s : operators) {
+            CONSTANTS.put(s, s);
+        }
+        for(int i = 0; i < NUMBERS.length; i++) {
+            NUMBERS[i] = String.valueOf(i);
+        }
+    }
+
+    private final Segment[] segments;
+
+    SymbolTable() {
+        segments = new Segment[SEGMENTS];
+        for(int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    String intern(String s) {
+        int h = s.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)].intern(s);
+    }
+
+    /**
+     * One stripe of the table. The JDK has no concurrent map with weak keys,
+     * and a concurrent map holding the names strongly would never let them
+     * go, so each stripe guards a weak map by its own lock; the lock is held
+     * for one lookup only, and lexers interning concurrently collide on a
+     * stripe at a rate of about one in {@link #SEGMENTS}.
+     */
+    private static final class Segment {
+        private final Map<String, WeakReference<String>> names = new WeakHashMap<String, WeakReference<String>>();
+
+        synchronized String intern(String s) {
+            WeakReference<String> ref = names.get(s);
+            String existing = (ref != null) ? ref.get() : null;
+            if(existing != null) {
+                return existing;
+            }
+            names.put(s, new WeakReference<String>(s));
+            return s;
+        }
+    }
+
+    /**
+     * @return the shared instance of a punctuation or operator value
+     */
+    static String constant(String s) {
+        String constant = CONSTANTS.get(s);
+        return (constant != null) ? constant : SHARED.intern(s);
+    }
+
+    /**
+     * @return the shared instance of a single character value
+     */
+    static String constant(char c) {
+        String constant = (c < CHARACTERS.length) ? CHARACTERS[c] : null;
+        return (constant != null) ? constant : SHARED.intern(String.valueOf(c));
+    }
+
+    static String valueOf(int i) {
+        return (i >= 0 && i < NUMBERS.length) ? NUMBERS[i] : String.valueOf(i);
+    }
+}
@@ -0,0 +1,168 @@
+package coffeescript.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the keyword table of the lexer word by word; a misclassified word
+ * would only show as a subtly wrong token stream.
+ *
+ * @author milos
+ */
+public class KeywordClassifierTest {
+
+    private static final KeywordClassifier KEYWORDS = CoffeeScriptNativeLexer.KEYWORDS;
+
+    private static final List<String> JS_KEYWORDS = Arrays.asList("true", "false", "null", "this", "new", "delete", "typeof", "in", "instanceof",
+            "return", "throw", "break", "continue", "debugger", "if", "else", "switch", "for", "while", "do", "try", "catch", "finally", "class", "extends", "super");
+    private static final List<String> COFFEE_KEYWORDS = Arrays.asList("undefined", "then", "unless", "until", "loop", "of", "by", "when");
+    // alias, value and the tag forced by the value
+    private static final String[][] ALIASES = {
+        {"and", "&&", "LOGIC"}, {"or", "||", "LOGIC"}, {"is", "==", "COMPARE"}, {"isnt", "!=", "COMPARE"}, {"not", "!", "UNARY"},
+        {"yes", "true", "BOOL"}, {"no", "false", "BOOL"}, {"on", "true", "BOOL"}, {"off", "false", "BOOL"}};
+    private static final List<String> RESERVED = Arrays.asList("case", "default", "function", "var", "void", "with", "const", "let", "enum", "export",
+            "import", "native", "__hasProp", "__extends", "__slice", "__bind", "__indexOf", "implements", "interface", "package", "private", "protected",
+            "public", "static", "yield");
+    private static final List<String> STRICT_PROSCRIBED = Arrays.asList("arguments", "eval");
+
+    @Test
+    public void testJsKeywords() {
+        for (String name : JS_KEYWORDS) {
+            KeywordClassifier.Keyword k = lookup(name);
+            assertTrue(name, k.keyword);
+            assertTrue(name, k.forbidden);
+            assertFalse(name, k.reserved);
+            assertNull(name, k.alias);
+            String tag = name.toUpperCase();
+            if (Arrays.asList("NEW", "TYPEOF", "DELETE", "DO").contains(tag)) {
+                tag = "UNARY";
+            }
+            assertEquals(name, tag, k.tag);
+        }
+        assertEquals(KeywordClassifier.FOR, lookup("for").kind);
+        assertEquals(KeywordClassifier.RELATION, lookup("in").kind);
+        assertEquals("FORIN", lookup("in").forTag);
+        assertEquals(KeywordClassifier.RELATION, lookup("instanceof").kind);
+        assertNull(lookup("instanceof").forTag);
+        assertEquals(KeywordClassifier.OTHER, lookup("if").kind);
+        assertEquals("BOOL", lookup("true").valueTag);
+        assertEquals("BOOL", lookup("false").valueTag);
+        assertEquals("STATEMENT", lookup("break").valueTag);
+        assertEquals("STATEMENT", lookup("continue").valueTag);
+        assertNull(lookup("null").valueTag);
+    }
+
+    @Test
+    public void testCoffeeKeywords() {
+        for (String name : COFFEE_KEYWORDS) {
+            KeywordClassifier.Keyword k = lookup(name);
+            assertTrue(name, k.keyword);
+            assertFalse(name, k.forbidden);
+            assertFalse(name, k.reserved);
+            assertNull(name, k.alias);
+            assertNull(name, k.valueTag);
+            assertEquals(name, name.equals("unless") ? "IF" : name.toUpperCase(), k.tag);
+        }
+        assertEquals(KeywordClassifier.WHEN, lookup("when").kind);
+        assertEquals(KeywordClassifier.RELATION, lookup("of").kind);
+        assertEquals("FOROF", lookup("of").forTag);
+        assertEquals(KeywordClassifier.OTHER, lookup("until").kind);
+        for (String[] alias : ALIASES) {
+            KeywordClassifier.Keyword k = lookup(alias[0]);
+            assertTrue(alias[0], k.keyword);
+            assertFalse(alias[0], k.forbidden);
+            assertEquals(alias[0], alias[0].toUpperCase(), k.tag);
+            assertEquals(alias[0], alias[1], k.alias);
+            assertEquals(alias[0], alias[2], k.valueTag);
+            assertEquals(alias[0], KeywordClassifier.OTHER, k.kind);
+        }
+    }
+
+    @Test
+    public void testForbiddenWords() {
+        for (String name : RESERVED) {
+            KeywordClassifier.Keyword k = lookup(name);
+            assertFalse(name, k.keyword);
+            assertTrue(name, k.forbidden);
+            assertTrue(name, k.reserved);
+            assertNull(name, k.tag);
+            assertNull(name, k.valueTag);
+        }
+        for (String name : STRICT_PROSCRIBED) {
+            KeywordClassifier.Keyword k = lookup(name);
+            assertFalse(name, k.keyword);
+            assertTrue(name, k.forbidden);
+            assertFalse(name, k.reserved);
+        }
+    }
+
+    @Test
+    public void testOtherWords() {
+        Set<String> vocabulary = new HashSet<String>(JS_KEYWORDS);
+        vocabulary.addAll(COFFEE_KEYWORDS);
+        vocabulary.addAll(RESERVED);
+        vocabulary.addAll(STRICT_PROSCRIBED);
+        for (String[] alias : ALIASES) {
+            vocabulary.add(alias[0]);
+        }
+        List<String> others = new ArrayList<String>();
+        // the hash only sees the first two and the last character and the length,
+        // so changing any other character keeps the slot of the word
+        for (String name : vocabulary) {
+            for (int i = 2; i < name.length() - 1; i++) {
+                others.add(name.substring(0, i) + 'Q' + name.substring(i + 1));
+            }
+            others.add(name.toUpperCase());
+            others.add(name + "s");
+            others.add(name.substring(1));
+        }
+        // every word of up to three letters
+        String letters = "abcdefghijklmnopqrstuvwxyz_$";
+        for (char a : letters.toCharArray()) {
+            others.add(String.valueOf(a));
+            for (char b : letters.toCharArray()) {
+                others.add("" + a + b);
+                for (char c : letters.toCharArray()) {
+                    others.add("" + a + b + c);
+                }
+            }
+        }
+        others.add("instanceofs");
+        others.add("__hasOwnProperty");
+        for (String other : others) {
+            if (!vocabulary.contains(other)) {
+                assertNull(other, KEYWORDS.lookup(other));
+            }
+        }
+        assertNull(KEYWORDS.lookup(""));
+        assertNull(KEYWORDS.lookup(null));
+    }
+
+    @Test
+    public void testSpans() {
+        String s = "x = not instanceof(yes)";
+        assertEquals("!", KEYWORDS.lookup(s, 4, 7).alias);
+        assertEquals("INSTANCEOF", KEYWORDS.lookup(s, 8, 18).tag);
+        assertEquals("BOOL", KEYWORDS.lookup(s, 19, 22).valueTag);
+        // parts and neighbourhoods of words
+        assertEquals("IN", KEYWORDS.lookup(s, 8, 10).tag);
+        assertNull(KEYWORDS.lookup(s, 8, 11));
+        assertNull(KEYWORDS.lookup(s, 7, 18));
+        assertNull(KEYWORDS.lookup(s, 8, 17));
+        assertNull(KEYWORDS.lookup(s, 0, 1));
+    }
+
+    private static KeywordClassifier.Keyword lookup(String name) {
+        KeywordClassifier.Keyword k = KEYWORDS.lookup(name);
+        assertNotNull(name, k);
+        assertEquals(name, k.name);
+        // the same word within a longer string
+        assertSame(name, k, KEYWORDS.lookup("(" + name + ")", 1, name.length() + 1));
+        return k;
+    }
+}
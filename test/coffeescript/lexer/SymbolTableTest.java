@@ -0,0 +1,89 @@
+package coffeescript.lexer;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class SymbolTableTest {
+
+    @Test
+    public void testIntern() {
+        SymbolTable table = new SymbolTable();
+        String name = new String("fooBar");
+        assertSame(name, table.intern(name));
+        assertSame(name, table.intern(new String("fooBar")));
+        // distinct values, also of the same hash, stay apart
+        String other = new String("fooBas");
+        assertSame(other, table.intern(other));
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        String aa = new String("Aa");
+        String bb = new String("BB");
+        assertSame(aa, table.intern(aa));
+        assertSame(bb, table.intern(bb));
+        assertSame(aa, table.intern(new String("Aa")));
+        assertSame(bb, table.intern(new String("BB")));
+        // tables do not share names
+        assertNotSame(name, new SymbolTable().intern(new String("fooBar")));
+    }
+
+    @Test
+    public void testConcurrentIntern() throws InterruptedException {
+        final SymbolTable table = new SymbolTable();
+        final String[][] interned = new String[4][1000];
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[interned.length];
+        for (int t = 0; t < threads.length; t++) {
+            final String[] mine = interned[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < mine.length; i++) {
+                            mine[i] = table.intern(new String("name" + i));
+                        }
+                    } catch (Throwable ex) {
+                        error.set(ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertNull(error.get());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("name" + i, interned[0][i]);
+            for (int t = 1; t < interned.length; t++) {
+                assertSame(interned[0][i], interned[t][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testConstants() {
+        assertSame(SymbolTable.constant("->"), SymbolTable.constant(new String("->")));
+        assertSame(SymbolTable.constant(">>>="), SymbolTable.constant(new String(">>>=")));
+        assertSame(SymbolTable.constant("("), SymbolTable.constant('('));
+        assertEquals(" ", SymbolTable.constant(' '));
+        assertSame(SymbolTable.constant(' '), SymbolTable.constant(' '));
+        // other operators are interned in the shared table
+        assertSame(SymbolTable.constant(new String("<-<")), SymbolTable.constant(new String("<-<")));
+    }
+
+    @Test
+    public void testValueOf() {
+        for (int i = -300; i < 300; i++) {
+            assertEquals(String.valueOf(i), SymbolTable.valueOf(i));
+            if (i >= 0 && i < 256) {
+                assertSame(SymbolTable.valueOf(i), SymbolTable.valueOf(i));
+            }
+        }
+        assertEquals(String.valueOf(Integer.MIN_VALUE), SymbolTable.valueOf(Integer.MIN_VALUE));
+        assertEquals(String.valueOf(Integer.MAX_VALUE), SymbolTable.valueOf(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,62 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeComments;
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStructure;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptCommentsTest {
+
+    private static final String CODE = "###\nHeader\n###\nclass A\n  ### x ###\n  foo: (y) ->\n    y * 2\n  ###\n  end\n  ###\nb = [1,\n  2]\n";
+
+    @Test
+    public void testSeparate() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(CODE);
+        lexer.setSeparateComments(true);
+        List<CoffeeScriptNativeToken> tokens = lexer.tokenize(false);
+        CoffeeScriptNativeComments comments = lexer.getComments();
+        assertEquals(3, comments.size());
+        for (CoffeeScriptNativeToken token : tokens) {
+            assertFalse(token.getTag().equals("HERECOMMENT"));
+        }
+        assertEquals("\nHeader\n", comments.getComment(0).getValue());
+        assertEquals(0, comments.getAnchor(0));
+        // comments and their TERMINATOR tokens merge back into the plain tokens
+        List<CoffeeScriptNativeToken> plain = new CoffeeScriptNativeLexer(CODE).tokenize(false);
+        List<CoffeeScriptNativeToken> merged = comments.merge(tokens);
+        assertEquals(plain.size(), merged.size());
+        for (int i = 0; i < plain.size(); i++) {
+            assertEquals(plain.get(i).getTag(), merged.get(i).getTag());
+            assertEquals(plain.get(i).getStartOffset(), merged.get(i).getStartOffset());
+        }
+        CoffeeScriptNativeStructure structure = lexer.getStructure();
+        for (int entry = 0; entry < structure.size(); entry++) {
+            assertEquals(structure.getStartOffset(entry), tokens.get(structure.getTokenIndex(entry)).getStartOffset());
+        }
+    }
+
+    @Test
+    public void testRewrite() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(CODE);
+        lexer.setSeparateComments(true);
+        List<CoffeeScriptNativeToken> tokens = lexer.tokenize(true);
+        List<CoffeeScriptNativeToken> merged = lexer.getComments().merge(tokens);
+        List<CoffeeScriptNativeToken> expected = new CoffeeScriptNativeLexer(CODE).tokenize(true);
+        assertEquals(expected.size(), merged.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTag(), merged.get(i).getTag());
+        }
+        // without separating comments there are none
+        CoffeeScriptNativeLexer plain = new CoffeeScriptNativeLexer(CODE);
+        plain.tokenize(true);
+        assertNull(plain.getComments());
+    }
+}
@@ -0,0 +1,162 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerBlocksTest {
+
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static String repeatLine(String line, int size) {
+        StringBuilder sb = new StringBuilder(size + line.length());
+        while (sb.length() < size) {
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private static List<CoffeeScriptNativeToken> lex(String code) throws CoffeeScriptNativeLexerException {
+        return new CoffeeScriptNativeLexer(code).tokenize(false);
+    }
+
+    @Test
+    public void testSmallBlocks() throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = lex("a = \"\"\"\n  x \\\"\"\" y\n  \"\"\"\n###\ncomment\n###\nb = ///\n  \\d+ # digits\n///gi\nc = /[/]\\//g\n");
+        assertEquals("STRING", tokens.get(2).getTag());
+        assertEquals("\"\"\"\n  x \\\"\"\" y\n  \"\"\"", tokens.get(2).getValue());
+        assertEquals("HERECOMMENT", tokens.get(4).getTag());
+        assertEquals("\ncomment\n", tokens.get(4).getValue());
+        assertEquals("REGEX", tokens.get(8).getTag());
+        assertEquals("/\n  \\d+ # digits\n/gi", tokens.get(8).getValue());
+        assertEquals("REGEX", tokens.get(12).getTag());
+        assertEquals("/[/]\\//g", tokens.get(12).getValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeHeredoc() throws CoffeeScriptNativeLexerException {
+        String body = repeatLine("  some \\\"text\\\" with ''' and \"\" quotes \\n\n", BLOCK_SIZE);
+        List<CoffeeScriptNativeToken> tokens = lex("x = \"\"\"\n" + body + "\"\"\"\ny = 1\n");
+        assertEquals("STRING", tokens.get(2).getTag());
+        assertEquals(body.length() + 7, tokens.get(2).getValue().length());
+        assertEquals("y", tokens.get(4).getValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeHerecomment() throws CoffeeScriptNativeLexerException {
+        String body = repeatLine("  commented ## out code = -> ## \n", BLOCK_SIZE);
+        List<CoffeeScriptNativeToken> tokens = lex("###\n" + body + "###\ny = 1\n");
+        assertEquals("HERECOMMENT", tokens.get(0).getTag());
+        assertEquals(body.length() + 1, tokens.get(0).getValue().length());
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeLineComments() throws CoffeeScriptNativeLexerException {
+        String body = repeatLine("  # a line comment\n", BLOCK_SIZE);
+        List<CoffeeScriptNativeToken> tokens = lex("x = 1\n" + body + "y = 2\n");
+        assertEquals("y", tokens.get(4).getValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeHeregex() throws CoffeeScriptNativeLexerException {
+        String body = repeatLine("  [a-z]\\/+ // \\/\\/ \\\\ # comment\n", BLOCK_SIZE);
+        List<CoffeeScriptNativeToken> tokens = lex("x = ///\n" + body + "///g\n");
+        assertEquals("REGEX", tokens.get(2).getTag());
+        assertTrue(tokens.get(2).getValue().endsWith("/g"));
+    }
+
+    @Test(timeout = 10000)
+    public void testManyHeregexes() throws CoffeeScriptNativeLexerException {
+        String code = repeatLine("r = ///a\\/b///g\n", BLOCK_SIZE / 8);
+        List<CoffeeScriptNativeToken> tokens = lex(code);
+        assertEquals(4 * (code.length() / 16), tokens.size());
+        assertEquals("/a\\/b/g", tokens.get(tokens.size() - 2).getValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeRegex() throws CoffeeScriptNativeLexerException {
+        String body = repeatLine("[\\]/]\\/a", BLOCK_SIZE);
+        List<CoffeeScriptNativeToken> tokens = lex("x = /" + body + "/\n");
+        assertEquals("REGEX", tokens.get(2).getTag());
+        assertEquals(body.length() + 2, tokens.get(2).getValue().length());
+    }
+
+    @Test
+    public void testLongRuns() throws CoffeeScriptNativeLexerException {
+        // delimiters at every offset of the words searched, after ISO-8859-1 and wider chars
+        for (int length = 0; length < 40; length++) {
+            String run = repeatLine("a\u00e9\u4e2d\u0127b c", length).substring(0, length);
+            List<CoffeeScriptNativeToken> tokens = lex("x = '" + run + "\\'\\\\'\n# " + run + "\u2028y = \"" + run + "\\\n\"\n"
+                    + "z = `" + run + "\\``\nif z\n" + repeatLine(" ", length + 1) + "w" + repeatLine(" ", length) + "= 1\n");
+            String message = "length " + length;
+            assertEquals(message, "'" + run + "\\'\\\\'", tokens.get(2).getValue());
+            // the comment ends at the line separator, which starts an identifier
+            assertEquals(message, "\u2028y", tokens.get(3).getValue());
+            assertEquals(message, "\"" + run + "\\\n\"", tokens.get(5).getValue());
+            assertEquals(message, run + "\\`", tokens.get(9).getValue());
+            assertEquals(message, "INDENT", tokens.get(13).getTag());
+            assertEquals(message, "w", tokens.get(14).getValue());
+            assertEquals(message, length > 0, tokens.get(14).getSpaced());
+        }
+        // a backslash in embedded JavaScript does not escape a line break
+        assertEquals("`", lex("z = `" + repeatLine("a", 40) + "\\\n`\n").get(2).getTag());
+    }
+
+    @Test
+    public void testSupplementaryCharacters() throws CoffeeScriptNativeLexerException {
+        // every surrogate pair before a run takes two chars, the run stays in place
+        for (int pairs = 1; pairs < 4; pairs++) {
+            String emoji = repeatLine("\ud83d\ude00", 2 * pairs);
+            for (int length = 40; length < 56; length++) {
+                String run = repeatLine("some text ", length).substring(0, length);
+                String message = pairs + " pairs, length " + length;
+                List<CoffeeScriptNativeToken> tokens = lex("# " + emoji + " " + run + "\ny = 1\n");
+                assertEquals(message, "y", tokens.get(1).getValue());
+                tokens = lex("x = '" + emoji + run + "'\ny = 1\n");
+                assertEquals(message, "STRING", tokens.get(2).getTag());
+                assertEquals(message, "'" + emoji + run + "'", tokens.get(2).getValue());
+                assertEquals(message, "y", tokens.get(4).getValue());
+                tokens = lex("x = \"" + emoji + " " + run + "\"\ny = 1\n");
+                assertEquals(message, "STRING", tokens.get(2).getTag());
+                assertEquals(message, "\"" + emoji + " " + run + "\"", tokens.get(2).getValue());
+                tokens = lex("x = \"\"\"\n" + emoji + run + "\n\"\"\"\n###\n" + emoji + run + "\n###\ny = 1\n");
+                assertEquals(message, "STRING", tokens.get(2).getTag());
+                assertEquals(message, "\"\"\"\n" + emoji + run + "\n\"\"\"", tokens.get(2).getValue());
+                assertEquals(message, "HERECOMMENT", tokens.get(4).getTag());
+                assertEquals(message, "\n" + emoji + run + "\n", tokens.get(4).getValue());
+                assertEquals(message, "y", tokens.get(6).getValue());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testUnterminatedHeredoc() {
+        assertUnterminated("x = \"\"\"\n" + repeatLine("  text \\\" \"\"\n", BLOCK_SIZE), "missing \"\"\"");
+    }
+
+    @Test(timeout = 10000)
+    public void testUnterminatedHerecomment() {
+        assertUnterminated("###\n" + repeatLine("  text ## \n", BLOCK_SIZE), "missing ###");
+    }
+
+    @Test(timeout = 10000)
+    public void testUnterminatedHeregex() {
+        assertUnterminated("x = ///\n" + repeatLine("  a // \\/ \n", BLOCK_SIZE), "missing ///");
+    }
+
+    private static void assertUnterminated(String code, String message) {
+        try {
+            lex(code);
+            fail("expected " + message);
+        } catch (CoffeeScriptNativeLexerException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeCancellation;
+import coffeescript.lexer.CoffeeScriptNativeCancelledException;
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerCancellationTest {
+
+    private static final String UNIT = "class A\n  constructor: (@x) ->\n    super \"a #{x} b\"\n  foo: -> x or no\nfor own k, v of obj when v\n  f k, a: 1\r\n";
+
+    private static String code(int size) {
+        StringBuilder sb = new StringBuilder(size + UNIT.length());
+        while (sb.length() < size) {
+            sb.append(UNIT);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Fires on the given poll, or never for a negative one, and remembers
+     * where it fired.
+     */
+    private static class CountingCancellation extends CoffeeScriptNativeCancellation {
+        private final int firingPoll;
+        private int polls;
+        private StackTraceElement[] firedAt;
+
+        CountingCancellation(int firingPoll) {
+            this.firingPoll = firingPoll;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            polls++;
+            if (polls == firingPoll) {
+                firedAt = new Throwable().getStackTrace();
+            }
+            return firingPoll >= 0 && polls >= firingPoll;
+        }
+    }
+
+    @Test
+    public void testCancelledBefore() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeCancellation cancellation = new CoffeeScriptNativeCancellation();
+        cancellation.cancel();
+        assertCancelled(new CoffeeScriptNativeLexer("a = 1\n"), true, cancellation, null);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertCancelled(new CoffeeScriptNativeLexer(code(256 * 1024)), false, cancellation, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadline() throws CoffeeScriptNativeLexerException {
+        String code = code(512 * 1024);
+        long start = System.nanoTime();
+        assertCancelled(new CoffeeScriptNativeLexer(code), true, CoffeeScriptNativeCancellation.withTimeout(1, TimeUnit.MILLISECONDS), null);
+        long sequential = System.nanoTime() - start;
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(code).tokenize(true);
+        long full = System.nanoTime() - start - sequential;
+        assertTrue(tokens.size() > 0);
+        assertTrue(sequential < full);
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadlineInSegments() throws CoffeeScriptNativeLexerException {
+        String code = code(1024 * 1024);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            long start = System.nanoTime();
+            assertCancelled(new CoffeeScriptNativeLexer(code), true, CoffeeScriptNativeCancellation.withTimeout(1, TimeUnit.MILLISECONDS), pool);
+            long cancelled = System.nanoTime() - start;
+            new CoffeeScriptNativeLexer(code).tokenize(true, null, pool);
+            long full = System.nanoTime() - start - cancelled;
+            assertTrue(cancelled < full);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelledInRewriter() throws CoffeeScriptNativeLexerException {
+        String code = code(64 * 1024);
+        // polls of lexing alone, so that the next one is the rewriter's
+        CountingCancellation counting = new CountingCancellation(-1);
+        new CoffeeScriptNativeLexer(code).tokenize(false, counting);
+        CountingCancellation cancellation = new CountingCancellation(counting.polls + 1);
+        CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(code);
+        lexer.setSeparateComments(true);
+        assertCancelled(lexer, true, cancellation, null);
+        boolean inRewriter = false;
+        for (StackTraceElement element : cancellation.firedAt) {
+            if (element.getClassName().equals("coffeescript.lexer.Rewriter")
+                    && (element.getMethodName().equals("scanTokens") || element.getMethodName().equals("detectEnd"))) {
+                inRewriter = true;
+            }
+        }
+        assertTrue(inRewriter);
+    }
+
+    private static void assertCancelled(CoffeeScriptNativeLexer lexer, boolean rewrite, CoffeeScriptNativeCancellation cancellation, ForkJoinPool pool) throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = null;
+        try {
+            tokens = lexer.tokenize(rewrite, cancellation, pool);
+            fail();
+        } catch (CoffeeScriptNativeCancelledException ex) {
+            // the partially built tokens stay with the lexer
+        }
+        assertNull(tokens);
+        assertNull(lexer.getComments());
+    }
+}
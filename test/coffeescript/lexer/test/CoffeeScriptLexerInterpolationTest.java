@@ -0,0 +1,45 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStringToken;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerInterpolationTest {
+
+    @Test
+    public void testPlainStringsAreNotInterpolated() throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer("a = 'x #{y}'\nb = \"x \\#{y}\"\n").tokenize(false);
+        assertFalse(tokens.get(2) instanceof CoffeeScriptNativeStringToken);
+        assertFalse(tokens.get(6) instanceof CoffeeScriptNativeStringToken);
+    }
+
+    @Test
+    public void testInterpolationTokens() throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer("x = 1\nalert \"a #{b} c #{ f({d: 1}) }\"\n").tokenize(false);
+        CoffeeScriptNativeStringToken string = (CoffeeScriptNativeStringToken) tokens.get(5);
+        assertEquals("STRING", string.getTag());
+        assertEquals(2, string.getInterpolationCount());
+        assertEquals("b", string.getValue().substring(string.getInterpolationStart(0), string.getInterpolationEnd(0)));
+
+        List<CoffeeScriptNativeToken> first = string.getInterpolationTokens(0);
+        assertSame(first, string.getInterpolationTokens(0));
+        assertEquals("IDENTIFIER", first.get(0).getTag());
+        assertEquals("b", first.get(0).getValue());
+        assertEquals(1, first.get(0).getFirstLine());
+        assertEquals(11, first.get(0).getFirstColumn());
+
+        List<CoffeeScriptNativeToken> second = string.getInterpolationTokens(1);
+        assertEquals("f", second.get(0).getValue());
+        assertEquals(19, second.get(0).getFirstColumn());
+        assertEquals("CALL_START", second.get(1).getTag());
+        assertEquals("{", second.get(2).getTag());
+    }
+}
@@ -0,0 +1,97 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Machine generated code nested far deeper than the Java stack would allow
+ * with a frame per level.
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerNestingTest {
+
+    private static final int DEPTH = 10000;
+
+    private static int count(List<CoffeeScriptNativeToken> tokens, String tag) {
+        int count = 0;
+        for (CoffeeScriptNativeToken token : tokens) {
+            if (token.getTag().equals(tag)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void indent(StringBuilder sb, int size) {
+        for (int i = 0; i < size; i++) {
+            sb.append(' ');
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testIndentationClosedByBracket() throws CoffeeScriptNativeLexerException {
+        // the ) closes every indentation level opened inside of the call
+        StringBuilder sb = new StringBuilder("f(->\n");
+        for (int level = 1; level < DEPTH; level++) {
+            indent(sb, level);
+            sb.append("->\n");
+        }
+        indent(sb, DEPTH);
+        sb.append("x)\ny = 1\n");
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(sb.toString()).tokenize(false);
+        assertEquals(DEPTH, count(tokens, "INDENT"));
+        assertEquals(DEPTH, count(tokens, "OUTDENT"));
+        assertEquals(")", tokens.get(tokens.size() - 6).getTag());
+        assertEquals("y", tokens.get(tokens.size() - 4).getValue());
+    }
+
+    @Test(timeout = 20000)
+    public void testUnmatchedBracketInDeepIndentation() {
+        StringBuilder sb = new StringBuilder("f ->\n");
+        for (int level = 1; level < DEPTH; level++) {
+            indent(sb, level);
+            sb.append("->\n");
+        }
+        indent(sb, DEPTH);
+        sb.append("x)\n");
+        try {
+            new CoffeeScriptNativeLexer(sb.toString()).tokenize(false);
+            fail();
+        } catch (CoffeeScriptNativeLexerException ex) {
+            assertEquals("unmatched )", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBrackets() throws CoffeeScriptNativeLexerException {
+        // a multiple of three, so that the innermost bracket is the object
+        int depth = 9 * DEPTH;
+        StringBuilder sb = new StringBuilder("x = ");
+        for (int i = 0; i < depth; i++) {
+            sb.append((i % 3 == 0) ? '[' : ((i % 3 == 1) ? '(' : '{'));
+        }
+        sb.append("a: 1");
+        for (int i = depth - 1; i >= 0; i--) {
+            sb.append((i % 3 == 0) ? ']' : ((i % 3 == 1) ? ')' : '}'));
+        }
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(sb.append('\n').toString()).tokenize(true);
+        assertEquals(2 * depth + 6, tokens.size());
+        assertEquals("TERMINATOR", tokens.get(tokens.size() - 1).getTag());
+    }
+
+    @Test(timeout = 10000)
+    public void testImplicitCalls() throws CoffeeScriptNativeLexerException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < DEPTH; i++) {
+            sb.append("f").append(i).append(' ');
+        }
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(sb.append("1\n").toString()).tokenize(true);
+        assertEquals(DEPTH, count(tokens, "CALL_START"));
+        assertEquals(DEPTH, count(tokens, "CALL_END"));
+    }
+}
@@ -0,0 +1,134 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStructure;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerParallelTest {
+
+    private static final String[] PARTS = {
+        "class Foo extends Bar\n  constructor: (@a, b = 2) ->\n    super a, b\n  get: -> @a\n\n",
+        "square = (x) -> x * x\nlist = [1, 2, 3]\n",
+        "s = \"multi\nline #{ \"nested\n\" + x }\n= not code\n\"\n",
+        "doc = \"\"\"\nfoo = (\n  \"\"\"\n",
+        "###\nx = [\n###\nr = /[\"(]/g\n",
+        "j = `function() {\n}`\n",
+        "h = ///\n  \" # comment\n///i\n",
+        "sum = a +\nb\nobj\n.chain()\n",
+        "call a,\nb\nv = 1 \\\n+ 2\n",
+        "nums = [\n1\n2\n]\n",
+        "if x\n  y()\nelse\n  z()\n",
+        "for own k, v of obj\n  console.log k\nwhen = 3\n",
+        "a: 1\n@b: 2\n",
+        "f if a then b else c\ntry x catch e\n",
+        "g = -> a; b\nk 1,\n  c: 2\n  d: 3\n",
+        // leaves an implicit call open at the end of the line
+        "h class A\n",
+    };
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private static String generate(int size, int seed) {
+        StringBuilder sb = new StringBuilder(size + 100);
+        int k = seed;
+        while (sb.length() < size) {
+            k = k * 1103515245 + 12345;
+            sb.append(PARTS[(k >>> 16) % PARTS.length]);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testSameTokensAsSequential() throws CoffeeScriptNativeLexerException {
+        for (int seed = 0; seed < 4; seed++) {
+            String code = generate(64 * 1024, seed);
+            assertSameTokens(new CoffeeScriptNativeLexer(code).tokenize(false), new CoffeeScriptNativeLexer(code).tokenize(false, null, pool));
+        }
+    }
+
+    @Test
+    public void testSameTokensAsSequentialRewritten() throws CoffeeScriptNativeLexerException {
+        for (int seed = 7; seed < 11; seed++) {
+            String code = generate(128 * 1024, seed);
+            assertSameTokens(new CoffeeScriptNativeLexer(code).tokenize(true), new CoffeeScriptNativeLexer(code).tokenize(true, null, pool));
+        }
+    }
+
+    @Test
+    public void testSameStructureAsSequential() throws CoffeeScriptNativeLexerException {
+        String code = generate(64 * 1024, 11);
+        CoffeeScriptNativeLexer sequential = new CoffeeScriptNativeLexer(code);
+        sequential.tokenize(false);
+        CoffeeScriptNativeLexer parallel = new CoffeeScriptNativeLexer(code);
+        parallel.tokenize(false, null, pool);
+        CoffeeScriptNativeStructure expected = sequential.getStructure(), actual = parallel.getStructure();
+        assertEquals(expected.size(), actual.size());
+        for (int entry = 0; entry < expected.size(); entry++) {
+            assertEquals(expected.getTokenIndex(entry), actual.getTokenIndex(entry));
+            assertEquals(expected.getStartOffset(entry), actual.getStartOffset(entry));
+            assertEquals(expected.getMatch(entry), actual.getMatch(entry));
+        }
+        assertEquals(expected.getBlockCount(), actual.getBlockCount());
+        for (int block = 0; block < expected.getBlockCount(); block++) {
+            assertEquals(expected.getBlockEntry(block), actual.getBlockEntry(block));
+        }
+    }
+
+    @Test
+    public void testSameError() {
+        String code = generate(48 * 1024, 3) + "x = )\n" + generate(48 * 1024, 5);
+        CoffeeScriptNativeLexerException sequential = null, parallel = null;
+        try {
+            new CoffeeScriptNativeLexer(code).tokenize(false);
+        } catch (CoffeeScriptNativeLexerException ex) {
+            sequential = ex;
+        }
+        try {
+            new CoffeeScriptNativeLexer(code).tokenize(false, null, pool);
+        } catch (CoffeeScriptNativeLexerException ex) {
+            parallel = ex;
+        }
+        assertNotNull(sequential);
+        assertNotNull(parallel);
+        assertEquals(sequential.getMessage(), parallel.getMessage());
+        assertEquals(sequential.getLine(), parallel.getLine());
+        assertEquals(sequential.getColumn(), parallel.getColumn());
+    }
+
+    private static void assertSameTokens(List<CoffeeScriptNativeToken> expected, List<CoffeeScriptNativeToken> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CoffeeScriptNativeToken e = expected.get(i), a = actual.get(i);
+            String message = "token " + i;
+            assertEquals(message, e.getTag(), a.getTag());
+            assertEquals(message, e.getValue(), a.getValue());
+            assertEquals(message, e.getFirstLine(), a.getFirstLine());
+            assertEquals(message, e.getFirstColumn(), a.getFirstColumn());
+            assertEquals(message, e.getLastLine(), a.getLastLine());
+            assertEquals(message, e.getLastColumn(), a.getLastColumn());
+            assertEquals(message, e.getSpaced(), a.getSpaced());
+            assertEquals(message, e.getNewLine(), a.getNewLine());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerScalingTest {
+
+    private static final int FUNCTIONS = 50000;
+
+    private static int count(List<CoffeeScriptNativeToken> tokens, String tag) {
+        int count = 0;
+        for (CoffeeScriptNativeToken token : tokens) {
+            if (token.getTag().equals(tag)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test(timeout = 10000)
+    public void testManyCallbacks() throws CoffeeScriptNativeLexerException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < FUNCTIONS; i++) {
+            sb.append("f").append(i).append(" = (a, b) -> g(a, (c) -> h(c, b), k(a))\n");
+        }
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(sb.toString()).tokenize(false);
+        assertEquals(2 * FUNCTIONS, count(tokens, "PARAM_START"));
+        assertEquals(2 * FUNCTIONS, count(tokens, "PARAM_END"));
+        assertEquals(3 * FUNCTIONS, count(tokens, "CALL_START"));
+    }
+
+    @Test(timeout = 10000)
+    public void testNestedParameters() throws CoffeeScriptNativeLexerException {
+        // every arrow closes parameters spanning all the ones inside
+        StringBuilder sb = new StringBuilder("f = ");
+        for (int i = 0; i < FUNCTIONS; i++) {
+            sb.append("(a = ");
+        }
+        sb.append("1");
+        for (int i = 0; i < FUNCTIONS; i++) {
+            sb.append(") -> a");
+        }
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(sb.append("\n").toString()).tokenize(false);
+        assertEquals(FUNCTIONS, count(tokens, "PARAM_START"));
+        assertEquals(FUNCTIONS, count(tokens, "PARAM_END"));
+        assertEquals(0, count(tokens, "("));
+    }
+
+    @Test
+    public void testCallBeforeArrow() throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer("x = (f(a) -> b)\n").tokenize(false);
+        assertEquals("(", tokens.get(2).getTag());
+        assertEquals("CALL_START", tokens.get(4).getTag());
+        assertEquals("PARAM_END", tokens.get(6).getTag());
+    }
+}
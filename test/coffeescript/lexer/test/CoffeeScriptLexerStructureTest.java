@@ -0,0 +1,64 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStructure;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexerStructureTest {
+
+    private static final String CODE = "class A\n  foo: (a, [b, c]) ->\n    g(a)\n  bar: 1\nx = {y: f(->\n  2)}\n";
+
+    @Test
+    public void testMatches() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(CODE);
+        List<CoffeeScriptNativeToken> tokens = lexer.tokenize(false);
+        CoffeeScriptNativeStructure structure = lexer.getStructure();
+        // brackets and indentation in the order of the tokens
+        StringBuilder sb = new StringBuilder();
+        for (int entry = 0; entry < structure.size(); entry++) {
+            CoffeeScriptNativeToken token = tokens.get(structure.getTokenIndex(entry));
+            sb.append(structure.isIndentation(entry) ? token.getTag() : token.getValue()).append(' ');
+            CoffeeScriptNativeToken match = tokens.get(structure.getTokenIndex(structure.getMatch(entry)));
+            assertEquals(entry, structure.getMatch(structure.getMatch(entry)));
+            assertEquals(structure.isIndentation(entry), structure.isIndentation(structure.getMatch(entry)));
+            assertEquals(token.getStartOffset(), structure.getStartOffset(entry));
+            if (structure.isOpening(entry)) {
+                assertTrue(match.getStartOffset() >= token.getStartOffset());
+            }
+        }
+        assertEquals("INDENT ( [ ] ) INDENT ( ) OUTDENT OUTDENT { ( INDENT OUTDENT ) } ", sb.toString());
+    }
+
+    @Test
+    public void testBlocks() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(CODE);
+        lexer.tokenize(true);
+        CoffeeScriptNativeStructure structure = lexer.getStructure();
+        assertEquals(structure.size() / 2, structure.getBlockCount());
+        // the class body, from its first line to the line break after its last one
+        assertEquals(CODE.indexOf("  foo"), structure.getBlockStartOffset(0));
+        assertEquals(CODE.indexOf("\nx ="), structure.getBlockEndOffset(0));
+        assertEquals("(a, [b, c])", CODE.substring(structure.getBlockStartOffset(1), structure.getBlockEndOffset(1)));
+        assertEquals("{y: f(->\n  2)}", CODE.substring(structure.getBlockStartOffset(5), structure.getBlockEndOffset(5)));
+    }
+
+    @Test
+    public void testFindBracket() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeLexer lexer = new CoffeeScriptNativeLexer(CODE);
+        lexer.tokenize(false);
+        CoffeeScriptNativeStructure structure = lexer.getStructure();
+        // the ) closing f( also closes the indentation of the function
+        int close = structure.findBracket(CODE.indexOf("2)") + 1);
+        assertFalse(structure.isIndentation(close));
+        assertEquals(CODE.indexOf("f(") + 1, structure.getStartOffset(structure.getMatch(close)));
+        assertEquals(-1, structure.findBracket(CODE.indexOf("bar")));
+    }
+}
@@ -0,0 +1,259 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexingScheduler;
+import coffeescript.lexer.CoffeeScriptNativeLexingScheduler.Priority;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptLexingSchedulerTest {
+
+    @Test
+    public void testCoalesced() throws Exception {
+        CoffeeScriptNativeLexingScheduler scheduler = new CoffeeScriptNativeLexingScheduler(1, 16, true, 200, TimeUnit.MILLISECONDS, null);
+        try {
+            Future<List<CoffeeScriptNativeToken>> first = scheduler.documentChanged("a.coffee", "x = 1", Priority.FOCUSED);
+            scheduler.documentChanged("a.coffee", "x = 12", Priority.FOCUSED);
+            Future<List<CoffeeScriptNativeToken>> last = scheduler.documentChanged("a.coffee", "x = 123\n", Priority.FOCUSED);
+            assertEquals(1, scheduler.getQueueDepth());
+            List<CoffeeScriptNativeToken> tokens = first.get(10, TimeUnit.SECONDS);
+            assertSame(tokens, last.get());
+            assertEquals(new CoffeeScriptNativeLexer("x = 123\n").tokenize(true).size(), tokens.size());
+            assertEquals("123", tokens.get(2).getValue());
+            assertEquals(1, scheduler.getCompletedCount());
+            assertEquals(2, scheduler.getCoalescedCount());
+            assertTrue(scheduler.getMaxLatency(TimeUnit.MILLISECONDS) >= 200);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Object> order = Collections.synchronizedList(new ArrayList<Object>());
+        CoffeeScriptNativeLexingScheduler scheduler = new CoffeeScriptNativeLexingScheduler(1, 16, false, 0, TimeUnit.MILLISECONDS,
+                new CoffeeScriptNativeLexingScheduler.Callback() {
+                    @Override
+                    public void lexed(Object document, List<CoffeeScriptNativeToken> tokens) {
+                        order.add(document);
+                        if (document.equals("gate")) {
+                            // holds the only worker while the others queue up
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void failed(Object document, Exception ex) {
+                        order.add(ex);
+                    }
+                });
+        try {
+            scheduler.documentChanged("gate", "a", Priority.BACKGROUND);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<List<CoffeeScriptNativeToken>> last = scheduler.documentChanged("b1", "b = 1", Priority.BACKGROUND);
+            scheduler.documentChanged("v", "v = 1", Priority.VISIBLE);
+            scheduler.documentChanged("b2", "b = 2", Priority.BACKGROUND);
+            scheduler.documentChanged("f", "f = 1", Priority.FOCUSED);
+            scheduler.setPriority("b2", Priority.FOCUSED);
+            assertEquals(4, scheduler.getQueueDepth());
+            release.countDown();
+            last.get(10, TimeUnit.SECONDS);
+            Future<List<CoffeeScriptNativeToken>> failing = scheduler.documentChanged("e", "a = (", Priority.BACKGROUND);
+            try {
+                failing.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                // unclosed paren
+            }
+            assertEquals(6, scheduler.getCompletedCount());
+            assertEquals(0, scheduler.getQueueDepth());
+            assertEquals("gate", order.get(0));
+            assertEquals("b2", order.get(1));
+            assertEquals("f", order.get(2));
+            assertEquals("v", order.get(3));
+            assertEquals("b1", order.get(4));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullQueue() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Object> order = Collections.synchronizedList(new ArrayList<Object>());
+        CoffeeScriptNativeLexingScheduler scheduler = new CoffeeScriptNativeLexingScheduler(1, 2, false, 0, TimeUnit.MILLISECONDS,
+                new CoffeeScriptNativeLexingScheduler.Callback() {
+                    @Override
+                    public void lexed(Object document, List<CoffeeScriptNativeToken> tokens) {
+                        order.add(document);
+                        if (document.equals("gate")) {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void failed(Object document, Exception ex) {
+                        order.add(ex);
+                    }
+                });
+        try {
+            scheduler.documentChanged("gate", "a", Priority.BACKGROUND);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<List<CoffeeScriptNativeToken>> background = scheduler.documentChanged("b", "b = 1", Priority.BACKGROUND);
+            Future<List<CoffeeScriptNativeToken>> visible = scheduler.documentChanged("v", "v = 1", Priority.VISIBLE);
+            // a full queue neither blocks a change of a queued document nor one of another
+            Future<List<CoffeeScriptNativeToken>> coalesced = scheduler.documentChanged("v", "v = 2", Priority.VISIBLE);
+            Future<List<CoffeeScriptNativeToken>> deferred = scheduler.documentChanged("c", "c = 1", Priority.BACKGROUND);
+            Future<List<CoffeeScriptNativeToken>> focused = scheduler.documentChanged("f", "f = 1", Priority.FOCUSED);
+            // the deferred documents keep their latest text
+            Future<List<CoffeeScriptNativeToken>> latest = scheduler.documentChanged("c", "c = 2", Priority.BACKGROUND);
+            assertFalse(deferred.isDone());
+            assertFalse(background.isDone());
+            assertEquals(2, scheduler.getQueueDepth());
+            assertEquals(2, scheduler.getDeferredDepth());
+            assertEquals(2, scheduler.getDeferralCount());
+            release.countDown();
+            assertEquals("1", focused.get(10, TimeUnit.SECONDS).get(2).getValue());
+            assertEquals("2", visible.get(10, TimeUnit.SECONDS).get(2).getValue());
+            assertSame(visible.get(), coalesced.get());
+            assertEquals("1", background.get(10, TimeUnit.SECONDS).get(2).getValue());
+            assertEquals("2", deferred.get(10, TimeUnit.SECONDS).get(2).getValue());
+            assertSame(deferred.get(), latest.get());
+            assertEquals(0, scheduler.getQueueDepth());
+            assertEquals(0, scheduler.getDeferredDepth());
+            // the callback hears of every document, the one deferred first among equals first
+            for (int i = 0; i < 100 && order.size() < 5; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.<Object>asList("gate", "f", "v", "b", "c"), order);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeferredPriority() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CoffeeScriptNativeLexingScheduler scheduler = new CoffeeScriptNativeLexingScheduler(1, 1, false, 0, TimeUnit.MILLISECONDS,
+                new CoffeeScriptNativeLexingScheduler.Callback() {
+                    @Override
+                    public void lexed(Object document, List<CoffeeScriptNativeToken> tokens) {
+                        if (document.equals("gate")) {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void failed(Object document, Exception ex) {
+                    }
+                });
+        try {
+            scheduler.documentChanged("gate", "a", Priority.BACKGROUND);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            scheduler.documentChanged("b", "b = 1", Priority.BACKGROUND);
+            Future<List<CoffeeScriptNativeToken>> deferred = scheduler.documentChanged("c", "c = 1", Priority.BACKGROUND);
+            assertEquals(1, scheduler.getDeferredDepth());
+            // gaining focus moves the deferred document into the queue in place of the other one
+            scheduler.setPriority("c", Priority.FOCUSED);
+            assertEquals(1, scheduler.getQueueDepth());
+            assertEquals(1, scheduler.getDeferredDepth());
+            assertEquals(2, scheduler.getDeferralCount());
+            release.countDown();
+            assertEquals("1", deferred.get(10, TimeUnit.SECONDS).get(2).getValue());
+        } finally {
+            scheduler.shutdown();
+        }
+        // shutting down cancels the futures of the deferred documents too
+        scheduler = new CoffeeScriptNativeLexingScheduler(1, 1, false, 1, TimeUnit.HOURS, null);
+        scheduler.documentChanged("a", "a = 1", Priority.BACKGROUND);
+        Future<List<CoffeeScriptNativeToken>> deferred = scheduler.documentChanged("b", "b = 1", Priority.BACKGROUND);
+        assertEquals(1, scheduler.getDeferredDepth());
+        scheduler.shutdown();
+        assertTrue(deferred.isCancelled());
+    }
+
+    @Test
+    public void testFailingCallback() throws Exception {
+        final List<Throwable> reported = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                reported.add(ex);
+            }
+        });
+        CoffeeScriptNativeLexingScheduler scheduler = new CoffeeScriptNativeLexingScheduler(1, 16, false, 0, TimeUnit.MILLISECONDS,
+                new CoffeeScriptNativeLexingScheduler.Callback() {
+                    @Override
+                    public void lexed(Object document, List<CoffeeScriptNativeToken> tokens) {
+                        if (document.equals("runtime")) {
+                            throw new IllegalStateException(document.toString());
+                        }
+                        if (document.equals("error")) {
+                            throw new AssertionError(document.toString());
+                        }
+                    }
+
+                    @Override
+                    public void failed(Object document, Exception ex) {
+                        throw new IllegalStateException(document.toString());
+                    }
+                });
+        try {
+            // the worker survives each of them and lexes the next document
+            for (String document : new String[]{"runtime", "error", "failed"}) {
+                Future<List<CoffeeScriptNativeToken>> result = scheduler.documentChanged(document, document.equals("failed") ? "a = (" : "a = 1", Priority.FOCUSED);
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException ex) {
+                    // unclosed paren
+                }
+            }
+            assertEquals("1", scheduler.documentChanged("ok", "a = 1", Priority.FOCUSED).get(10, TimeUnit.SECONDS).get(2).getValue());
+            assertEquals(4, scheduler.getCompletedCount());
+            // the last report may follow the completion of the future
+            for (int i = 0; i < 100 && reported.size() < 3; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, reported.size());
+            assertEquals("runtime", reported.get(0).getMessage());
+            assertEquals("error", reported.get(1).getMessage());
+            assertEquals("failed", reported.get(2).getMessage());
+        } finally {
+            scheduler.shutdown();
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+}
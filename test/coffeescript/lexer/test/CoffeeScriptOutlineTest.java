@@ -0,0 +1,68 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeOutline;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenDiff;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptOutlineTest {
+
+    private static final String CODE = "a = 1\nclass A.B extends C\n  @create: -> new A.B\n  constructor: (@x) ->\n    class Inner\n      run: -> 1\n  size: 2\n"
+            + "  get: (k = [1]) -> @x[k]\nsquare = (x) -> x * x\nf(b = 2)\n";
+
+    private static List<CoffeeScriptNativeToken> lex(String code, boolean rewrite) throws CoffeeScriptNativeLexerException {
+        return new CoffeeScriptNativeLexer(code).tokenize(rewrite);
+    }
+
+    private static String describe(CoffeeScriptNativeOutline outline, List<CoffeeScriptNativeToken> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (int entry = 0; entry < outline.size(); entry++) {
+            CoffeeScriptNativeToken token = tokens.get(outline.getTokenIndex(entry));
+            sb.append(outline.getKind(entry)).append(' ').append(outline.getName(entry)).append(' ')
+                    .append(token.getFirstLine()).append(':').append(token.getFirstColumn()).append(' ').append(outline.getParent(entry)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testEntries() throws CoffeeScriptNativeLexerException {
+        String expected = "ASSIGNMENT a 0:0 -1\nCLASS A.B 1:6 -1\nMETHOD @create 2:3 1\nMETHOD constructor 3:2 1\n"
+                + "CLASS Inner 4:10 3\nMETHOD run 5:6 4\nMETHOD get 7:2 1\nASSIGNMENT square 8:0 -1\n";
+        for (boolean rewrite : new boolean[]{false, true}) {
+            List<CoffeeScriptNativeToken> tokens = lex(CODE, rewrite);
+            assertEquals(expected, describe(CoffeeScriptNativeOutline.of(tokens), tokens));
+        }
+    }
+
+    @Test
+    public void testUpdate() throws CoffeeScriptNativeLexerException {
+        String[][] edits = {
+            {"    class Inner\n", "    class Inner2\n"},
+            {"square = ", "cube = (x) -> x * x * x\nsquare = "},
+            {"  size: 2\n", "  size: ->\n    2\n"},
+            {"a = 1\n", ""},
+            {"f(b = 2)\n", "f(b = 2)\nz = 3\n"},
+        };
+        for (boolean rewrite : new boolean[]{false, true}) {
+            for (String[] edit : edits) {
+                String code = CODE.replace(edit[0], edit[1]);
+                List<CoffeeScriptNativeToken> oldTokens = lex(CODE, rewrite);
+                List<CoffeeScriptNativeToken> newTokens = lex(code, rewrite);
+                CoffeeScriptNativeOutline outline = CoffeeScriptNativeOutline.of(oldTokens);
+                outline.update(newTokens, CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens));
+                assertEquals(edit[1], describe(CoffeeScriptNativeOutline.of(newTokens), newTokens), describe(outline, newTokens));
+                // and back, from the updated state
+                outline.update(oldTokens, CoffeeScriptNativeTokenDiff.compute(newTokens, oldTokens));
+                assertEquals(edit[1], describe(CoffeeScriptNativeOutline.of(oldTokens), oldTokens), describe(outline, oldTokens));
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStringToken;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenBudget;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenBudgetTest {
+
+    private static final String CODE = "class A extends B\n  constructor: (@x) ->\n    super \"a #{x} b\"\n  foo: -> x or no\nfor own k, v of obj when v\n  f k, a: 1\n";
+
+    @Test
+    public void testDecompressed() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenBudget budget = new CoffeeScriptNativeTokenBudget(Long.MAX_VALUE, 0, TimeUnit.SECONDS);
+        CoffeeScriptNativeTokenBudget.Holder holder = budget.hold(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+        long resident = budget.getBytes();
+        assertEquals(1, budget.compressIdle());
+        assertTrue(holder.isCompressed());
+        assertTrue(budget.getBytes() < resident);
+        List<CoffeeScriptNativeToken> expected = new CoffeeScriptNativeLexer(CODE).tokenize(true);
+        List<CoffeeScriptNativeToken> tokens = holder.getTokens();
+        assertFalse(holder.isCompressed());
+        assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CoffeeScriptNativeToken token = expected.get(i);
+            CoffeeScriptNativeToken actual = tokens.get(i);
+            assertEquals(token.getTag(), actual.getTag());
+            assertEquals(token.getValue(), actual.getValue());
+            assertEquals(token.getStartOffset(), actual.getStartOffset());
+            assertEquals(token.getEndOffset(), actual.getEndOffset());
+            assertEquals(token.getFirstLine(), actual.getFirstLine());
+            assertEquals(token.getFirstColumn(), actual.getFirstColumn());
+            assertEquals(token.getLastLine(), actual.getLastLine());
+            assertEquals(token.getLastColumn(), actual.getLastColumn());
+            assertEquals(token.getGenerated(), actual.getGenerated());
+            assertEquals(token.getSpaced(), actual.getSpaced());
+            assertEquals(token.getNewLine(), actual.getNewLine());
+            assertEquals(token.getExplicit(), actual.getExplicit());
+            if (token instanceof CoffeeScriptNativeStringToken) {
+                assertEquals("x", ((CoffeeScriptNativeStringToken) actual).getInterpolationTokens(0).get(0).getValue());
+            }
+        }
+        holder.release();
+        assertEquals(0, budget.getBytes());
+    }
+
+    @Test
+    public void testColdestFirst() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenBudget probe = new CoffeeScriptNativeTokenBudget(Long.MAX_VALUE, 1, TimeUnit.HOURS);
+        probe.hold(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+        assertEquals(0, probe.compressIdle());
+        // room for two resident streams, not three
+        CoffeeScriptNativeTokenBudget budget = new CoffeeScriptNativeTokenBudget(probe.getBytes() * 5 / 2, 1, TimeUnit.HOURS);
+        CoffeeScriptNativeTokenBudget.Holder a = budget.hold(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+        CoffeeScriptNativeTokenBudget.Holder b = budget.hold(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+        a.getTokens();
+        CoffeeScriptNativeTokenBudget.Holder c = budget.hold(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+        assertTrue(b.isCompressed());
+        assertFalse(a.isCompressed());
+        assertFalse(c.isCompressed());
+        assertTrue(budget.getBytes() <= budget.getMaxBytes());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(CODE).tokenize(true);
+        final CoffeeScriptNativeTokenBudget budget = new CoffeeScriptNativeTokenBudget(64 * tokens.size() * 3, 0, TimeUnit.SECONDS);
+        final CoffeeScriptNativeTokenBudget.Holder[] holders = new CoffeeScriptNativeTokenBudget.Holder[6];
+        for (int i = 0; i < holders.length; i++) {
+            holders[i] = budget.hold(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+        }
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            CoffeeScriptNativeTokenBudget.Holder holder = holders[random.nextInt(holders.length)];
+                            switch (random.nextInt(4)) {
+                                case 0:
+                                    holder.compress();
+                                    break;
+                                case 1:
+                                    budget.compressIdle();
+                                    break;
+                                case 2:
+                                    holder.setTokens(new CoffeeScriptNativeLexer(CODE).tokenize(true));
+                                    break;
+                                default:
+                                    List<CoffeeScriptNativeToken> held = holder.getTokens();
+                                    assertEquals(tokens.size(), held.size());
+                                    assertEquals(tokens.get(tokens.size() - 1).getTag(), held.get(held.size() - 1).getTag());
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        error.set(ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        assertNull(error.get());
+        for (CoffeeScriptNativeTokenBudget.Holder holder : holders) {
+            holder.release();
+        }
+        // the bookkeeping of the streams compressed and decompressed concurrently adds up
+        assertEquals(0, budget.getBytes());
+    }
+}
@@ -0,0 +1,117 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenDiff;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenDiffTest {
+
+    private static final String CODE = "a = 1\nclass A\n  constructor: ->\n    @x = 2\n  foo: (y) ->\n    y * 2\nb = a\n";
+
+    private static List<CoffeeScriptNativeToken> lex(String code, boolean rewrite) throws CoffeeScriptNativeLexerException {
+        return new CoffeeScriptNativeLexer(code).tokenize(rewrite);
+    }
+
+    @Test
+    public void testSameCode() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(lex(CODE, true), lex(CODE, true));
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void testChangedIdentifier() throws CoffeeScriptNativeLexerException {
+        // @x = 2 -> @xyz = 2 on line 3
+        String code = CODE.replace("@x", "@xyz");
+        List<CoffeeScriptNativeToken> oldTokens = lex(CODE, false);
+        List<CoffeeScriptNativeToken> newTokens = lex(code, false);
+        CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens, 3, 6, 3, 6, 3, 8);
+        assertEquals(1, diff.getOldChangedEnd() - diff.getChangedStart());
+        assertEquals(1, diff.getNewChangedEnd() - diff.getChangedStart());
+        assertEquals("x", oldTokens.get(diff.getChangedStart()).getValue());
+        assertEquals("xyz", newTokens.get(diff.getChangedStart()).getValue());
+        assertEquals(0, diff.getLineShift());
+        assertEquals(2, diff.getColumnShift());
+        assertConsistent(oldTokens, newTokens, diff, 3);
+    }
+
+    @Test
+    public void testInsertedLines() throws CoffeeScriptNativeLexerException {
+        String code = CODE.replace("b = a\n", "c = [1, 2]\nd = c\nb = a\n");
+        for (boolean rewrite : new boolean[]{false, true}) {
+            List<CoffeeScriptNativeToken> oldTokens = lex(CODE, rewrite);
+            List<CoffeeScriptNativeToken> newTokens = lex(code, rewrite);
+            CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens, 6, 0, 6, 0, 8, 0);
+            assertEquals(2, diff.getLineShift());
+            assertEquals(diff.getChangedStart(), diff.getOldChangedEnd());
+            assertConsistent(oldTokens, newTokens, diff, 6);
+            assertEquals(CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens).getNewChangedEnd(), diff.getNewChangedEnd());
+        }
+    }
+
+    @Test
+    public void testChangedIndentation() throws CoffeeScriptNativeLexerException {
+        // the constructor body moves out, which changes the outdents at the end of the class
+        String code = CODE.replace("    @x = 2\n", "  @x = 2\n");
+        for (boolean rewrite : new boolean[]{false, true}) {
+            List<CoffeeScriptNativeToken> oldTokens = lex(CODE, rewrite);
+            List<CoffeeScriptNativeToken> newTokens = lex(code, rewrite);
+            CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens, 3, 0, 3, 4, 3, 2);
+            assertConsistent(oldTokens, newTokens, diff, 3);
+        }
+    }
+
+    @Test
+    public void testRetaggedBeforeEdit() throws CoffeeScriptNativeLexerException {
+        // indenting the call turns the postfix if two lines above into a block if
+        String code = "x = 1\ny = .5 if bar\n\n# line comment\nbar value, ->\n";
+        List<CoffeeScriptNativeToken> oldTokens = lex(code, true);
+        List<CoffeeScriptNativeToken> newTokens = lex(code.replace("bar value, ->", "  bar: value"), true);
+        CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens, 4, 0, 4, 13, 4, 12);
+        assertEquals("POST_IF", oldTokens.get(diff.getChangedStart()).getTag());
+        assertEquals("IF", newTokens.get(diff.getChangedStart()).getTag());
+        assertEquals(CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens).getChangedStart(), diff.getChangedStart());
+        assertConsistent(oldTokens, newTokens, diff, 4);
+    }
+
+    @Test
+    public void testEditInComment() throws CoffeeScriptNativeLexerException {
+        // only the offsets of the tokens after the comment change
+        String code = "# note\n" + CODE;
+        for (boolean rewrite : new boolean[]{false, true}) {
+            List<CoffeeScriptNativeToken> oldTokens = lex(code, rewrite);
+            List<CoffeeScriptNativeToken> newTokens = lex(code.replace("# note", "# a longer note"), rewrite);
+            CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(oldTokens, newTokens, 0, 2, 0, 2, 0, 11);
+            assertEquals(0, diff.getChangedStart());
+            assertConsistent(oldTokens, newTokens, diff, 0);
+        }
+    }
+
+    private static void assertConsistent(List<CoffeeScriptNativeToken> oldTokens, List<CoffeeScriptNativeToken> newTokens, CoffeeScriptNativeTokenDiff diff, int editLine) {
+        for (int i = 0; i < diff.getChangedStart(); i++) {
+            assertToken(oldTokens.get(i), newTokens.get(i), 0, editLine, 0);
+            assertEquals(oldTokens.get(i).getStartOffset(), newTokens.get(i).getStartOffset());
+            assertEquals(oldTokens.get(i).getEndOffset(), newTokens.get(i).getEndOffset());
+        }
+        assertEquals(oldTokens.size() - diff.getOldChangedEnd(), newTokens.size() - diff.getNewChangedEnd());
+        for (int i = 0; diff.getOldChangedEnd() + i < oldTokens.size(); i++) {
+            assertToken(oldTokens.get(diff.getOldChangedEnd() + i), newTokens.get(diff.getNewChangedEnd() + i), diff.getLineShift(), editLine, diff.getColumnShift());
+        }
+    }
+
+    private static void assertToken(CoffeeScriptNativeToken oldToken, CoffeeScriptNativeToken newToken, int lineShift, int editLine, int columnShift) {
+        assertEquals(oldToken.getTag(), newToken.getTag());
+        assertEquals(oldToken.getValue(), newToken.getValue());
+        assertEquals(oldToken.getFirstLine() + lineShift, newToken.getFirstLine());
+        assertEquals(oldToken.getFirstColumn() + (oldToken.getFirstLine() == editLine ? columnShift : 0), newToken.getFirstColumn());
+        assertEquals(oldToken.getLastLine() + lineShift, newToken.getLastLine());
+        assertEquals(oldToken.getLastColumn() + (oldToken.getLastLine() == editLine ? columnShift : 0), newToken.getLastColumn());
+    }
+}
@@ -0,0 +1,67 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenOffsetsTest {
+
+    @Test
+    public void testOffsetsAndPositions() throws CoffeeScriptNativeLexerException {
+        String code = "a = 1\nif a\n  foo 'bar'\n";
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(code).tokenize(false);
+        for (CoffeeScriptNativeToken token : tokens) {
+            if (token.getTag().equals("IDENTIFIER") || token.getTag().equals("STRING")) {
+                assertEquals(token.getValue(), code.substring(token.getStartOffset(), token.getEndOffset()));
+            }
+        }
+        CoffeeScriptNativeToken foo = find(tokens, "foo");
+        assertEquals(2, foo.getFirstLine());
+        assertEquals(2, foo.getFirstColumn());
+        assertEquals(4, foo.getLastColumn());
+        CoffeeScriptNativeToken bar = find(tokens, "'bar'");
+        assertEquals(6, bar.getFirstColumn());
+        assertEquals(10, bar.getLastColumn());
+    }
+
+    @Test
+    public void testMultiLineToken() throws CoffeeScriptNativeLexerException {
+        String code = "x = \"\"\"\n  one\n  two\n  \"\"\"\ny = 2\n";
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(code).tokenize(false);
+        CoffeeScriptNativeToken heredoc = tokens.get(2);
+        assertEquals(0, heredoc.getFirstLine());
+        assertEquals(4, heredoc.getFirstColumn());
+        assertEquals(3, heredoc.getLastLine());
+        assertEquals(4, heredoc.getLastColumn());
+        CoffeeScriptNativeToken y = find(tokens, "y");
+        assertEquals(4, y.getFirstLine());
+        assertEquals(0, y.getFirstColumn());
+    }
+
+    @Test
+    public void testErrorPosition() {
+        try {
+            new CoffeeScriptNativeLexer("a = 1\n  b = )\n").tokenize(false);
+            fail();
+        } catch (CoffeeScriptNativeLexerException ex) {
+            assertEquals(1, ex.getLine());
+            assertEquals(6, ex.getColumn());
+        }
+    }
+
+    private static CoffeeScriptNativeToken find(List<CoffeeScriptNativeToken> tokens, String value) {
+        for (CoffeeScriptNativeToken token : tokens) {
+            if (value.equals(token.getValue())) {
+                return token;
+            }
+        }
+        throw new AssertionError(value);
+    }
+}
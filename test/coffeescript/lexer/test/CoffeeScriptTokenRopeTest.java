@@ -0,0 +1,116 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenDiff;
+import coffeescript.lexer.CoffeeScriptNativeTokenRope;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenRopeTest {
+
+    private static final String CODE = "a = 1\nclass A\n  constructor: ->\n    @x = 2\n  foo: (y) ->\n    y * 2\nb = a\n";
+
+    private static String code(int copies, String tail) {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < copies; i++) {
+            code.append(CODE.replace("A", "A" + i));
+        }
+        return code.append(tail).toString();
+    }
+
+    @Test
+    public void testVersions() throws CoffeeScriptNativeLexerException {
+        for (boolean rewrite : new boolean[]{false, true}) {
+            String oldCode = code(100, "");
+            // two lines inserted in the middle
+            String newCode = oldCode.replace("class A50\n", "c = [1, 2]\nd = c\nclass A50\n");
+            List<CoffeeScriptNativeToken> oldTokens = new CoffeeScriptNativeLexer(oldCode).tokenize(rewrite);
+            List<CoffeeScriptNativeToken> newTokens = new CoffeeScriptNativeLexer(newCode).tokenize(rewrite);
+            CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(oldTokens);
+            CoffeeScriptNativeTokenRope updated = rope.update(newTokens, CoffeeScriptNativeTokenDiff.compute(rope, newTokens));
+            assertSameTokens(new CoffeeScriptNativeLexer(newCode).tokenize(rewrite), updated);
+            assertSameTokens(new CoffeeScriptNativeLexer(oldCode).tokenize(rewrite), rope);
+            // tokens before the edit are shared, not copied
+            assertSame(oldTokens.get(10), updated.get(10));
+            assertSame(rope.get(10), updated.get(10));
+        }
+    }
+
+    @Test
+    public void testEditedLine() throws CoffeeScriptNativeLexerException {
+        String oldCode = code(20, "x = [1, 2]\n");
+        String newCode = code(20, "xyz = [1, 2]\n").replace("@x = 2", "@xyz = 2");
+        CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(new CoffeeScriptNativeLexer(oldCode).tokenize(true));
+        List<CoffeeScriptNativeToken> newTokens = new CoffeeScriptNativeLexer(newCode).tokenize(true);
+        CoffeeScriptNativeTokenRope updated = rope.update(newTokens, CoffeeScriptNativeTokenDiff.compute(rope, newTokens));
+        assertSameTokens(newTokens, updated);
+    }
+
+    @Test
+    public void testEditRange() throws CoffeeScriptNativeLexerException {
+        for (boolean rewrite : new boolean[]{false, true}) {
+            String oldCode = code(100, "");
+            // a line inserted and the next one edited, both on line 351
+            String newCode = oldCode.replace("class A50\n", "c = [1, 2]\nclass  A50 extends B\n");
+            List<CoffeeScriptNativeToken> newTokens = new CoffeeScriptNativeLexer(newCode).tokenize(rewrite);
+            CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(new CoffeeScriptNativeLexer(oldCode).tokenize(rewrite));
+            CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(rope, newTokens, 351, 0, 351, 9, 352, 20);
+            CoffeeScriptNativeTokenRope updated = rope.update(newTokens, diff);
+            assertSameTokens(new CoffeeScriptNativeLexer(newCode).tokenize(rewrite), updated);
+            // updated again with the tokens of the first version
+            List<CoffeeScriptNativeToken> oldTokens = new CoffeeScriptNativeLexer(oldCode).tokenize(rewrite);
+            assertSameTokens(oldTokens, updated.update(oldTokens, CoffeeScriptNativeTokenDiff.compute(updated, oldTokens, 351, 0, 352, 20, 351, 9)));
+        }
+    }
+
+    @Test
+    public void testEditInComment() throws CoffeeScriptNativeLexerException {
+        // only the offsets of the tokens after the comment change
+        String oldCode = "# note\n" + code(100, "");
+        String newCode = "# a longer note\n" + code(100, "");
+        List<CoffeeScriptNativeToken> newTokens = new CoffeeScriptNativeLexer(newCode).tokenize(true);
+        CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(new CoffeeScriptNativeLexer(oldCode).tokenize(true));
+        CoffeeScriptNativeTokenRope updated = rope.update(newTokens, CoffeeScriptNativeTokenDiff.compute(rope, newTokens, 0, 2, 0, 2, 0, 11));
+        assertSameTokens(new CoffeeScriptNativeLexer(newCode).tokenize(true), updated);
+    }
+
+    @Test
+    public void testDedentBeforeBracket() throws CoffeeScriptNativeLexerException {
+        for (boolean rewrite : new boolean[]{false, true}) {
+            // one space of indentation deleted before the closing bracket on line 3; the first
+            // token kept after the edit is the outdent spanning it, whose start does not move
+            String oldCode = "x =\n  y: [\n    1\n  ]\n" + code(20, "");
+            String newCode = "x =\n  y: [\n    1\n ]\n" + code(20, "");
+            List<CoffeeScriptNativeToken> newTokens = new CoffeeScriptNativeLexer(newCode).tokenize(rewrite);
+            CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(new CoffeeScriptNativeLexer(oldCode).tokenize(rewrite));
+            CoffeeScriptNativeTokenDiff diff = CoffeeScriptNativeTokenDiff.compute(rope, newTokens, 3, 0, 3, 1, 3, 0);
+            assertTrue(newTokens.size() - diff.getNewChangedEnd() > 128);
+            assertSameTokens(new CoffeeScriptNativeLexer(newCode).tokenize(rewrite), rope.update(newTokens, diff));
+        }
+    }
+
+    private static void assertSameTokens(List<CoffeeScriptNativeToken> expected, List<CoffeeScriptNativeToken> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CoffeeScriptNativeToken token = expected.get(i);
+            CoffeeScriptNativeToken other = actual.get(i);
+            assertEquals(token.getTag(), other.getTag());
+            assertEquals(token.getValue(), other.getValue());
+            assertEquals(token.getStartOffset(), other.getStartOffset());
+            assertEquals(token.getEndOffset(), other.getEndOffset());
+            assertEquals(token.getFirstLine(), other.getFirstLine());
+            assertEquals(token.getFirstColumn(), other.getFirstColumn());
+            assertEquals(token.getLastLine(), other.getLastLine());
+            assertEquals(token.getLastColumn(), other.getLastColumn());
+            assertEquals(token.getSpaced(), other.getSpaced());
+            assertEquals(token.getNewLine(), other.getNewLine());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStringToken;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenDiff;
+import coffeescript.lexer.CoffeeScriptNativeTokenRope;
+import coffeescript.lexer.CoffeeScriptNativeTokenSnapshots;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenSnapshotsTest {
+
+    @Test
+    public void testFrozen() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenSnapshots snapshots = new CoffeeScriptNativeTokenSnapshots();
+        assertEquals(0, snapshots.get().getVersion());
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer("x = \"a #{b} c\"\n").tokenize(true);
+        CoffeeScriptNativeTokenSnapshots.Snapshot snapshot = snapshots.publish(tokens);
+        assertEquals(1, snapshot.getVersion());
+        assertSame(snapshot, snapshots.get());
+        // later changes of the writer's list do not show
+        tokens.clear();
+        assertEquals(4, snapshot.getTokens().size());
+        try {
+            snapshot.getTokens().get(0).setTag("FOO");
+            fail();
+        } catch (IllegalStateException ex) {
+            // frozen
+        }
+        CoffeeScriptNativeStringToken string = (CoffeeScriptNativeStringToken) snapshot.getTokens().get(2);
+        assertTrue(string.getInterpolationTokens(0).get(0).isFrozen());
+        // an older version is not published over a newer one
+        assertTrue(snapshots.publish(5, new CoffeeScriptNativeLexer("y").tokenize(true)));
+        assertFalse(snapshots.publish(4, new CoffeeScriptNativeLexer("z").tokenize(true)));
+        assertEquals("y", snapshots.get().getTokens().get(0).getValue());
+        CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(new CoffeeScriptNativeLexer("a = 1").tokenize(true));
+        assertSame(rope, snapshots.publish(rope).getTokens());
+        assertEquals(6, snapshots.get().getVersion());
+    }
+
+    @Test
+    public void testFrozenRope() throws CoffeeScriptNativeLexerException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            code.append("a").append(i).append(" = f ").append(i).append('\n');
+        }
+        CoffeeScriptNativeTokenRope rope = CoffeeScriptNativeTokenRope.of(new CoffeeScriptNativeLexer(code.toString()).tokenize(true));
+        CoffeeScriptNativeTokenSnapshots snapshots = new CoffeeScriptNativeTokenSnapshots();
+        snapshots.publish(rope);
+        // the edit moves the tokens after it, which are copied on access
+        List<CoffeeScriptNativeToken> newTokens = new CoffeeScriptNativeLexer("b = 1\n" + code).tokenize(true);
+        CoffeeScriptNativeTokenRope updated = rope.update(newTokens, CoffeeScriptNativeTokenDiff.compute(rope, newTokens));
+        assertNotSame(updated.get(updated.size() - 1), updated.get(updated.size() - 1));
+        assertFalse(updated.get(updated.size() - 1).isFrozen());
+        List<CoffeeScriptNativeToken> tokens = snapshots.publish(updated).getTokens();
+        assertSame(updated, tokens);
+        for (int i = 0; i < tokens.size(); i++) {
+            assertTrue(String.valueOf(i), tokens.get(i).isFrozen());
+        }
+        String tag = tokens.get(tokens.size() - 2).getTag();
+        try {
+            tokens.get(tokens.size() - 2).setTag("FOO");
+            fail();
+        } catch (IllegalStateException ex) {
+            // frozen
+        }
+        assertEquals(tag, tokens.get(tokens.size() - 2).getTag());
+    }
+
+    @Test
+    public void testConcurrentReader() throws Exception {
+        final CoffeeScriptNativeTokenSnapshots snapshots = new CoffeeScriptNativeTokenSnapshots();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                long version = 0;
+                while (version < 200) {
+                    CoffeeScriptNativeTokenSnapshots.Snapshot snapshot = snapshots.get();
+                    if (snapshot.getVersion() < version) {
+                        error.set("version went back");
+                    }
+                    version = snapshot.getVersion();
+                    // version n has n assignments, three tokens and a TERMINATOR each
+                    if (snapshot.getTokens().size() != 4 * version) {
+                        error.set("inconsistent snapshot " + version);
+                    }
+                }
+            }
+        };
+        reader.start();
+        StringBuilder code = new StringBuilder();
+        for (int version = 1; version <= 200; version++) {
+            code.append("a = ").append(version).append('\n');
+            snapshots.publish(new CoffeeScriptNativeLexer(code.toString()).tokenize(false));
+        }
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertNull(error.get());
+    }
+}
@@ -0,0 +1,122 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStringToken;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenStore;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenStoreTest {
+
+    private static final String CODE = "class A extends B\n  constructor: (@x) ->\n    super \"a #{x} b\"\n  foo: -> x or no\nfor own k, v of obj when v\n  f k, a: 1\n";
+
+    @Test
+    public void testRoundTrip() throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(CODE).tokenize(true);
+        CoffeeScriptNativeTokenStore store = CoffeeScriptNativeTokenStore.of(tokens);
+        assertEquals(tokens.size(), store.size());
+        CoffeeScriptNativeTokenStore.Cursor cursor = store.cursor();
+        for (CoffeeScriptNativeToken token : tokens) {
+            assertTrue(cursor.next());
+            assertEquals(token.getTag(), cursor.getTag());
+            assertEquals(token.getValue(), cursor.getValue());
+            assertEquals(token.getFirstLine(), cursor.getFirstLine());
+            assertEquals(token.getLastColumn(), cursor.getLastColumn());
+            assertEquals(token.getSpaced(), cursor.getSpaced());
+            assertEquals(token.getGenerated(), cursor.getGenerated());
+            assertSameToken(token, cursor.getToken());
+        }
+        assertFalse(cursor.next());
+        assertTrue(cursor.previous());
+        assertEquals(tokens.size() - 1, cursor.getIndex());
+        store.close();
+    }
+
+    @Test
+    public void testInterpolatedString() throws CoffeeScriptNativeLexerException {
+        List<CoffeeScriptNativeToken> tokens = new CoffeeScriptNativeLexer(CODE).tokenize(false);
+        CoffeeScriptNativeTokenStore store = CoffeeScriptNativeTokenStore.of(tokens);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i) instanceof CoffeeScriptNativeStringToken) {
+                CoffeeScriptNativeStringToken string = (CoffeeScriptNativeStringToken) store.get(i);
+                assertEquals(1, string.getInterpolationCount());
+                assertEquals("x", string.getInterpolationTokens(0).get(0).getValue());
+                return;
+            }
+        }
+        fail("no interpolated string");
+    }
+
+    @Test
+    public void testRewrite() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenStore raw = CoffeeScriptNativeTokenStore.of(new CoffeeScriptNativeLexer(CODE).tokenize(false));
+        CoffeeScriptNativeTokenStore rewritten = raw.rewrite(null);
+        List<CoffeeScriptNativeToken> expected = new CoffeeScriptNativeLexer(CODE).tokenize(true);
+        assertEquals(expected.size(), rewritten.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameToken(expected.get(i), rewritten.get(i));
+        }
+        assertEquals(new CoffeeScriptNativeLexer(CODE).tokenize(false).size(), raw.size());
+    }
+
+    @Test
+    public void testRewriteInParts() throws CoffeeScriptNativeLexerException {
+        StringBuilder statements = new StringBuilder();
+        StringBuilder members = new StringBuilder("class Big\n");
+        for (int i = 0; i < 2000; i++) {
+            statements.append(CODE.replace("A", "A" + i));
+            members.append("  m").append(i).append(": (a) -> f a, b: ").append(i).append(" if a\n");
+        }
+        // top-level statements are rewritten part by part, a class body as a whole
+        for (String code : new String[]{statements.toString(), members.toString()}) {
+            CoffeeScriptNativeTokenStore raw = CoffeeScriptNativeTokenStore.of(new CoffeeScriptNativeLexer(code).tokenize(false));
+            CoffeeScriptNativeTokenStore rewritten = raw.rewrite(null);
+            List<CoffeeScriptNativeToken> expected = new CoffeeScriptNativeLexer(code).tokenize(true);
+            assertEquals(expected.size(), rewritten.size());
+            CoffeeScriptNativeTokenStore.Cursor cursor = rewritten.cursor();
+            for (CoffeeScriptNativeToken token : expected) {
+                assertTrue(cursor.next());
+                assertSameToken(token, cursor.getToken());
+            }
+        }
+    }
+
+    @Test
+    public void testClosed() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenStore store = CoffeeScriptNativeTokenStore.of(new CoffeeScriptNativeLexer(CODE).tokenize(false));
+        CoffeeScriptNativeTokenStore.Cursor cursor = store.cursor();
+        cursor.next();
+        store.close();
+        assertTrue(store.isClosed());
+        try {
+            cursor.getTag();
+            fail("closed store read");
+        } catch (IllegalStateException ex) {
+        }
+        try {
+            store.cursor();
+            fail("closed store read");
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    private static void assertSameToken(CoffeeScriptNativeToken expected, CoffeeScriptNativeToken actual) {
+        assertEquals(expected.getTag(), actual.getTag());
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getFirstLine(), actual.getFirstLine());
+        assertEquals(expected.getFirstColumn(), actual.getFirstColumn());
+        assertEquals(expected.getLastLine(), actual.getLastLine());
+        assertEquals(expected.getLastColumn(), actual.getLastColumn());
+        assertEquals(expected.getGenerated(), actual.getGenerated());
+        assertEquals(expected.getSpaced(), actual.getSpaced());
+        assertEquals(expected.getNewLine(), actual.getNewLine());
+        assertEquals(expected.getReserved(), actual.getReserved());
+    }
+}
@@ -0,0 +1,121 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeStringToken;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.CoffeeScriptNativeTokenViews;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author milos
+ */
+public class CoffeeScriptTokenViewsTest {
+
+    private static final String CODE = "\n\nf a, b\nx = list[0] if ok\ng?()\nh = (y) -> y\n"
+            + "try\n  risky()\ncatch e then log e\nif a then b else c\no = k: 1, l: \"#{f x} s\"\nfor v in w then v\n";
+
+    @Test
+    public void testSameAsTokenize() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenViews views = new CoffeeScriptNativeLexer(CODE).tokenizeViews(null, null);
+        assertSameTokens(new CoffeeScriptNativeLexer(CODE).tokenize(false), views.getRawTokens());
+        assertSameTokens(new CoffeeScriptNativeLexer(CODE).tokenize(true), views.getRewrittenTokens());
+    }
+
+    @Test
+    public void testSharedTokens() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenViews views = new CoffeeScriptNativeLexer(CODE).tokenizeViews(null, null);
+        List<CoffeeScriptNativeToken> raw = views.getRawTokens(), rewritten = views.getRewrittenTokens();
+        int shared = 0, generated = 0, removed = 0;
+        for (int index = 0; index < rewritten.size(); index++) {
+            CoffeeScriptNativeToken token = rewritten.get(index);
+            int rawIndex = views.getRawIndex(index);
+            if (rawIndex == -1) {
+                assertTrue(token.getGenerated() || token.getExplicit());
+                generated++;
+                continue;
+            }
+            assertEquals(index, views.getRewrittenIndex(rawIndex));
+            CoffeeScriptNativeToken source = raw.get(rawIndex);
+            assertEquals(source.getStartOffset(), token.getStartOffset());
+            if (source == token) {
+                shared++;
+            } else {
+                // retagged or an interpolated string
+                assertTrue(!source.getTag().equals(token.getTag()) || token instanceof CoffeeScriptNativeStringToken);
+            }
+        }
+        for (int index = 0; index < raw.size(); index++) {
+            if (views.getRewrittenIndex(index) == -1) {
+                removed++;
+            }
+        }
+        assertTrue(shared > raw.size() * 3 / 4);
+        assertTrue(generated > 0);
+        // the leading line breaks and the THENs
+        assertEquals(5, removed);
+    }
+
+    @Test
+    public void testRawTokensIntact() throws CoffeeScriptNativeLexerException {
+        CoffeeScriptNativeTokenViews views = new CoffeeScriptNativeLexer(CODE).tokenizeViews(null, null);
+        StringBuilder tags = new StringBuilder();
+        for (CoffeeScriptNativeToken token : views.getRawTokens()) {
+            tags.append(token.getTag()).append(' ');
+        }
+        assertTrue(tags.indexOf("INDEX_END") == -1 && tags.indexOf("POST_IF") == -1 && tags.indexOf("CALL_END") == -1);
+        CoffeeScriptNativeStringToken string = null;
+        for (CoffeeScriptNativeToken token : views.getRewrittenTokens()) {
+            if (token instanceof CoffeeScriptNativeStringToken) {
+                string = (CoffeeScriptNativeStringToken) token;
+            }
+        }
+        // the embedded call is rewritten as well
+        assertEquals("CALL_START", string.getInterpolationTokens(0).get(1).getTag());
+    }
+
+    @Test
+    public void testRewrittenInParts() throws CoffeeScriptNativeLexerException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append(CODE);
+        }
+        String code = sb.toString();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CoffeeScriptNativeTokenViews views = new CoffeeScriptNativeLexer(code).tokenizeViews(null, pool);
+            List<CoffeeScriptNativeToken> raw = new CoffeeScriptNativeLexer(code).tokenize(false);
+            assertSameTokens(raw, views.getRawTokens());
+            assertSameTokens(new CoffeeScriptNativeLexer(code).tokenize(true), views.getRewrittenTokens());
+            // the parts retag copies, not the raw tokens
+            for (int index = 0; index < views.getRewrittenTokens().size(); index++) {
+                int rawIndex = views.getRawIndex(index);
+                if (rawIndex != -1) {
+                    assertEquals(index, views.getRewrittenIndex(rawIndex));
+                    assertEquals(raw.get(rawIndex).getTag(), views.getRawTokens().get(rawIndex).getTag());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertSameTokens(List<CoffeeScriptNativeToken> expected, List<CoffeeScriptNativeToken> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CoffeeScriptNativeToken e = expected.get(i), a = actual.get(i);
+            String message = "token " + i;
+            assertEquals(message, e.getTag(), a.getTag());
+            assertEquals(message, e.getValue(), a.getValue());
+            assertEquals(message, e.getFirstLine(), a.getFirstLine());
+            assertEquals(message, e.getFirstColumn(), a.getFirstColumn());
+            assertEquals(message, e.getLastLine(), a.getLastLine());
+            assertEquals(message, e.getLastColumn(), a.getLastColumn());
+            assertEquals(message, e.getGenerated(), a.getGenerated());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package coffeescript.lexer.test;
+
+import coffeescript.lexer.CoffeeScriptNativeLexer;
+import coffeescript.lexer.CoffeeScriptNativeLexerException;
+import coffeescript.lexer.CoffeeScriptNativeToken;
+import coffeescript.lexer.Rewriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Measures the garbage produced by {@link Rewriter#rewrite()} per token. The
+ * generated tokens themselves are the only expected allocations.
+ *
+ * @author milos
+ */
+public class RewriterAllocationTest {
+
+    private static final int MAX_BYTES_PER_TOKEN = 48;
+
+    @Test
+    public void testRewriteAllocationPerToken() throws CoffeeScriptNativeLexerException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("foo a, b: ->\n  x ").append(i).append(", c: d, e\n  obj =\n    k: v\n    m: n if q\nbar(1, 2).baz x\n");
+        }
+        List<CoffeeScriptNativeToken> raw = new CoffeeScriptNativeLexer(sb.toString()).tokenize(false);
+
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            List<CoffeeScriptNativeToken> tokens = new ArrayList<CoffeeScriptNativeToken>(raw.size() * 2);
+            for (CoffeeScriptNativeToken t : raw) {
+                CoffeeScriptNativeToken copy = new CoffeeScriptNativeToken(t.getTag(), t.getValue(), null, false);
+                copy.setSpaced(t.getSpaced());
+                copy.setNewLine(t.getNewLine());
+                copy.setLocationData(new int[]{t.getFirstLine(), t.getFirstColumn()}, new int[]{t.getLastLine(), t.getLastColumn()});
+                tokens.add(copy);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            new Rewriter(tokens).rewrite();
+            best = Math.min(best, threads.getThreadAllocatedBytes(threadId) - before);
+        }
+        long perToken = best / raw.size();
+        assertTrue("rewrite allocated " + perToken + " bytes per token", perToken <= MAX_BYTES_PER_TOKEN);
+    }
+}